@@ -24,8 +24,8 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import packets.builder.PacketBuilder;
 import proxy.ConnectionDetails;
-import proxy.ConnectionManager;
 import proxy.PacketInjector;
+import proxy.ProxyServer;
 import proxy.auth.AuthDetails;
 import proxy.auth.AuthenticationMethod;
 import proxy.auth.MicrosoftAuthHandler;
@@ -209,9 +209,11 @@ public class Config {
 
         if (!disableGui) {
             GuiManager.loadSceneMap();
+        } else if (renderMapWithoutGui) {
+            GuiManager.startHeadlessMap();
         }
 
-        new ConnectionManager().startProxy();
+        new ProxyServer(connectionDetails).runServer();
     }
 
     private void writeSettings() {
@@ -386,6 +388,10 @@ public class Config {
             usage = "Disable the GUI")
     public transient boolean disableGui = false;
 
+    @Option(name = "--render-map", depends = "--no-gui",
+            usage = "Draw the overview map into the image cache while running without a GUI, so it can be viewed later.")
+    public transient boolean renderMapWithoutGui = false;
+
     @Option(name = "--mark-new-chunks",
             usage = "Mark new chunks in an orange outline.")
     public transient boolean markNewChunks = false;
@@ -438,6 +444,14 @@ public class Config {
             usage = "Enable automatically switching to cave render mode when underground.")
     public boolean enableCaveRenderMode = false;
 
+    @Option(name = "--region-compression-level",
+            usage = "Zlib compression level (0-9) used when writing chunks to region files. Lower is faster, higher gives smaller files.")
+    public int regionCompressionLevel = 6;
+
+    @Option(name = "--memory-budget",
+            usage = "Approximate amount of memory (in MB) that loaded chunks and map images may use before some are unloaded. Set to 0 to use three quarters of the maximum heap size.")
+    public int memoryBudget = 0;
+
     // not really important enough to have an option for, can change it in config file
     public boolean smoothZooming = true;
 
@@ -508,6 +522,20 @@ public class Config {
         return instance.enableCaveRenderMode;
     }
 
+    public static int getRegionCompressionLevel() {
+        return Math.max(0, Math.min(9, instance.regionCompressionLevel));
+    }
+
+    /**
+     * Get the memory budget in bytes.
+     */
+    public static long getMemoryBudget() {
+        if (instance.memoryBudget <= 0) {
+            return Runtime.getRuntime().maxMemory() / 4 * 3;
+        }
+        return instance.memoryBudget * 1024L * 1024L;
+    }
+
     public static MicrosoftAuthHandler getMicrosoftAuth() {
         return instance.microsoftAuth;
     }
@@ -0,0 +1,373 @@
+package game.data;
+
+import config.Config;
+import game.data.chunk.Chunk;
+import game.data.chunk.ChunkBinary;
+import game.data.chunk.IncompleteChunkException;
+import game.data.coordinates.Coordinate2D;
+import game.data.coordinates.CoordinateDim2D;
+import game.data.region.McaFile;
+import gui.ChunkImageState;
+import gui.GuiManager;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import packets.builder.PacketBuilder;
+import packets.lib.ByteQueue;
+import proxy.PacketInjector;
+import util.TokenBucket;
+
+/**
+ * Provides the chunks sent to the client by the render distance extender. Chunks are read from the region files,
+ * decoded and turned into packets on a pool of worker threads, and the finished packets are kept in a cache so that
+ * walking back and forth does not require reading them again. Chunks ahead of the player's movement are prefetched so
+ * that their packets are ready by the time they are needed.
+ *
+ * Sending is paced by a token bucket. Its rate follows how quickly the injected packets are taken up by the connection
+ * to the client: it goes up while the injector's queue stays short, and goes down quickly when packets pile up.
+ *
+ * The cached packets count towards the memory budget, the least recently used ones are dropped when it runs out.
+ */
+public class ExtendedChunkSource implements MemoryHolder {
+    private static final int WORKER_THREADS = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+    private static final int CACHE_SIZE = 2048;
+    private static final int REGION_CACHE_SIZE = 16;
+    private static final int MAX_PENDING = 1024;
+
+    // rates are in bytes per second
+    private static final double INIT_RATE = 4 * 1024 * 1024;
+    private static final double MIN_RATE = 256 * 1024;
+    private static final double MAX_RATE = 64 * 1024 * 1024;
+    private static final double RATE_STEP = 256 * 1024;
+    private static final double BUCKET_CAPACITY = 1024 * 1024;
+    private static final int QUEUE_LOW = 16;
+    private static final int QUEUE_HIGH = 128;
+
+    private final WorldManager worldManager;
+    private final ExecutorService workers;
+    private final TokenBucket rateLimiter;
+
+    // chunks and region files are keyed by dimension, so that chunks requested before a dimension change can never be
+    // sent in the new dimension
+    private final Map<CoordinateDim2D, PreparedChunk> cache;
+    private final Map<CoordinateDim2D, McaFile> regionFiles;
+    private final Map<CoordinateDim2D, CompletableFuture<PreparedChunk>> pending;
+
+    // incremented on reset, so that chunks prepared for a previous dimension or connection are not cached or sent
+    private final AtomicInteger generation;
+
+    // size of the cached packets, guarded by the cache
+    private long cachedBytes;
+
+    public ExtendedChunkSource(WorldManager worldManager) {
+        this.worldManager = worldManager;
+
+        AtomicInteger workerCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(WORKER_THREADS, r -> {
+            Thread t = new Thread(r, "Extended Chunk Loader " + workerCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.rateLimiter = new TokenBucket(INIT_RATE, BUCKET_CAPACITY);
+
+        this.cache = new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CoordinateDim2D, PreparedChunk> eldest) {
+                if (size() > CACHE_SIZE) {
+                    cachedBytes -= eldest.getValue().size();
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.regionFiles = new LinkedHashMap<>(REGION_CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CoordinateDim2D, McaFile> eldest) {
+                if (size() > REGION_CACHE_SIZE) {
+                    eldest.getValue().closeReader();
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.pending = new ConcurrentHashMap<>();
+        this.generation = new AtomicInteger();
+
+        worldManager.getMemoryBudget().register(this);
+    }
+
+    /**
+     * Forget all cached chunks, used when the dimension changes or the player reconnects.
+     */
+    public void reset() {
+        generation.incrementAndGet();
+
+        // chunks that are still being prepared complete with null, as they are from the previous generation
+        pending.clear();
+        synchronized (cache) {
+            cache.clear();
+            cachedBytes = 0;
+        }
+        synchronized (regionFiles) {
+            regionFiles.values().forEach(McaFile::closeReader);
+            regionFiles.clear();
+        }
+        rateLimiter.setRate(INIT_RATE);
+    }
+
+    /**
+     * Forget the cached version of the given chunk, as it was changed since (e.g. because the server sent it).
+     */
+    public void invalidate(Coordinate2D coords) {
+        synchronized (cache) {
+            PreparedChunk removed = cache.remove(coords.addDimension(worldManager.getDimension()));
+            if (removed != null) {
+                cachedBytes -= removed.size();
+            }
+        }
+    }
+
+    /**
+     * Start preparing the given chunks in the background, if they are not already available.
+     */
+    public void prefetch(Collection<Coordinate2D> chunks) {
+        for (Coordinate2D coords : chunks) {
+            if (pending.size() >= MAX_PENDING) {
+                return;
+            }
+            request(coords);
+        }
+    }
+
+    /**
+     * Send the given chunks to the client. All chunks are requested up front so that they are prepared in parallel,
+     * then they are sent in the given order as the rate limiter allows.
+     * @param desired       the chunks to send
+     * @param isStillNeeded checked again right before sending, as chunks may have been sent by the server meanwhile
+     * @return the set of chunks that was actually sent to the client.
+     */
+    public Set<Coordinate2D> send(Collection<Coordinate2D> desired, Predicate<Coordinate2D> isStillNeeded) {
+        PacketInjector injector = Config.getPacketInjector();
+        Set<Coordinate2D> loaded = new HashSet<>();
+
+        List<Coordinate2D> requested = new ArrayList<>(desired.size());
+        List<CompletableFuture<PreparedChunk>> futures = new ArrayList<>(desired.size());
+        for (Coordinate2D coords : desired) {
+            if (isStillNeeded.test(coords)) {
+                requested.add(coords);
+                futures.add(request(coords));
+            }
+        }
+
+        for (int i = 0; i < requested.size(); i++) {
+            Coordinate2D coords = requested.get(i);
+            PreparedChunk chunk = futures.get(i).join();
+
+            if (chunk == null || !isStillNeeded.test(coords)) {
+                continue;
+            }
+
+            try {
+                adjustRate(injector);
+                rateLimiter.acquire(chunk.size());
+
+                // blocks while the injector already holds too many chunks
+                if (chunk.light != null) {
+                    injector.enqueueBulk(chunk.light);
+                }
+                injector.enqueueBulk(chunk.chunkData);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            loaded.add(coords);
+
+            if (Config.drawExtendedChunks()) {
+                GuiManager.setChunkState(coords, ChunkImageState.EXTENDED);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Increase the rate slowly while the client keeps up with the injected packets, and back off quickly if it does
+     * not.
+     */
+    private void adjustRate(PacketInjector injector) {
+        int queued = injector.size();
+        double rate = rateLimiter.getRate();
+
+        if (queued > QUEUE_HIGH) {
+            rateLimiter.setRate(Math.max(MIN_RATE, rate / 2));
+        } else if (queued < QUEUE_LOW) {
+            rateLimiter.setRate(Math.min(MAX_RATE, rate + RATE_STEP));
+        }
+    }
+
+    /**
+     * Get a future for the prepared chunk, starting to prepare it on a worker thread if needed. The future completes
+     * with null if the chunk cannot be sent, or if the source was reset while it was being prepared.
+     */
+    private CompletableFuture<PreparedChunk> request(Coordinate2D coords) {
+        int requestGeneration = generation.get();
+        CoordinateDim2D key = coords.addDimension(worldManager.getDimension());
+
+        PreparedChunk cached;
+        synchronized (cache) {
+            cached = cache.get(key);
+        }
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        CompletableFuture<PreparedChunk> future = new CompletableFuture<>();
+        CompletableFuture<PreparedChunk> existing = pending.putIfAbsent(key, future);
+        if (existing != null) {
+            return existing;
+        }
+
+        workers.execute(() -> {
+            PreparedChunk chunk = null;
+            try {
+                chunk = prepare(key);
+
+                // checked while holding the cache, as reset clears it after changing the generation
+                synchronized (cache) {
+                    if (requestGeneration != generation.get()) {
+                        chunk = null;
+                    } else if (chunk != null) {
+                        PreparedChunk replaced = cache.put(key, chunk);
+                        cachedBytes += chunk.size() - (replaced == null ? 0 : replaced.size());
+                    }
+                }
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            } finally {
+                pending.remove(key, future);
+                future.complete(chunk);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Load the chunk from its region file and build the packets to send it.
+     * @return the prepared chunk, or null if it does not exist or cannot be sent
+     */
+    private PreparedChunk prepare(CoordinateDim2D withDim) {
+        McaFile mca = getRegionFile(withDim.chunkToDimRegion());
+        if (mca == null) {
+            return null;
+        }
+
+        ChunkBinary chunkBinary = mca.getChunkBinary(withDim);
+
+        // skip any chunks not in the MCA file
+        if (chunkBinary == null) {
+            return null;
+        }
+
+        Chunk chunk = chunkBinary.toChunk(withDim);
+
+        // skip chunks loaded in an earlier version
+        if (chunk.getDataVersion() != Config.versionReporter().getDataVersion()) {
+            return null;
+        }
+
+        PacketInjector injector = Config.getPacketInjector();
+        try {
+            ByteQueue chunkData = injector.prepare(chunk.toPacket());
+
+            PacketBuilder lightPacket = chunk.toLightPacket();
+            ByteQueue light = lightPacket == null ? null : injector.prepare(lightPacket);
+
+            return new PreparedChunk(chunkData, light);
+        } catch (IncompleteChunkException ex) {
+            // chunk was not complete
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Get the region file, which only has its header read until chunks are requested from it. Files that were written
+     * to since we opened them are opened again.
+     */
+    private McaFile getRegionFile(CoordinateDim2D region) {
+        synchronized (regionFiles) {
+            McaFile file = regionFiles.get(region);
+            if (file != null && !file.isOutdated()) {
+                return file;
+            }
+
+            if (file != null) {
+                file.closeReader();
+            }
+
+            file = McaFile.ofCoords(region);
+            if (file == null) {
+                regionFiles.remove(region);
+            } else {
+                regionFiles.put(region, file);
+            }
+            return file;
+        }
+    }
+
+    public int countCached() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    @Override
+    public long estimateMemory() {
+        synchronized (cache) {
+            return cachedBytes;
+        }
+    }
+
+    /**
+     * Drop cached packets, starting with the least recently used ones. They are prepared again if they are needed.
+     */
+    @Override
+    public long release(long bytes) {
+        long released = 0;
+        synchronized (cache) {
+            var iterator = cache.values().iterator();
+            while (released < bytes && iterator.hasNext()) {
+                released += iterator.next().size();
+                iterator.remove();
+            }
+            cachedBytes -= released;
+        }
+        return released;
+    }
+
+    /**
+     * Chunk and light packets of a chunk, built and compressed so they are ready to be sent.
+     */
+    private static class PreparedChunk {
+        final ByteQueue chunkData;
+        final ByteQueue light;
+
+        PreparedChunk(ByteQueue chunkData, ByteQueue light) {
+            this.chunkData = chunkData;
+            this.light = light;
+        }
+
+        int size() {
+            return chunkData.size() + (light == null ? 0 : light.size());
+        }
+    }
+}
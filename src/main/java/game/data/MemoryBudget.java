@@ -0,0 +1,59 @@
+package game.data;
+
+import static util.PrintUtils.humanReadable;
+
+import config.Config;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps the memory retained by loaded chunks, region files and region images within the configured budget. Each
+ * holder reports an estimate of the memory it retains, and when the total goes over the budget the holders are asked
+ * to release the difference, in the order in which they were registered. Released memory is reclaimed by the garbage
+ * collector whenever it next runs, so there is no need to request a collection.
+ */
+public class MemoryBudget {
+    private final List<MemoryHolder> holders;
+
+    public MemoryBudget() {
+        this.holders = new CopyOnWriteArrayList<>();
+    }
+
+    public void register(MemoryHolder holder) {
+        if (!holders.contains(holder)) {
+            holders.add(holder);
+        }
+    }
+
+    public long estimateMemory() {
+        long total = 0;
+        for (MemoryHolder holder : holders) {
+            total += holder.estimateMemory();
+        }
+        return total;
+    }
+
+    /**
+     * If the holders retain more memory than the budget allows, ask them to release the excess.
+     */
+    public void enforce() {
+        long budget = Config.getMemoryBudget();
+        long usage = estimateMemory();
+        if (usage <= budget) {
+            return;
+        }
+
+        long excess = usage - budget;
+        for (MemoryHolder holder : holders) {
+            if (excess <= 0) {
+                break;
+            }
+            excess -= holder.release(excess);
+        }
+
+        if (Config.isInDevMode()) {
+            System.out.println("Memory budget exceeded (" + humanReadable(usage) + " of " + humanReadable(budget)
+                + " bytes), " + humanReadable(Math.max(0, excess)) + " bytes could not be released");
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package game.data;
+
+/**
+ * Something that retains a significant amount of memory which can be released when needed, such as loaded chunks or
+ * region images. Used by the {@link MemoryBudget}.
+ */
+public interface MemoryHolder {
+    /**
+     * Approximate number of bytes currently retained.
+     */
+    long estimateMemory();
+
+    /**
+     * Try to release at least the given number of bytes. Memory that is released on another thread is waited for, so
+     * that the caller can count the result as freed. Must not be called from the threads that release the memory.
+     * @return the approximate number of bytes that were released
+     */
+    long release(long bytes);
+}
@@ -15,6 +15,9 @@ import java.util.concurrent.Executors;
 import packets.builder.PacketBuilder;
 
 public class RenderDistanceExtender {
+    // how many chunks ahead of the player's movement to prefetch
+    private static final int PREFETCH_AHEAD = 4;
+
     private static final Coordinate2D POS_INIT = new Coordinate2D(0, 0) {
         @Override
         public boolean isInRangeChebyshev(Coordinate2D other, int distance) {
@@ -32,6 +35,7 @@ public class RenderDistanceExtender {
     private Set<Coordinate2D> gameLoaded;
 
     private final WorldManager worldManager;
+    private final ExtendedChunkSource chunkSource;
 
     private ExecutorService executorService;
 
@@ -39,6 +43,7 @@ public class RenderDistanceExtender {
 
     public RenderDistanceExtender(WorldManager worldManager) {
         this.worldManager = worldManager;
+        this.chunkSource = new ExtendedChunkSource(worldManager);
         this.extendedDistance = Config.getExtendedRenderDistance();
         generateCircles(this.extendedDistance);
 
@@ -51,6 +56,7 @@ public class RenderDistanceExtender {
         this.playerChunk = POS_INIT;
         this.gameLoaded = ConcurrentHashMap.newKeySet();
         this.extenderLoaded = ConcurrentHashMap.newKeySet();
+        this.chunkSource.reset();
 
         if (executorService != null) {
             executorService.shutdown();
@@ -96,7 +102,11 @@ public class RenderDistanceExtender {
 
         int dist = this.extendedDistance;
         if (oldPos.isInRangeChebyshev(newChunkPos, 1)) {
-            executorService.execute(() -> updateOuter(newChunkPos, dist));
+            Coordinate2D direction = newChunkPos.subtract(oldPos);
+            executorService.execute(() -> {
+                updateOuter(newChunkPos, dist);
+                prefetch(newChunkPos, direction, dist);
+            });
         } else {
             executorService.execute(() -> {
                 // after teleport, wait a bit so server can send its own chunks
@@ -135,6 +145,32 @@ public class RenderDistanceExtender {
         unloadOuter(distance, playerChunk);
     }
 
+    /**
+     * Start preparing the chunks that will be needed if the player keeps moving in the same direction, so that they
+     * can be sent right away once the player gets there. Only the leading half of the outer circle is needed for each
+     * step, as the chunks behind it are already in range.
+     */
+    private void prefetch(Coordinate2D center, Coordinate2D direction, int distance) {
+        List<Coordinate2D> leading = new ArrayList<>();
+        for (Coordinate2D c : circles.get(distance)) {
+            if (c.getX() * direction.getX() + c.getZ() * direction.getZ() > 0) {
+                leading.add(c);
+            }
+        }
+
+        Collection<Coordinate2D> ahead = new ArrayList<>(leading.size() * PREFETCH_AHEAD);
+        for (int i = 1; i <= PREFETCH_AHEAD; i++) {
+            Coordinate2D futureCenter = center.add(direction.getX() * i, direction.getZ() * i);
+            for (Coordinate2D c : leading) {
+                Coordinate2D toLoad = futureCenter.add(c);
+                if (!isLoaded(toLoad)) {
+                    ahead.add(toLoad);
+                }
+            }
+        }
+        chunkSource.prefetch(ahead);
+    }
+
     private void unloadOuter(int distance, Coordinate2D center) {
         List<Coordinate2D> coords = circles.get(distance + 1);
 
@@ -161,7 +197,7 @@ public class RenderDistanceExtender {
             }
             desired.add(toLoad);
         }
-        extenderLoaded.addAll(worldManager.sendChunksToPlayer(desired));
+        extenderLoaded.addAll(chunkSource.send(desired, this::isStillNeeded));
     }
 
     public void setExtendedDistance(int newDistance) {
@@ -200,6 +236,7 @@ public class RenderDistanceExtender {
 
     public void notifyLoaded(Coordinate2D coords) {
         this.extenderLoaded.remove(coords);
+        this.chunkSource.invalidate(coords);
         this.gameLoaded.add(coords);
 
         if (status == Status.WAITING) {
@@ -238,4 +275,4 @@ public class RenderDistanceExtender {
     enum Status {
         WAITING, ACTIVE
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -4,24 +4,30 @@ import static util.ExceptionHandling.attempt;
 
 import game.data.chunk.version.Chunk_1_17;
 import game.data.dimension.DimensionType;
-import gui.ChunkImageState;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 
 import java.util.function.Consumer;
@@ -30,10 +36,9 @@ import org.apache.commons.io.IOUtils;
 
 import config.Config;
 import game.data.chunk.Chunk;
-import game.data.chunk.ChunkBinary;
 import game.data.chunk.ChunkEntities;
 import game.data.chunk.ChunkFactory;
-import game.data.chunk.IncompleteChunkException;
+import game.data.chunk.ChunkImageScheduler;
 import game.data.chunk.palette.BlockColors;
 import game.data.chunk.palette.BlockState;
 import game.data.commandblock.CommandBlockManager;
@@ -48,22 +53,21 @@ import game.data.entity.EntityNames;
 import game.data.entity.EntityRegistry;
 import game.data.maps.MapRegistry;
 import game.data.region.McaFile;
-import game.data.region.McaFilePair;
 import game.data.region.Region;
 import game.data.villagers.VillagerManager;
 import gui.GuiManager;
 import packets.DataTypeProvider;
-import packets.builder.PacketBuilder;
-import proxy.PacketInjector;
 import se.llbit.nbt.Tag;
 import util.PathUtils;
 
 /**
  * Manage the world, including saving, parsing and updating the GUI.
  */
-public class WorldManager {
+public class WorldManager implements MemoryHolder {
     private static final int INIT_SAVE_DELAY = 5 * 1000;
     private static final int SAVE_DELAY = 12 * 1000;
+    private static final int EVICT_KEEP_DISTANCE = 8;
+    private static final int SAVE_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
     private static WorldManager instance;
     private final LevelData levelData;
     private final MapRegistry mapRegistry;
@@ -71,7 +75,7 @@ public class WorldManager {
     private Map<CoordinateDim2D, Region> regions = new ConcurrentHashMap<>();
 
     private EntityNames entityMap;
-    private BlockColors blockColors;
+    private volatile BlockColors blockColors;
 
     private boolean markNewChunks;
     private boolean writeChunks;
@@ -93,21 +97,26 @@ public class WorldManager {
     private DimensionType dimensionType;
     private final EntityRegistry entityRegistry;
     private final ChunkFactory chunkFactory;
+    private final MemoryBudget memoryBudget;
+    private final ChunkImageScheduler chunkImageScheduler;
 
     private ScheduledExecutorService saveService;
+    private ExecutorService saveWorkers;
 
     public WorldManager() {
         this.isStarted = false;
         this.entityMap = new EntityNames();
         this.entityRegistry = new EntityRegistry(this);
         this.chunkFactory = new ChunkFactory();
+        this.memoryBudget = new MemoryBudget();
+        this.chunkImageScheduler = new ChunkImageScheduler();
         this.mapRegistry = new MapRegistry();
 
         this.levelData = new LevelData(this);
 
         this.playerPosition = this.levelData.getPlayerPosition();
         this.dimension = this.levelData.getPlayerDimension();
-        this.savingDimension = new HashSet<>();
+        this.savingDimension = ConcurrentHashMap.newKeySet();
         this.renderDistanceExtender = new RenderDistanceExtender(this);
     }
 
@@ -343,6 +352,7 @@ public class WorldManager {
 
             if (r.canRemove()) {
                 regions.remove(regionCoordinate);
+                r.closeFiles();
             }
         }
         this.renderDistanceExtender.notifyUnloaded(coordinate.stripDimension());
@@ -367,11 +377,26 @@ public class WorldManager {
         entityMap = names;
     }
 
+    public ChunkImageScheduler getChunkImageScheduler() {
+        return chunkImageScheduler;
+    }
+
+    /**
+     * Get the block colours, which are loaded when they are first needed. Parser threads may create block registries
+     * at the same time, so the colours are only loaded once while holding the lock.
+     */
     public BlockColors getBlockColors() {
-        if (blockColors == null) {
-            blockColors = BlockColors.create();
+        BlockColors colors = blockColors;
+        if (colors != null) {
+            return colors;
+        }
+
+        synchronized (this) {
+            if (blockColors == null) {
+                blockColors = BlockColors.create();
+            }
+            return blockColors;
         }
-        return blockColors;
     }
 
 
@@ -419,11 +444,21 @@ public class WorldManager {
     }
 
     /**
-     * Periodically save the world.
+     * Periodically save the world. The save service decides what to save, the chunks and region files themselves are
+     * converted and written by the save workers.
      */
     public void start() {
         ThreadFactory namedThreadFactory = r -> new Thread(r, "World Save Service");
         saveService = Executors.newScheduledThreadPool(1, namedThreadFactory);
+        memoryBudget.register(this);
+
+        // the workers are not shut down along with the save service, since the final save on exit still uses them
+        AtomicInteger workerCount = new AtomicInteger();
+        saveWorkers = Executors.newFixedThreadPool(SAVE_THREADS, r -> {
+            Thread t = new Thread(r, "World Save Worker " + workerCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
         saveService.scheduleWithFixedDelay(() -> attempt(this::save), INIT_SAVE_DELAY, SAVE_DELAY, TimeUnit.MILLISECONDS);
     }
 
@@ -434,40 +469,31 @@ public class WorldManager {
             return;
         }
 
-        if (savingDimension.contains(dimension)) {
+        if (!savingDimension.add(dimension)) {
             System.out.println("Dimension " + dimension + " already being saved");
             if (saveService != null) {
                 attempt(() -> saveService.awaitTermination(30, TimeUnit.SECONDS));
             }
             return;
         }
-        savingDimension.add(dimension);
-
-        // save level.dat
-        attempt(levelData::save);
-        attempt(mapRegistry::save);
 
-        if (!regions.isEmpty()) {
-            // convert the values to an array first to prevent blocking any threads
-            Region[] r = regions.values().toArray(new Region[0]);
-            for (Region region : r) {
-                McaFilePair files = region.toFile(getPlayerPosition().globalToChunk());
-                if (files == null) {
-                    continue;
-                }
+        try {
+            // save level.dat
+            attempt(levelData::save);
+            attempt(mapRegistry::save);
 
-                write(files.getRegion());
-                write(files.getEntities());
+            if (!regions.isEmpty()) {
+                writeRegions(regions);
             }
-        }
-
-        // remove empty regions
-        regions.entrySet().removeIf(el -> el.getValue().isEmpty());
 
-        savingDimension.remove(dimension);
+            // remove empty regions
+            regions.entrySet().removeIf(el -> el.getValue().isEmpty());
+        } finally {
+            savingDimension.remove(dimension);
+        }
 
-        // suggest GC to clear up some memory that may have been freed by saving
-        System.gc();
+        // now that chunks have been saved, they can be unloaded if we are using too much memory
+        memoryBudget.enforce();
     }
 
     /**
@@ -477,6 +503,31 @@ public class WorldManager {
         save(this.dimension, this.regions);
     }
 
+    /**
+     * Convert and write all regions in parallel, and wait until they have all been written. Each region has its own
+     * files, and is only written once all of its chunks have been converted, so every file has a single writer.
+     */
+    private void writeRegions(Map<CoordinateDim2D, Region> regions) {
+        Coordinate2D playerChunk = getPlayerPosition().globalToChunk();
+        Executor executor = saveWorkers == null ? Runnable::run : saveWorkers;
+
+        // convert the values to an array first to prevent blocking any threads
+        Region[] r = regions.values().toArray(new Region[0]);
+        CompletableFuture<?>[] writes = new CompletableFuture[r.length];
+        for (int i = 0; i < r.length; i++) {
+            writes[i] = r[i].toFile(playerChunk, executor).thenAcceptAsync(files -> {
+                if (files == null) {
+                    return;
+                }
+
+                write(files.getRegion());
+                write(files.getEntities());
+            }, executor);
+        }
+
+        attempt(() -> CompletableFuture.allOf(writes).join());
+    }
+
     private void write(McaFile file) {
         if (file == null || file.isEmpty()) {
             return;
@@ -517,8 +568,9 @@ public class WorldManager {
     }
 
     public void deleteAllExisting() {
-        regions = new HashMap<>();
+        // the parser threads are stopped first, so that they cannot add chunks to the new map
         chunkFactory.clear();
+        regions = new ConcurrentHashMap<>();
 
         try {
             File dir = PathUtils.toPath(Config.getWorldOutputDir(), this.dimension.getPath(), "region").toFile();
@@ -568,87 +620,78 @@ public class WorldManager {
         }
     }
 
-    /**
-     * Load chunks from their MCA files and send them to the client.
-     *
-     * @param desired the set of chunk coordinates which we want to send to the client.
-     * @return the set of chunks that was actually sent to the client.
-     */
-    public Set<Coordinate2D> sendChunksToPlayer(Collection<Coordinate2D> desired) {
-        PacketInjector injector = Config.getPacketInjector();
-        Set<Coordinate2D> loaded = new HashSet<>();
-
-        int chunksSent = 0;
-        Map<Coordinate2D, McaFile> loadedFiles = new HashMap<>();
-        for (Coordinate2D coords : desired) {
-            // since there is delay in this loop, it's possible some of the chunks were sent to the client by the time
-            // we get to them.
-            if (!this.renderDistanceExtender.isStillNeeded(coords)) {
-                continue;
-            }
+    public void resetConnection() {
+        this.renderDistanceExtender.reset();
+        this.entityRegistry.reset();
+        this.chunkFactory.reset();
 
-            McaFile mca = loadedFiles.computeIfAbsent(coords.chunkToRegion(), (c) -> McaFile.ofCoords(c.addDimension(this.dimension)));
+        this.saveAndUnloadChunks();
+    }
 
-            if (mca == null) {
-                continue;
-            }
+    public EntityRegistry getEntityRegistry() {
+        return entityRegistry;
+    }
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
 
-            CoordinateDim2D withDim = coords.addDimension(this.dimension);
-            ChunkBinary chunkBinary = mca.getChunkBinary(withDim);
+    @Override
+    public long estimateMemory() {
+        long size = 0;
+        for (Region region : regions.values()) {
+            size += region.estimateMemory();
+        }
+        return size;
+    }
 
-            // skip any chunks not in the MCA file
-            if (chunkBinary == null) {
-                continue;
+    /**
+     * Evict saved chunks, starting with the ones furthest away from the player. Chunks close to the player are kept
+     * since those are the most likely to change. Each chunk is evicted on its parser thread, so that it cannot be
+     * changed while it is being evicted. Evicted chunks are read from their region file again if they are needed.
+     * This waits for the evictions, so that only the memory of chunks that were actually evicted is reported.
+     */
+    @Override
+    public long release(long bytes) {
+        Coordinate2D player = getPlayerPosition().globalToChunk();
+
+        Map<Coordinate2D, Region> candidates = new HashMap<>();
+        for (Region region : regions.values()) {
+            for (Coordinate2D coordinate : region.getEvictable()) {
+                if (!coordinate.isInRangeManhattan(player, EVICT_KEEP_DISTANCE)) {
+                    candidates.put(coordinate, region);
+                }
             }
+        }
 
-            // send a packet with the chunk to the client
-            Chunk chunk = chunkBinary.toChunk(withDim);
+        List<Coordinate2D> sorted = new ArrayList<>(candidates.keySet());
+        sorted.sort(Comparator.comparingInt((Coordinate2D c) -> c.distance(player)).reversed());
 
-            // skip chunks loaded in an earlier version
-            if (chunk.getDataVersion() != Config.versionReporter().getDataVersion()) {
-                continue;
+        long requested = 0;
+        List<CompletableFuture<Long>> evictions = new ArrayList<>();
+        for (Coordinate2D coordinate : sorted) {
+            if (requested >= bytes) {
+                break;
             }
 
-            try {
-                PacketBuilder chunkData = chunk.toPacket();
-                PacketBuilder light = chunk.toLightPacket();
-                if (light != null) {
-                    injector.enqueuePacket(light);
-                }
-                injector.enqueuePacket(chunkData);
-                chunksSent++;
-
-            } catch (IncompleteChunkException ex) {
-                ex.printStackTrace();
-                // chunk was not complete
+            Region region = candidates.get(coordinate);
+            Chunk chunk = region.getLoadedChunk(coordinate);
+            if (chunk == null) {
                 continue;
             }
-            loaded.add(coords);
-
-            if (Config.drawExtendedChunks()) {
-                GuiManager.setChunkState(coords, ChunkImageState.EXTENDED);
-            }
+            requested += chunk.estimateMemory();
 
-            // periodically sleep so the client doesn't stutter from receiving too many chunks
-            chunksSent = (chunksSent + 1) % 5;
-            if (chunksSent == 0) {
-                attempt(() -> Thread.sleep(48));
-            }
+            CoordinateDim2D chunkPos = coordinate.addDimension(this.dimension);
+            evictions.add(chunkFactory.supplyOnFactoryThread(chunkPos, () -> region.evict(coordinate)));
         }
-        return loaded;
-    }
 
-    public void resetConnection() {
-        this.renderDistanceExtender.reset();
-        this.entityRegistry.reset();
-        this.chunkFactory.reset();
-
-        this.saveAndUnloadChunks();
+        long released = 0;
+        for (CompletableFuture<Long> eviction : evictions) {
+            // evictions are cancelled if the world is deleted in the meantime
+            released += eviction.exceptionally(ex -> 0L).join();
+        }
+        return released;
     }
 
-    public EntityRegistry getEntityRegistry() {
-        return entityRegistry;
-    }
     public ChunkFactory getChunkFactory() {
         return chunkFactory;
     }
@@ -677,9 +720,10 @@ public class WorldManager {
         if (!Config.handleBlockChanges()) {
             return;
         }
-        chunkFactory.runOnFactoryThread(() -> {
-            Coordinate3D coords = provider.readCoordinates();
-            Chunk c = getChunk(coords.globalToChunk().addDimension(this.dimension));
+        Coordinate3D coords = provider.readCoordinates();
+        CoordinateDim2D chunkPos = coords.globalToChunk().addDimension(this.dimension);
+        chunkFactory.runOnFactoryThread(chunkPos, () -> {
+            Chunk c = getChunk(chunkPos);
             if (c == null) {
                 return;
             }
@@ -693,8 +737,9 @@ public class WorldManager {
         if (!Config.handleBlockChanges()) {
             return;
         }
-        chunkFactory.runOnFactoryThread(() -> {
-            Chunk c = getChunk(pos.addDimension(this.dimension));
+        CoordinateDim2D chunkPos = pos.addDimension(this.dimension);
+        chunkFactory.runOnFactoryThread(chunkPos, () -> {
+            Chunk c = getChunk(chunkPos);
             if (c == null) {
                 return;
             }
@@ -709,10 +754,10 @@ public class WorldManager {
      * it is given to the chunk to parse immediately.
      */
     public void updateLight(DataTypeProvider provider) {
-        chunkFactory.runOnFactoryThread(() -> {
-            int chunkX = provider.readVarInt();
-            int chunkZ = provider.readVarInt();
-            CoordinateDim2D coords = new CoordinateDim2D(chunkX, chunkZ, dimension);
+        int chunkX = provider.readVarInt();
+        int chunkZ = provider.readVarInt();
+        CoordinateDim2D coords = new CoordinateDim2D(chunkX, chunkZ, dimension);
+        chunkFactory.runOnFactoryThread(coords, () -> {
             Chunk c = getChunk(coords);
             if (c == null) {
                 chunkFactory.updateLight(coords, provider);
@@ -22,6 +22,10 @@ public class Cave {
         depth += 1;
     }
 
+    public void addDepth(int amount) {
+        depth += amount;
+    }
+
     public int y() { return y; }
 
     public int depth() { return depth; }
@@ -54,13 +58,15 @@ public class Cave {
     /**
      * Adjust colour based on height and depth of cave
      */
-    public SimpleColor getColor() {
+    public int getColor() {
         double brightness = 230 * (0.05 + (Math.log(depth) / Math.log(80)) * 0.9);
-        SimpleColor caveDepth = new SimpleColor(10, brightness / 2, brightness)
-            .blendWith(new SimpleColor(brightness, 10, 10), map(-80, 100, y));
+        int caveDepth = SimpleColor.blend(
+            SimpleColor.of(10, brightness / 2, brightness),
+            SimpleColor.of(brightness, 10, 10),
+            map(-80, 100, y)
+        );
 
-        SimpleColor blockCol = block.getColor();
-        return caveDepth.blendWith(blockCol, .85);
+        return SimpleColor.blend(caveDepth, block.getColor(), .85);
     }
 
     private double map(double min, double max, double val) {
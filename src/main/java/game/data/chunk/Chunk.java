@@ -348,6 +348,24 @@ public abstract class Chunk extends ChunkEntities {
         return GlobalPaletteProvider.getGlobalPalette(getDataVersion()).getState(id);
     }
 
+    /**
+     * Get the block state from the decoded blocks of its section, for code that reads many blocks from this chunk.
+     * The decoded blocks should be released afterwards.
+     */
+    BlockState getDecodedBlockStateAt(int x, int y, int z) {
+        ChunkSection section = getChunkSection(Math.floorDiv(y, SECTION_HEIGHT));
+        if (section == null) {
+            return null;
+        }
+
+        int id = section.getDecodedStates()[ChunkSection.getBlockIndex(x, Math.floorMod(y, SECTION_HEIGHT), z)];
+        if (id == 0) {
+            return null;
+        }
+
+        return GlobalPaletteProvider.getGlobalPalette(getDataVersion()).getState(id);
+    }
+
     /**
      * Generate network packet for this chunk.
      */
@@ -475,6 +493,27 @@ public abstract class Chunk extends ChunkEntities {
             '}';
     }
 
+    /**
+     * Approximate number of bytes retained by this chunk. Only the block and light data is counted, as that makes up
+     * nearly all of it.
+     */
+    public long estimateMemory() {
+        long size = 1024;
+        for (ChunkSection section : getAllSections()) {
+            size += section.estimateMemory();
+        }
+        return size;
+    }
+
+    /**
+     * Drop the decoded blocks of all sections, used once the chunk has been drawn.
+     */
+    void releaseDecodedStates() {
+        for (ChunkSection section : getAllSections()) {
+            section.releaseDecodedStates();
+        }
+    }
+
     public void unload() {
         raiseEvent("unload");
 
@@ -524,9 +563,8 @@ public abstract class Chunk extends ChunkEntities {
             return;
         }
 
-        if (this.imageFactory != null) {
-            this.chunkHeightHandler.updateHeight(coords);
-            this.imageFactory.generateImages();
+        if (this.imageFactory != null && this.chunkHeightHandler.updateHeight(coords)) {
+            this.imageFactory.markChanged();
         }
     }
 
@@ -552,9 +590,21 @@ public abstract class Chunk extends ChunkEntities {
 
             updateBlock(blockPos, blockId, true);
         }
+        onBlocksUpdated(toUpdate);
+    }
+
+    /**
+     * Recompute the heights after a number of blocks were updated, and mark the chunk image as changed if any of them
+     * changed. Does nothing if the chunk is not drawn.
+     */
+    protected void onBlocksUpdated(Collection<Coordinate3D> toUpdate) {
+        if (this.imageFactory == null) {
+            return;
+        }
+
         boolean wasChanged = this.chunkHeightHandler.recomputeHeights(toUpdate);
         if (wasChanged) {
-            imageFactory.generateImages();
+            this.imageFactory.markChanged();
         }
     }
 
@@ -565,4 +615,4 @@ public abstract class Chunk extends ChunkEntities {
     public boolean hasSeparateEntities() {
         return false;
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
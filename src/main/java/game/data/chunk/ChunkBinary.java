@@ -67,7 +67,7 @@ public class ChunkBinary implements Serializable {
             return null;
         }
 
-        byte[] data = CompressionManager.zlibCompress(output.toByteArray());
+        byte[] data = CompressionManager.zlibCompress(output.toByteArray(), Config.getRegionCompressionLevel());
 
         byte[] finalData = new byte[data.length + 5];
         int lengthToWrite = data.length + 1;
@@ -104,10 +104,7 @@ public class ChunkBinary implements Serializable {
     public NamedTag getNbt() {
         int length = (chunkData[0] & 0xFF) << 24 | (chunkData[1] & 0xFF) << 16 | (chunkData[2] & 0xFF) << 8 | (chunkData[3] & 0xFF);
 
-        byte[] compressedNbtData = new byte[length - 1];
-        System.arraycopy(this.chunkData, 5, compressedNbtData, 0, length - 1);
-
-        byte[] data = CompressionManager.zlibDecompress(compressedNbtData);
+        byte[] data = CompressionManager.zlibDecompress(this.chunkData, 5, length - 1);
         return (NamedTag) NamedTag.read(new DataInputStream(new ByteArrayInputStream(data)));
     }
 
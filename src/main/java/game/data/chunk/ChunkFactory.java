@@ -14,28 +14,75 @@ import se.llbit.nbt.SpecificTag;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+import static util.ExceptionHandling.attempt;
 
 /**
- * Class responsible for creating chunks.
+ * Class responsible for creating chunks. Chunks are parsed on a small pool of parser threads. All work relating to a
+ * single chunk (the chunk data itself, lighting, tile entities and block changes) is always run on the same thread, so
+ * that it is applied in the order it was received while different chunks can be parsed at the same time.
  */
 public class ChunkFactory {
+    private static final int PARSER_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    private static final long CLEANUP_INTERVAL = 1000 * 10;
+
     private Map<CoordinateDim2D, UnparsedChunk> unparsedChunks;
 
-    private ThreadPoolExecutor executor;
+    private volatile ThreadPoolExecutor[] executors;
+    private volatile long nextCleanup;
 
     public ChunkFactory() {
         clear();
     }
 
-    public void clear() {
+    /**
+     * Forget all unparsed chunks and restart the parser threads. Work that was already queued is finished before the
+     * new threads are started, so that it cannot reach the world state that replaces the current one. Work submitted
+     * while the old threads are finishing belongs to the old world and is discarded. Must not be called from a parser
+     * thread.
+     */
+    public synchronized void clear() {
+        if (this.executors != null) {
+            for (ThreadPoolExecutor executor : executors) {
+                executor.shutdown();
+            }
+            for (ThreadPoolExecutor executor : executors) {
+                attempt(() -> executor.awaitTermination(30, TimeUnit.SECONDS));
+            }
+        }
+
         this.unparsedChunks = new ConcurrentHashMap<>();
 
         // same as newSingleThreadExecutor except we can observe the queue size
-        this.executor = new ThreadPoolExecutor(
-            1, 1, 0L, TimeUnit.MILLISECONDS,
-            new LinkedBlockingQueue<>(),
-            (r) -> new Thread(r, "Chunk Parser Service")
-        );
+        ThreadPoolExecutor[] executors = new ThreadPoolExecutor[PARSER_THREADS];
+        for (int i = 0; i < PARSER_THREADS; i++) {
+            String name = "Chunk Parser Service " + (i + 1);
+            executors[i] = new ThreadPoolExecutor(
+                1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                (r) -> new Thread(r, name),
+                ChunkFactory::discard
+            );
+        }
+        this.executors = executors;
+    }
+
+    /**
+     * Drop work that is submitted while the parser threads are restarted. Tasks that can be waited for are cancelled,
+     * so that nothing waits for them forever.
+     */
+    private static void discard(Runnable task, ThreadPoolExecutor executor) {
+        if (task instanceof Future<?> future) {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Get the executor that handles the given chunk.
+     */
+    private ThreadPoolExecutor executorFor(CoordinateDim2D chunkPos) {
+        return executors[Math.floorMod(chunkPos.hashCode(), executors.length)];
     }
 
     /**
@@ -64,15 +111,17 @@ public class ChunkFactory {
     public void updateTileEntity(Coordinate3D position, SpecificTag entityData) {
         CoordinateDim2D chunkPos = position.globalToChunk().addDimension(WorldManager.getInstance().getDimension());
 
-        Chunk chunk = WorldManager.getInstance().getChunk(chunkPos);
+        runOnFactoryThread(chunkPos, () -> {
+            Chunk chunk = WorldManager.getInstance().getChunk(chunkPos);
 
-        // if the chunk doesn't exist yet, add it to the queue to process later
-        if (chunk == null) {
-            getUnparsedIfFresh(chunkPos).addTileEntity(new TileEntity(position, entityData));
-        } else {
-            chunk.addBlockEntity(position, entityData);
-            chunk.setSaved(false);
-        }
+            // if the chunk doesn't exist yet, add it to the queue to process later
+            if (chunk == null) {
+                getUnparsedIfFresh(chunkPos).addTileEntity(new TileEntity(position, entityData));
+            } else {
+                chunk.addBlockEntity(position, entityData);
+                chunk.setSaved(false);
+            }
+        });
     }
 
     /**
@@ -84,34 +133,44 @@ public class ChunkFactory {
             return;
         }
 
-        Runnable r = () -> {
-            CoordinateDim2D chunkPos = new CoordinateDim2D(provider.readInt(), provider.readInt(), WorldManager.getInstance().getDimension());
-            getUnparsed(chunkPos).setProvider(provider);
-
-            this.parse();
-        };
+        CoordinateDim2D chunkPos = new CoordinateDim2D(provider.readInt(), provider.readInt(), WorldManager.getInstance().getDimension());
+        runOnFactoryThread(chunkPos, () -> {
+            UnparsedChunk unparsed = getUnparsed(chunkPos);
+            unparsed.setProvider(provider);
 
-        if (executor != null) {
-            executor.execute(r);
-        } else {
-            r.run();
-        }
+            parse(unparsed);
+            removeStale();
+        });
     }
 
-    private void parse() {
-        for (CoordinateDim2D k : unparsedChunks.keySet()) {
-            try {
-                boolean doRemove = readChunkDataPacket(unparsedChunks.get(k));
+    /**
+     * Try to parse the given chunk, and remove it from the map of unparsed chunks once that succeeded.
+     */
+    private void parse(UnparsedChunk unparsed) {
+        try {
+            boolean doRemove = readChunkDataPacket(unparsed);
 
-                if (doRemove) {
-                    unparsedChunks.remove(k);
-                }
-            } catch (Exception ex) {
-                ex.printStackTrace();
-                System.err.println("Chunk could not be parsed!");
-                unparsedChunks.remove(k);
+            if (doRemove) {
+                unparsedChunks.remove(unparsed.location, unparsed);
             }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.err.println("Chunk could not be parsed!");
+            unparsedChunks.remove(unparsed.location, unparsed);
+        }
+    }
+
+    /**
+     * Every so often, remove the lighting and tile entity data for chunks that never arrived.
+     */
+    private void removeStale() {
+        long now = System.currentTimeMillis();
+        if (now < nextCleanup) {
+            return;
         }
+        nextCleanup = now + CLEANUP_INTERVAL;
+
+        unparsedChunks.values().removeIf(unparsed -> unparsed.provider == null && unparsed.isStale());
     }
 
     public static Chunk parseChunk(UnparsedChunk parser, WorldManager worldManager) {
@@ -185,8 +244,36 @@ public class ChunkFactory {
         unparsed.lighting = provider;
     }
 
-    public void runOnFactoryThread(Runnable r) {
-        executor.execute(r);
+    /**
+     * Run the given task on the parser thread responsible for the given chunk, after any work for that chunk that was
+     * submitted earlier.
+     */
+    public void runOnFactoryThread(CoordinateDim2D chunkPos, Runnable r) {
+        executorFor(chunkPos).execute(r);
+    }
+
+    /**
+     * Compute a value on the parser thread responsible for the given chunk, like {@link #runOnFactoryThread}. The
+     * future is cancelled if the parser threads are restarted before the value is computed.
+     */
+    public <T> CompletableFuture<T> supplyOnFactoryThread(CoordinateDim2D chunkPos, Supplier<T> supplier) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        executorFor(chunkPos).execute(new FutureTask<>(supplier::get) {
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    result.cancel(false);
+                    return;
+                }
+
+                try {
+                    result.complete(get());
+                } catch (InterruptedException | ExecutionException ex) {
+                    result.completeExceptionally(ex.getCause() == null ? ex : ex.getCause());
+                }
+            }
+        });
+        return result;
     }
 
     public void unloadChunk(CoordinateDim2D coord) {
@@ -213,7 +300,11 @@ public class ChunkFactory {
     }
 
     public int countQueuedChunks() {
-        return executor.getQueue().size();
+        int total = 0;
+        for (ThreadPoolExecutor executor : executors) {
+            total += executor.getQueue().size();
+        }
+        return total;
     }
 }
 
@@ -272,4 +363,4 @@ class TileEntity {
     public SpecificTag getTag() {
         return tag;
     }
-}
\ No newline at end of file
+}
@@ -1,10 +1,12 @@
 package game.data.chunk;
 
+import game.data.chunk.palette.BlockRegistry;
 import game.data.chunk.palette.BlockState;
-import game.data.chunk.palette.SimpleColor;
+import game.data.chunk.palette.GlobalPaletteProvider;
 import game.data.coordinates.Coordinate3D;
 import game.data.dimension.Dimension;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import org.apache.commons.lang3.mutable.MutableBoolean;
@@ -31,33 +33,52 @@ public class ChunkHeightHandler {
         this.caves = new List[Chunk.SECTION_WIDTH * Chunk.SECTION_WIDTH];
         for (int x = 0; x < Chunk.SECTION_WIDTH; x++) {
             for (int z = 0; z < Chunk.SECTION_WIDTH; z++) {
-                heightMapBelowBedrock[z << 4 | x] = computeHeight(x, z, true);
                 heightMap[z << 4 | x] = computeHeight(x, z, false);
+                heightMapBelowBedrock[z << 4 | x] = isNether() ? computeHeight(x, z, true) : heightMap[z << 4 | x];
                 caves[z << 4 | x] = findCaves(x, z);
             }
         }
     }
 
+    private boolean isNether() {
+        return c.location.getDimension().equals(Dimension.NETHER);
+    }
+
+    private int computeHeight(int x, int z, boolean ignoredBedrockAbove) {
+        return computeHeight(x, z, ignoredBedrockAbove, Integer.MAX_VALUE);
+    }
+
     /**
      * Computes the height at a given location. When we are in the nether, we want to try and make it clear where there
      * is an opening, and where there is not. For this we skip the first two chunks sections (these will be mostly solid
      * anyway, but may contain misleading caves). We then only count blocks after we've found some air space.
+     *
+     * Sections that have no solid blocks, or only solid blocks, are handled without looking at their blocks.
+     * @param fromY the highest y coordinate to look at, if it is known that there are no solid blocks above it
      */
-    private int computeHeight(int x, int z, boolean ignoredBedrockAbove) {
+    private int computeHeight(int x, int z, boolean ignoredBedrockAbove, int fromY) {
         // if we're in the Nether, we want to find an air block before we start counting blocks.
-        boolean isNether = ignoredBedrockAbove && c.location.getDimension().equals(Dimension.NETHER);
+        boolean isNether = ignoredBedrockAbove && isNether();
         int topSection = isNether ? 5 : c.getMaxBlockSection();
+        int startSection = Math.min(topSection, Math.floorDiv(fromY, Chunk.SECTION_HEIGHT));
 
         MutableBoolean foundAir = new MutableBoolean(!isNether);
 
-        for (int sectionY = topSection; sectionY >= c.getMinBlockSection(); sectionY--) {
+        for (int sectionY = startSection; sectionY >= c.getMinBlockSection(); sectionY--) {
             ChunkSection cs = c.getChunkSection(sectionY);
-            if (cs == null) {
+            ChunkSection.Solidity solidity = cs == null ? ChunkSection.Solidity.NONE : cs.getSolidity();
+            if (solidity == ChunkSection.Solidity.NONE) {
                 foundAir.setTrue();
                 continue;
             }
 
-            int height = cs.computeHeight(x, z, foundAir);
+            int top = sectionY == Math.floorDiv(fromY, Chunk.SECTION_HEIGHT) ? Math.floorMod(fromY, Chunk.SECTION_HEIGHT) : 15;
+            int height;
+            if (solidity == ChunkSection.Solidity.ALL) {
+                height = foundAir.isTrue() ? top : -1;
+            } else {
+                height = cs.computeHeight(x, z, top, foundAir);
+            }
 
             if (height < 0) { continue; }
 
@@ -71,44 +92,73 @@ public class ChunkHeightHandler {
     }
 
     /**
-     * We need to update the image only if the updated block was either the top layer, or above the top layer.
-     * Technically this does not take transparent blocks into account, but that's fine.
+     * Update the column of a block that changed. Returns true if the image of the chunk should be updated, which is
+     * only needed if the updated block was either the top layer, above the top layer, or in a cave.
      */
     public boolean updateHeight(Coordinate3D coords) {
-        if (coords.getY() >= heightAt(coords.getX(), coords.getZ())) {
-            recomputeHeight(coords.getX(), coords.getZ());
-
-            return true;
-        }
-        return false;
+        return recomputeColumn(coords.getX(), coords.getZ(), coords.getY(), coords.getY());
     }
 
     /**
-     * Recompute the heights in the given coordinate collection. We keep track of which heights actually changed, and
-     * only redraw if we have to.
+     * Recompute the heights in the given coordinate collection. Each column is only recomputed once, and only for the
+     * range of blocks that changed. We keep track of which heights actually changed, and only redraw if we have to.
      */
     public boolean recomputeHeights(Collection<Coordinate3D> toUpdate) {
-        boolean hasChanged = false;
+        int[] minY = new int[Chunk.SECTION_WIDTH * Chunk.SECTION_WIDTH];
+        int[] maxY = new int[Chunk.SECTION_WIDTH * Chunk.SECTION_WIDTH];
+        Arrays.fill(minY, Integer.MAX_VALUE);
+        Arrays.fill(maxY, Integer.MIN_VALUE);
+
         for (Coordinate3D pos : toUpdate) {
-            if (pos.getY() >= heightAt(pos.getX(), pos.getZ())) {
-                hasChanged |= recomputeHeight(pos.getX(), pos.getZ());
+            int index = pos.getZ() << 4 | pos.getX();
+            minY[index] = Math.min(minY[index], pos.getY());
+            maxY[index] = Math.max(maxY[index], pos.getY());
+        }
+
+        boolean hasChanged = false;
+        for (int index = 0; index < minY.length; index++) {
+            if (minY[index] <= maxY[index]) {
+                hasChanged |= recomputeColumn(index & 15, index >> 4, minY[index], maxY[index]);
             }
         }
         return hasChanged;
     }
 
-    private boolean recomputeHeight(int x, int z) {
-        int beforeAboveBedrock = heightMapBelowBedrock[z << 4 | x];
-        int before = heightMap[z << 4 | x];
+    /**
+     * Recompute a column after blocks between minY and maxY changed. As all blocks above the height are not solid,
+     * the height only changes if a block at or above it changed, and can then only be at or below the highest change.
+     * Changes at or above the height always need a redraw, as the top block may have changed even if the height
+     * did not.
+     */
+    private boolean recomputeColumn(int x, int z, int minY, int maxY) {
+        int index = z << 4 | x;
+        boolean hasChanged = false;
+
+        int before = heightMap[index];
+        if (maxY >= before) {
+            heightMap[index] = computeHeight(x, z, false, maxY);
+            hasChanged = true;
+        }
 
-        int afterAboveBedrock = computeHeight(x, z, true);
-        heightMapBelowBedrock[z << 4 | x] = afterAboveBedrock;
+        // in the nether this height depends on the blocks above it as well, so it is computed again fully
+        if (maxY >= heightMapBelowBedrock[index]) {
+            heightMapBelowBedrock[index] = isNether() ? computeHeight(x, z, true) : heightMap[index];
+            hasChanged = true;
+        }
 
-        int after = computeHeight(x, z, false);
-        heightMap[z << 4 | x] = after;
-        caves[z << 4 | x] = getCaves(x, z);
+        // caves are found below the surface, up to y=60
+        int limitBefore = caveLimit(before);
+        int limitAfter = caveLimit(heightMap[index]);
+        if (minY < Math.max(limitBefore, limitAfter) || limitBefore != limitAfter) {
+            List<Cave> beforeCaves = caves[index];
+            caves[index] = findCaves(x, z);
+            hasChanged |= !caves[index].equals(beforeCaves);
+        }
+        return hasChanged;
+    }
 
-        return before != after || beforeAboveBedrock != afterAboveBedrock;
+    private static int caveLimit(int surface) {
+        return Math.min(60, surface);
     }
 
     public int heightAt(int x, int z) {
@@ -119,31 +169,67 @@ public class ChunkHeightHandler {
         return belowBedrock ? heightMapBelowBedrock[z << 4 | x] : heightMap[z << 4 | x];
     }
 
+    /**
+     * Find the caves in a column by moving up from the bottom of the world to the surface. A cave starts at an empty
+     * block above a solid block, and ends at the next solid block. Sections that have no solid blocks, or only solid
+     * blocks, are skipped over in one step where possible.
+     */
     private List<Cave> findCaves(int x, int z) {
-        int surface = heightAt(x, z);
-        surface = Math.min(60, surface);
+        int surface = caveLimit(heightAt(x, z));
 
         List<Cave> caves = new ArrayList<>();
 
         int base = c.getMinBlockSection() * Chunk.SECTION_HEIGHT;
+        BlockRegistry globalPalette = GlobalPaletteProvider.getGlobalPalette(c.getDataVersion());
         BlockState state = null;
 
         Cave cave = null;
         boolean inCave = false;
-        for (int y = base; y < surface; y++) {
-            BlockState curState = c.getBlockStateAt(x, y, z);
-
-            boolean isEmpty = curState == null || curState.getColor() == SimpleColor.BLACK;
-            if (inCave && isEmpty) {
-                cave.addDepth();
-            } else if (inCave) {
+        for (int sectionY = c.getMinBlockSection(); sectionY * Chunk.SECTION_HEIGHT < surface; sectionY++) {
+            int sectionBase = sectionY * Chunk.SECTION_HEIGHT;
+            ChunkSection section = c.getChunkSection(sectionY);
+            ChunkSection.Solidity solidity = section == null ? ChunkSection.Solidity.NONE : section.getSolidity();
+            boolean isWholeSection = sectionBase >= base && sectionBase + Chunk.SECTION_HEIGHT <= surface;
+
+            if (isWholeSection && solidity == ChunkSection.Solidity.ALL) {
+                // any cave ends here, and the top block is the floor of the next one
                 inCave = false;
-            } else if (isEmpty && state != null) {
-                cave = new Cave(y, state);
-                caves.add(cave);
-                inCave = true;
+                state = globalPalette.getState(section.getNumericBlockStateAt(x, Chunk.SECTION_HEIGHT - 1, z));
+                continue;
+            }
+
+            // the states of empty blocks only matter if there is no solid block below them yet
+            if (isWholeSection && solidity == ChunkSection.Solidity.NONE && (inCave || state != null || section == null)) {
+                if (inCave) {
+                    cave.addDepth(Chunk.SECTION_HEIGHT);
+                } else if (state != null) {
+                    cave = new Cave(sectionBase, state);
+                    cave.addDepth(Chunk.SECTION_HEIGHT - 1);
+                    caves.add(cave);
+                    inCave = true;
+                }
+                state = null;
+                continue;
+            }
+
+            char[] states = section == null ? null : section.getDecodedStates();
+            int end = Math.min(sectionBase + Chunk.SECTION_HEIGHT, surface);
+            for (int y = Math.max(sectionBase, base); y < end; y++) {
+                int stateId = states == null ? 0 : states[ChunkSection.getBlockIndex(x, y - sectionBase, z)];
+                BlockState curState = stateId == 0 ? null : globalPalette.getState(stateId);
+
+                boolean isEmpty = curState == null || !curState.isSolid();
+                if (inCave && isEmpty) {
+                    cave.addDepth();
+                } else if (inCave) {
+                    inCave = false;
+                } else if (isEmpty && state != null) {
+                    cave = new Cave(y, state);
+                    caves.add(cave);
+                    inCave = true;
+                }
+                state = curState;
             }
-            state = curState;
         }
 
         return caves;
@@ -6,25 +6,26 @@ import game.data.chunk.palette.SimpleColor;
 import game.data.chunk.palette.blending.IBlendEquation;
 import game.data.coordinates.CoordinateDim2D;
 import gui.images.ImageMode;
-import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
-import javafx.scene.image.Image;
-import javafx.scene.image.WritableImage;
-import javafx.scene.image.WritablePixelFormat;
 
 /**
- * Handles creating images from a Chunk.
+ * Handles creating images from a Chunk. Images are not drawn right away, instead the chunk is marked as changed and
+ * the {@link ChunkImageScheduler} decides when to draw it.
  */
 public class ChunkImageFactory {
     private final List<CoordinateDim2D> registeredCallbacks = new ArrayList<>(2);
     private final Runnable requestImage = this::requestImage;
-    ;
-    private BiConsumer<Map<ImageMode, Image>, Boolean> onImageDone;
+    private BiConsumer<Map<ImageMode, int[]>, Boolean> onImageDone;
     private Runnable onSaved;
 
+    // bits of the image modes that do not show the current state of the chunk, see ChunkImageScheduler.modeBit
+    private final AtomicInteger outdatedModes = new AtomicInteger();
+
     private final Chunk c;
     private Chunk south;
     private Chunk north;
@@ -47,9 +48,11 @@ public class ChunkImageFactory {
     }
 
     /**
-     * Set handler for when the image has been created.
+     * Set handler for when the image has been created. The images are ARGB pixels in buffers owned by the scheduler,
+     * the handler should give them back with {@link ChunkImageScheduler#releaseBuffer(int[])} once it is done with
+     * them.
      */
-    public void onComplete(BiConsumer<Map<ImageMode, Image>, Boolean> onComplete) {
+    public void onComplete(BiConsumer<Map<ImageMode, int[]>, Boolean> onComplete) {
         this.onImageDone = onComplete;
     }
 
@@ -68,7 +71,7 @@ public class ChunkImageFactory {
         WorldManager.getInstance().registerChunkLoadCallback(coordinates, requestImage);
     }
 
-    public void unload() {
+    public synchronized void unload() {
         for (CoordinateDim2D coords : registeredCallbacks) {
             WorldManager.getInstance().deregisterChunkLoadCallback(coords, requestImage);
         }
@@ -112,7 +115,11 @@ public class ChunkImageFactory {
     }
 
 
-    public void requestImage() {
+    /**
+     * Synchronized since chunks are parsed on several threads, so adjacent chunks may request a redraw at the same
+     * time.
+     */
+    public synchronized void requestImage() {
         // this method is only called either the first time by the UI, or subsequently by callbacks
         // when adjacent chunks load in. This means that if we only had a single callback registered
         // we don't need to worry about de-registering it anymore.
@@ -120,53 +127,69 @@ public class ChunkImageFactory {
             registeredCallbacks.clear();
         }
 
-        generateImages();
+        markChanged();
     }
 
-    private SimpleColor getColorCave(int x, int z) {
+    /**
+     * Mark all images of this chunk as outdated, so that they are drawn again.
+     */
+    public void markChanged() {
+        outdatedModes.set(ChunkImageScheduler.ALL_MODES);
+        WorldManager.getInstance().getChunkImageScheduler().schedule(this);
+    }
+
+    /**
+     * Take the outdated modes out of the given modes, as they are about to be drawn.
+     * @return the bits of the modes to draw
+     */
+    int takeOutdatedModes(int modes) {
+        return outdatedModes.getAndUpdate(outdated -> outdated & ~modes) & modes;
+    }
+
+    boolean hasOutdatedModes() {
+        return outdatedModes.get() != 0;
+    }
+
+    private int getColorCave(int x, int z) {
         List<Cave> caves = c.getChunkHeightHandler().getCaves(x, z);
 
         if (caves.isEmpty()) {
-            return new SimpleColor(0);
+            return SimpleColor.BLACK;
         }
 
-        SimpleColor c = caves.get(0).getColor();
+        int c = caves.get(0).getColor();
 
         for (int i = 1; i < caves.size(); i++) {
-            SimpleColor next = caves.get(i).getColor();
+            int next = caves.get(i).getColor();
 
-            c = c.blendWith(next, 1.0 / (i + 1));
+            c = SimpleColor.blend(c, next, 1.0 / (i + 1));
         }
 
         return c;
     }
 
-    private SimpleColor getColorSurface(int x, int z, boolean useIgnoredBedrock) {
+    private int getColorSurface(int x, int z, boolean useIgnoredBedrock) {
         int y = heightAt(x, z, useIgnoredBedrock);
-        BlockState blockState = c.getBlockStateAt(x, y, z);
+        BlockState blockState = c.getDecodedBlockStateAt(x, y, z);
 
         if (blockState == null) {
-            return new SimpleColor(0);
+            return SimpleColor.BLACK;
         }
 
-        SimpleColor color = shadeTransparent(blockState, x, y, z);
+        int color = shadeTransparent(blockState, x, y, z);
 
-        color = color.shaderMultiply(getColorShader(x, y, z, useIgnoredBedrock));
+        color = SimpleColor.multiply(color, getColorShader(x, y, z, useIgnoredBedrock));
 
         // mark new chunks in a red-ish outline
         if (c.isNewChunk() && ((x == 0 || x == 15) || (z == 0 || z == 15))) {
-            color = color.highlight();
+            color = SimpleColor.highlight(color);
         }
 
         return color;
     }
 
 
-    private Image createImage(boolean isSurface) {
-        WritableImage i = new WritableImage(Chunk.SECTION_WIDTH, Chunk.SECTION_WIDTH);
-        int[] output = new int[Chunk.SECTION_WIDTH * Chunk.SECTION_WIDTH];
-        WritablePixelFormat<IntBuffer> format = WritablePixelFormat.getIntArgbInstance();
-
+    private void drawImage(boolean isSurface, int[] output) {
         // setup north/south chunks
         setupAdjacentChunks();
         drawnBefore = true;
@@ -176,39 +199,44 @@ public class ChunkImageFactory {
             for (int x = 0; x < Chunk.SECTION_WIDTH; x++) {
                 for (int z = 0; z < Chunk.SECTION_WIDTH; z++) {
 
-                    SimpleColor color = isSurface ? getColorSurface(x, z, false) : isNether ? getColorSurface(x, z, true) : getColorCave(x, z);
+                    int color = isSurface ? getColorSurface(x, z, false) : isNether ? getColorSurface(x, z, true) : getColorCave(x, z);
 
-                    output[x + Chunk.SECTION_WIDTH * z] = color.toARGB();
+                    output[x + Chunk.SECTION_WIDTH * z] = color;
                 }
             }
-            i.getPixelWriter().setPixels(
-                0, 0,
-                Chunk.SECTION_WIDTH, Chunk.SECTION_WIDTH,
-                format, output, 0, Chunk.SECTION_WIDTH
-            );
         } catch (Exception ex) {
             System.out.println("Unable to draw picture for chunk at " + c.location);
             ex.printStackTrace();
             clearAdjacentChunks();
         }
-        return i;
     }
 
 
 
 
     /**
-     * Generate and return the overview image for this chunk.
+     * Generate the overview images of the given modes for this chunk. The blocks of the chunk are decoded while
+     * computing the height map and drawing, afterwards they are released again as chunks may be kept around for a
+     * long time. Called by the scheduler's workers, synchronized as a chunk may be drawn again before the previous
+     * drawing has finished.
      */
-    void generateImages() {
+    synchronized void generateImages(int modes) {
         if (this.onImageDone != null) {
-            Map<ImageMode, Image> map = Map.of(
-                ImageMode.NORMAL, createImage(true),
-                ImageMode.CAVES, createImage(false)
-            );
+            ChunkImageScheduler scheduler = WorldManager.getInstance().getChunkImageScheduler();
+            Map<ImageMode, int[]> map = new EnumMap<>(ImageMode.class);
+            for (ImageMode mode : ImageMode.values()) {
+                if ((modes & ChunkImageScheduler.modeBit(mode)) == 0) {
+                    continue;
+                }
+
+                int[] buffer = scheduler.obtainBuffer();
+                drawImage(mode == ImageMode.NORMAL, buffer);
+                map.put(mode, buffer);
+            }
             this.onImageDone.accept(map, c.isSaved());
         }
         clearAdjacentChunks();
+        c.releaseDecodedStates();
     }
 
     /**
@@ -238,11 +266,11 @@ public class ChunkImageFactory {
         }
     }
 
-    private SimpleColor shadeTransparent(BlockState blockState, int x, int y, int z) {
-        SimpleColor color = blockState.getColor();
+    private int shadeTransparent(BlockState blockState, int x, int y, int z) {
+        int color = blockState.getColor();
         BlockState next;
         for (int level = y - 1; blockState.isTransparent() && level >= 0; level--) {
-            next = c.getBlockStateAt(x, level, z);
+            next = c.getDecodedBlockStateAt(x, level, z);
 
             if (next == blockState) {
                 continue;
@@ -252,7 +280,7 @@ public class ChunkImageFactory {
 
             IBlendEquation equation = blockState.getTransparencyEquation();
             double ratio = equation.getRatio(y - level);
-            color = color.blendWith(next.getColor(), ratio);
+            color = SimpleColor.blend(color, next.getColor(), ratio);
 
             // stop once the contribution to the colour is less than 10%
             if (ratio > 0.90) {
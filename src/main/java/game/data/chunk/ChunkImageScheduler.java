@@ -0,0 +1,141 @@
+package game.data.chunk;
+
+import gui.images.ImageMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static util.ExceptionHandling.attempt;
+
+/**
+ * Schedules drawing of chunk images. Chunks that change are only marked as changed, once per frame the changed chunks
+ * are drawn on a small pool of workers. A chunk that changes many times within a frame, for example because of
+ * redstone, is only drawn once.
+ *
+ * Only the image mode that is currently shown is drawn every frame. Images for the other modes are drawn less often,
+ * or as soon as their mode is shown. Until then, chunks that only have outdated images for other modes are kept
+ * aside, so that frames do not have to go through them.
+ */
+public class ChunkImageScheduler {
+    private static final long FRAME_TIME = 50;
+    private static final int FRAMES_PER_HIDDEN_DRAW = 100;
+    private static final int WORKERS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int MAX_BUFFERS = 256;
+    private static final int BUFFER_SIZE = Chunk.SECTION_WIDTH * Chunk.SECTION_WIDTH;
+    static final int ALL_MODES = (1 << ImageMode.values().length) - 1;
+
+    private final Set<ChunkImageFactory> changed;
+    private final Set<ChunkImageFactory> hidden;
+    private final BlockingQueue<int[]> buffers;
+    private volatile ImageMode activeMode = ImageMode.NORMAL;
+
+    private ScheduledExecutorService frameService;
+    private ExecutorService workers;
+    private int frame;
+
+    public ChunkImageScheduler() {
+        this.changed = ConcurrentHashMap.newKeySet();
+        this.hidden = ConcurrentHashMap.newKeySet();
+        this.buffers = new ArrayBlockingQueue<>(MAX_BUFFERS);
+    }
+
+    static int modeBit(ImageMode mode) {
+        return 1 << mode.ordinal();
+    }
+
+    /**
+     * Set the image mode that is currently shown, images for this mode are drawn every frame.
+     */
+    public void setActiveMode(ImageMode mode) {
+        if (this.activeMode == mode) {
+            return;
+        }
+
+        this.activeMode = mode;
+        drainHidden();
+    }
+
+    /**
+     * Move the chunks with outdated images for modes that were not shown, so that they are drawn in the next frame.
+     */
+    private void drainHidden() {
+        for (ChunkImageFactory factory : hidden) {
+            if (hidden.remove(factory)) {
+                changed.add(factory);
+            }
+        }
+    }
+
+    void schedule(ChunkImageFactory factory) {
+        changed.add(factory);
+        start();
+    }
+
+    /**
+     * Threads are only started once the first image is requested, as there are no images to draw without the GUI.
+     */
+    private synchronized void start() {
+        if (frameService != null) {
+            return;
+        }
+
+        AtomicInteger workerCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(WORKERS, r -> {
+            Thread t = new Thread(r, "Chunk Image Worker " + workerCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        frameService = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Chunk Image Scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        // an exception would cancel all later frames, so it is caught and the next frame is drawn as usual
+        frameService.scheduleWithFixedDelay(
+                () -> attempt(this::drawFrame), FRAME_TIME, FRAME_TIME, TimeUnit.MILLISECONDS);
+    }
+
+    private void drawFrame() {
+        boolean drawHidden = ++frame % FRAMES_PER_HIDDEN_DRAW == 0;
+        int modes = drawHidden ? ALL_MODES : modeBit(activeMode);
+        if (drawHidden) {
+            drainHidden();
+        }
+
+        // a chunk is removed before taking its modes, so that changes made in the meantime schedule it again
+        List<ChunkImageFactory> batch = new ArrayList<>(changed);
+        for (ChunkImageFactory factory : batch) {
+            changed.remove(factory);
+
+            int toDraw = factory.takeOutdatedModes(modes);
+            if (factory.hasOutdatedModes()) {
+                hidden.add(factory);
+            }
+
+            if (toDraw != 0) {
+                workers.execute(() -> factory.generateImages(toDraw));
+            }
+        }
+    }
+
+    /**
+     * Get a buffer to draw a chunk image into. Buffers should be given back using {@link #releaseBuffer(int[])} once
+     * their contents have been copied.
+     */
+    int[] obtainBuffer() {
+        int[] buffer = buffers.poll();
+        return buffer == null ? new int[BUFFER_SIZE] : buffer;
+    }
+
+    public void releaseBuffer(int[] buffer) {
+        buffers.offer(buffer);
+    }
+}
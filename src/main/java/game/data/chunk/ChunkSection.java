@@ -2,6 +2,7 @@ package game.data.chunk;
 
 import game.data.chunk.palette.BlockRegistry;
 import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
 
 import org.apache.commons.lang3.mutable.MutableBoolean;
 
@@ -18,9 +19,30 @@ import se.llbit.nbt.CompoundTag;
 
 /**
  * Class to hold a 16 block tall chunk section.
+ *
+ * Blocks are read without locking: a read is retried under a read lock only if a block was changed while reading.
+ * Every change to the blocks or the palette is made while holding the write lock, so that a read that was not
+ * interrupted has seen blocks and a palette that belong together.
+ *
+ * Code that scans the whole section can instead get all blocks at once through {@link #getDecodedStates()}, which
+ * is unpacked in one go and kept until the blocks change. Code that only cares about which blocks are solid can often
+ * skip the section entirely using {@link #getSolidity()}.
  */
 public abstract class ChunkSection {
+    private static final int BLOCKS_PER_SECTION = 16 * 16 * 16;
+
+    /**
+     * Whether none, all or some of the blocks in a section are solid.
+     */
+    public enum Solidity { NONE, ALL, MIXED }
+
     protected final Chunk chunk;
+    private final StampedLock lock = new StampedLock();
+
+    // global block state IDs, indexed by getBlockIndex. Only set while holding the read lock, so that a decode that
+    // started before a block changed cannot overwrite the invalidation.
+    private volatile char[] decodedStates;
+    private volatile Solidity solidity;
 
     protected long[] blocks;
     protected byte[] blockLight;
@@ -58,7 +80,28 @@ public abstract class ChunkSection {
     }
 
     public void setBlocks(long[] blocks) {
-        this.blocks = blocks;
+        long stamp = lock.writeLock();
+        try {
+            this.blocks = blocks;
+            decodedStates = null;
+            solidity = null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Replace the palette. The blocks should be replaced as well if they use different indices.
+     */
+    protected void setPalette(Palette palette) {
+        long stamp = lock.writeLock();
+        try {
+            this.palette = palette;
+            decodedStates = null;
+            solidity = null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
     }
 
     /**
@@ -87,15 +130,48 @@ public abstract class ChunkSection {
         return y * 16 * 16 + z * 16 + x;
     }
 
+    /**
+     * Approximate number of bytes retained by this section, used to keep memory usage within the budget.
+     */
+    public long estimateMemory() {
+        long size = 64;
+        if (blocks != null) {
+            size += blocks.length * 8L;
+        }
+        if (blockLight != null) {
+            size += blockLight.length;
+        }
+        if (skyLight != null) {
+            size += skyLight.length;
+        }
+        if (palette != null) {
+            size += palette.size() * 4L;
+        }
+        if (decodedStates != null) {
+            size += BLOCKS_PER_SECTION * 2L;
+        }
+        return size;
+    }
+
     public byte getY() {
         return y;
     }
 
     public int computeHeight(int x, int z, MutableBoolean foundAir) {
+        return computeHeight(x, z, 15, foundAir);
+    }
+
+    /**
+     * Find the highest solid block in the column at or below the given y coordinate within the section. If foundAir
+     * is false, solid blocks are only counted once a non-solid block was found.
+     * @return the y coordinate within the section, or -1 if there is none
+     */
+    public int computeHeight(int x, int z, int fromY, MutableBoolean foundAir) {
         BlockRegistry globalPalette = GlobalPaletteProvider.getGlobalPalette(getDataVersion());
+        char[] states = getDecodedStates();
 
-        for (int y = 15; y >= 0 ; y--) {
-            int blockStateId = getNumericBlockStateAt(x, y, z);
+        for (int y = fromY; y >= 0 ; y--) {
+            int blockStateId = states[getBlockIndex(x, y, z)];
 
             BlockState state = globalPalette.getState(blockStateId);
 
@@ -113,19 +189,162 @@ public abstract class ChunkSection {
     }
 
     public int getNumericBlockStateAt(int x, int y, int z) {
+        char[] decoded = decodedStates;
+        if (decoded != null) {
+            return decoded[getBlockIndex(x, y, z)];
+        }
         return palette.stateFromId(getPaletteIndex(x, y, z));
     }
 
+    /**
+     * Get the global block state IDs of all blocks in this section, indexed by {@link #getBlockIndex}. The blocks are
+     * unpacked all at once, which is much faster than reading them one at a time when scanning the whole section. The
+     * array is kept until the blocks change or it is released, and should not be modified.
+     */
+    public char[] getDecodedStates() {
+        char[] decoded = decodedStates;
+        if (decoded != null) {
+            return decoded;
+        }
+
+        long stamp = lock.readLock();
+        try {
+            decoded = decodedStates;
+            if (decoded == null) {
+                decoded = new char[BLOCKS_PER_SECTION];
+                decodeStates(decoded);
+                decodedStates = decoded;
+            }
+            return decoded;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Unpack the global block state IDs of all blocks, called while holding the read lock.
+     */
+    protected void decodeStates(char[] out) {
+        long[] blocks = this.blocks;
+        int bitsPerBlock = palette.getBitsPerBlock();
+        if (blocks == null || blocks.length == 0 || bitsPerBlock == 0) {
+            Arrays.fill(out, (char) palette.stateFromId(0));
+            return;
+        }
+
+        getLocationEncoder().getAll(blocks, bitsPerBlock, out);
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (char) palette.stateFromId(out[i]);
+        }
+    }
+
+    /**
+     * Find out if none, all or some of the blocks are solid from the states in the palette, without looking at the
+     * blocks themselves. Kept until the blocks change, like the decoded blocks.
+     */
+    public Solidity getSolidity() {
+        Solidity result = solidity;
+        if (result != null) {
+            return result;
+        }
+
+        long stamp = lock.readLock();
+        try {
+            result = solidity;
+            if (result == null) {
+                result = computeSolidity();
+                solidity = result;
+            }
+            return result;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Compute the solidity from the palette, called while holding the read lock. If the palette does not list the
+     * states used, the section may contain anything.
+     */
+    protected Solidity computeSolidity() {
+        int[] states = palette == null ? null : palette.getStates();
+        if (states == null) {
+            return Solidity.MIXED;
+        }
+
+        BlockRegistry globalPalette = GlobalPaletteProvider.getGlobalPalette(getDataVersion());
+        boolean anySolid = false;
+        boolean allSolid = true;
+        for (int stateId : states) {
+            BlockState state = globalPalette.getState(stateId);
+            boolean isSolid = state != null && state.isSolid();
+
+            anySolid |= isSolid;
+            allSolid &= isSolid;
+        }
+
+        if (allSolid) {
+            return Solidity.ALL;
+        }
+        return anySolid ? Solidity.MIXED : Solidity.NONE;
+    }
+
+    /**
+     * Drop the decoded blocks to free up memory, they will be decoded again when needed.
+     */
+    public void releaseDecodedStates() {
+        decodedStates = null;
+    }
+
+    /**
+     * Drop the decoded blocks after the blocks were replaced. Should not be called while holding the write lock.
+     */
+    protected void invalidateDecodedStates() {
+        long stamp = lock.writeLock();
+        try {
+            decodedStates = null;
+            solidity = null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
     public int getPaletteIndex(int x, int y, int z) {
-        return getPaletteIndex(x, y, z, palette.getBitsPerBlock());
+        int index = getBlockIndex(x, y, z);
+
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            // the blocks and palette may be replaced while reading them, in which case they may not match. The index
+            // is checked before reading, and the result is only used if nothing changed in the meantime.
+            long[] blocks = this.blocks;
+            int bitsPerBlock = this.palette.getBitsPerBlock();
+
+            if (blocks != null && getLocationEncoder().fits(blocks, index, bitsPerBlock)) {
+                int paletteIndex = getLocationEncoder().get(blocks, index, bitsPerBlock);
+                if (lock.validate(stamp)) {
+                    return paletteIndex;
+                }
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            return readPaletteIndex(index);
+        } finally {
+            lock.unlockRead(stamp);
+        }
     }
 
-    private synchronized int getPaletteIndex(int x, int y, int z, int bitsPerBlock) {
-        if (blocks.length == 0 || bitsPerBlock == 0) {
+    /**
+     * Read the palette index without any locking, only used directly while holding a lock.
+     */
+    private int readPaletteIndex(int index) {
+        long[] blocks = this.blocks;
+        int bitsPerBlock = palette.getBitsPerBlock();
+        if (blocks == null || blocks.length == 0 || bitsPerBlock == 0) {
             return 0;
         }
 
-        return getLocationEncoder().setTo(x, y, z, bitsPerBlock).fetch(blocks);
+        return getLocationEncoder().get(blocks, index, bitsPerBlock);
     }
 
     public void write(PacketBuilder packet) {
@@ -157,21 +376,44 @@ public abstract class ChunkSection {
         return result;
     }
 
-    public synchronized void setBlockAt(Coordinate3D coords, int blockStateId) {
+    public void setBlockAt(Coordinate3D coords, int blockStateId) {
+        long stamp = lock.writeLock();
+        try {
+            writeBlockAt(coords, blockStateId);
+            decodedStates = null;
+            solidity = null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Change a block, called while holding the write lock. As the lock is not reentrant, this should not read blocks
+     * through getPaletteIndex.
+     */
+    protected void writeBlockAt(Coordinate3D coords, int blockStateId) {
         int index = palette.getIndexFor(this, blockStateId);
 
-        getLocationEncoder().setTo(
-                coords.getX(), coords.getY(), coords.getZ(),
-                palette.getBitsPerBlock()
-        );
-        getLocationEncoder().write(blocks, index);
+        int blockIndex = getBlockIndex(coords.getX(), coords.getY(), coords.getZ());
+        getLocationEncoder().set(blocks, blockIndex, palette.getBitsPerBlock(), index);
         WorldManager.getInstance().touchChunk(chunk);
     }
 
     /**
-     * When the bits per block increases, we must rewrite the blocks array.
+     * When the bits per block increases, we must rewrite the blocks array. This happens while a block is changed, so it
+     * must be called while holding the write lock (i.e. from writeBlockAt).
      */
-    public synchronized void resizeBlocksIfRequired(int newBitsPerBlock) {
+    public final void resizeBlocksIfRequired(int newBitsPerBlock) {
+        if (!lock.isWriteLocked()) {
+            throw new IllegalStateException("Blocks can only be resized while changing a block");
+        }
+        resizeBlocks(newBitsPerBlock);
+    }
+
+    /**
+     * Rewrite the blocks array for the new bits per block, called while holding the write lock.
+     */
+    protected void resizeBlocks(int newBitsPerBlock) {
         int newSize = newBitsPerBlock * 64;
         long[] newBlocks = new long[newSize];
 
@@ -183,16 +425,13 @@ public abstract class ChunkSection {
         copyBlocks(newBlocks, newBitsPerBlock);
     }
 
-    public synchronized void copyBlocks(long[] newBlocks, int newBitsPerBlock) {
+    /**
+     * Copy the blocks into an array with a different bits per block, called while holding the write lock.
+     */
+    protected void copyBlocks(long[] newBlocks, int newBitsPerBlock) {
         BlockLocationEncoder locationHelper = getLocationEncoder();
-        for (int x = 0; x < 16; x++) {
-            for (int y = 0; y < 16; y++) {
-                for (int z = 0; z < 16; z++) {
-                    int index = getPaletteIndex(x, y, z);
-
-                    locationHelper.setTo(x, y, z, newBitsPerBlock).write(newBlocks, index);
-                }
-            }
+        for (int i = 0; i < 16 * 16 * 16; i++) {
+            locationHelper.set(newBlocks, i, newBitsPerBlock, readPaletteIndex(i));
         }
         this.blocks = newBlocks;
     }
@@ -200,14 +439,51 @@ public abstract class ChunkSection {
     public byte[] getSkyLight() { return skyLight; }
     public byte[] getBlockLight() { return blockLight; }
 
+    /**
+     * Clear all blocks.
+     */
     public void resetBlocks() {
+        long stamp = lock.writeLock();
+        try {
+            clearBlocks();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Clear all blocks, called while holding the write lock.
+     */
+    protected void clearBlocks() {
         this.blocks = new long[256];
         this.palette = Palette.empty();
+        this.decodedStates = null;
+        this.solidity = null;
     }
 
+    /**
+     * Replace the blocks of the other section with the blocks of this section.
+     */
     public void copyTo(ChunkSection other) {
-        other.blocks = this.blocks;
-        other.palette = this.palette;
+        long[] blocks;
+        Palette palette;
+        long stamp = lock.readLock();
+        try {
+            blocks = this.blocks;
+            palette = this.palette;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+
+        stamp = other.lock.writeLock();
+        try {
+            other.blocks = blocks;
+            other.palette = palette;
+            other.decodedStates = null;
+            other.solidity = null;
+        } finally {
+            other.lock.unlockWrite(stamp);
+        }
     }
 
     @Override
@@ -1,19 +1,17 @@
 package game.data.chunk.palette;
 
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonDeserializer;
-import config.Config;
+import com.google.gson.Gson;
 
-import java.awt.*;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.HashMap;
 
 /**
- * Holds a map of block colors for colouring the overview map.
+ * Holds a map of block colors for colouring the overview map. Colours are looked up by name only when block states
+ * are created, see {@link BlockState#getColor()}.
  */
 public class BlockColors {
-    private HashMap<String, SimpleColor> colors;
+    private HashMap<String, Integer> colors;
 
     private BlockColors() { }
 
@@ -24,44 +22,43 @@ public class BlockColors {
         String file = "block-colors.json";
         InputStream input = BlockColors.class.getClassLoader().getResourceAsStream(file);
 
-        GsonBuilder builder = new GsonBuilder();
-        builder.registerTypeAdapter(SimpleColor.class, (JsonDeserializer<SimpleColor>)
-                (el, type, ctx) -> new SimpleColor(el.getAsInt()));
-
-        return builder.create().fromJson(new InputStreamReader(input), BlockColors.class);
+        return new Gson().fromJson(new InputStreamReader(input), BlockColors.class);
     }
 
     /**
      * Get a block color from a given block name.
+     * @return the colour in ARGB format, or {@link SimpleColor#NONE} if there is no colour for this block.
      */
-    public SimpleColor getColor(String key) {
-        SimpleColor col = colors.get(key);
+    public int getColor(String key) {
+        Integer col = colors.get(key);
         if (col != null) {
-            return col;
+            return SimpleColor.fromRGB(col);
         }
 
         // handle carpet blocks
         if (key.endsWith("_carpet")) {
-            return colors.getOrDefault(key.replace("_carpet", "_wool"), SimpleColor.BLACK);
+            return lookup(key.replace("_carpet", "_wool"));
         }
 
         // handle stairs & slabs, the original block can have various different name structures
         String suffix = key.endsWith("_slab") ? "_slab" : key.endsWith("_stairs") ? "_stairs" : null;
-        if (suffix == null) { return SimpleColor.BLACK; }
+        if (suffix == null) { return SimpleColor.NONE; }
 
-        col = colors.get(key.replace(suffix, ""));
-        if (col != null) { return col; }
+        int color = lookup(key.replace(suffix, ""));
+        if (SimpleColor.isKnown(color)) { return color; }
 
-        col = colors.get(key.replace(suffix, "_block"));
-        if (col != null) { return col; }
+        color = lookup(key.replace(suffix, "_block"));
+        if (SimpleColor.isKnown(color)) { return color; }
 
-        col = colors.get(key.replace(suffix, "_planks"));
-        if (col != null) { return col; }
+        color = lookup(key.replace(suffix, "_planks"));
+        if (SimpleColor.isKnown(color)) { return color; }
 
-        col = colors.get(key.replace(suffix, "s"));
-        if (col != null) { return col; }
+        return lookup(key.replace(suffix, "s"));
+    }
 
-        return SimpleColor.BLACK;
+    private int lookup(String key) {
+        Integer col = colors.get(key);
+        return col == null ? SimpleColor.NONE : SimpleColor.fromRGB(col);
     }
 
     /**
@@ -72,6 +69,6 @@ public class BlockColors {
         if (key.endsWith("air")) {
             return false;
         }
-        return getColor(key) != SimpleColor.BLACK;
+        return SimpleColor.isKnown(getColor(key));
     }
-}
\ No newline at end of file
+}
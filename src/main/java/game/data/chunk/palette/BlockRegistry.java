@@ -11,27 +11,35 @@ import java.util.*;
 /**
  * Holds a block registry as introduced in 1.13. These are read from a simple JSON file that is generated by the
  * Minecraft server.jar. More details are in the readme file in the resource folder.
+ *
+ * States are stored in an array indexed by their numeric ID, as they are looked up for nearly every block that is
+ * read or drawn. Looking up states from NBT goes through the block name first, then through the values of each of
+ * its properties.
  */
 public class BlockRegistry implements Registry {
     private static final HashMap<String, JsonPrimitive> EMPTY_MAP = new HashMap<>();
-    private final Map<Integer, BlockState> states;
-    private final Map<BlockStateIdentifier, BlockState> nameStates;
+    private volatile BlockState[] states;
+    private int stateCount;
+    private final Map<String, BlockStateVariants> nameStates;
+    private final BlockColors colors;
     private String version;
 
     /**
      * Instantiate a block registry using the given Minecraft version.
      * @param version the Minecraft version (e.g. 1.12.2), NOT protocol version
+     * @param colors the block colours used to resolve the colour of each state
      */
-    public BlockRegistry(String version) {
-        this(BlockRegistry.class.getClassLoader().getResourceAsStream("blocks-" + version + ".json"));
+    public BlockRegistry(String version, BlockColors colors) {
+        this(BlockRegistry.class.getClassLoader().getResourceAsStream("blocks-" + version + ".json"), colors);
     }
 
     /**
      * Instantiate a block registry using the input stream (to a JSON file).
      */
-    public BlockRegistry(InputStream input) {
-        this.states = new HashMap<>();
+    public BlockRegistry(InputStream input, BlockColors colors) {
+        this.states = new BlockState[0];
         this.nameStates = new HashMap<>();
+        this.colors = colors;
 
         // if the file doesn't exist, there is no palette for this version.
         if (input == null) { return; }
@@ -42,14 +50,19 @@ public class BlockRegistry implements Registry {
                 state.properties = EMPTY_MAP;
             }
 
-            CompoundTag properties = state.getProperties();
-
-            addBlockState(new BlockState(name, state.id, properties));
+            addBlock(name, state.id, state.getProperties());
         }));
     }
 
+    /**
+     * Create a block state with the colours of this registry and add it.
+     */
+    public void addBlock(String name, int id, CompoundTag properties) {
+        addBlockState(new BlockState(name, id, properties, colors));
+    }
+
     public int getRequiredBits() {
-        return (int) Math.ceil(Math.log(states.size()) / Math.log(2));
+        return (int) Math.ceil(Math.log(stateCount) / Math.log(2));
     }
 
     /**
@@ -57,7 +70,11 @@ public class BlockRegistry implements Registry {
      */
     @Override
     public BlockState getState(int key) {
-        return states.getOrDefault(key, null);
+        BlockState[] states = this.states;
+        if (key < 0 || key >= states.length) {
+            return null;
+        }
+        return states[key];
     }
 
     /**
@@ -65,12 +82,21 @@ public class BlockRegistry implements Registry {
      */
     @Override
     public BlockState getDefaultState() {
-        return states.values().iterator().next();
+        for (BlockState state : states) {
+            if (state != null) {
+                return state;
+            }
+        }
+        throw new NoSuchElementException("Block registry is empty");
     }
 
     @Override
     public BlockState getState(SpecificTag nbt) {
-        return nameStates.get(new BlockStateIdentifier(nbt));
+        BlockStateVariants variants = nameStates.get(nbt.get("Name").stringValue());
+        if (variants == null) {
+            return null;
+        }
+        return variants.get(nbt.get("Properties"));
     }
 
     @Override
@@ -82,47 +108,123 @@ public class BlockRegistry implements Registry {
         return state.getNumericId();
     }
 
-    public void addBlockState(BlockState state) {
+    public synchronized void addBlockState(BlockState state) {
+        int id = state.getNumericId();
+
         // skip existing states, these should be the same but might have different names
-        if (states.containsKey(state.getNumericId())) {
+        if (getState(id) != null) {
             return;
         }
 
-        states.put(state.getNumericId(), state);
-        nameStates.put(new BlockStateIdentifier(state.getName(), state.getProperties()), state);
+        BlockState[] states = this.states;
+        if (id >= states.length) {
+            states = Arrays.copyOf(states, Math.max(id + 1, states.length * 3 / 2));
+        }
+        states[id] = state;
+        this.states = states;
+        stateCount++;
+
+        nameStates.computeIfAbsent(state.getName(), name -> new BlockStateVariants(state.getProperties())).add(state);
     }
 }
 
-class BlockStateIdentifier {
-    String name;
-    CompoundTag properties;
+/**
+ * All states of a single block. These are found by going through the block's properties one at a time, each level
+ * holding the values seen for that property. Blocks only have a few values per property, so they are searched
+ * linearly.
+ */
+class BlockStateVariants {
+    private final String[] propertyNames;
+    private final Node root;
 
-    public BlockStateIdentifier(SpecificTag t) {
-        this(t.get("Name").stringValue(), t.get("Properties").asCompound());
+    public BlockStateVariants(CompoundTag properties) {
+        List<String> names = new ArrayList<>();
+        for (NamedTag property : properties) {
+            names.add(property.name);
+        }
+        this.propertyNames = names.toArray(new String[0]);
+        this.root = new Node();
     }
 
-    public BlockStateIdentifier(String name, CompoundTag properties) {
-        this.name = name;
-        this.properties = properties;
+    /**
+     * Add a state, unless it has the same properties as an existing one or the properties do not match those of the
+     * other states of this block.
+     */
+    public void add(BlockState state) {
+        Node node = root;
+        for (String name : propertyNames) {
+            String value = valueOf(state.getProperties().get(name));
+            if (value == null) {
+                return;
+            }
+            node = node.getOrAdd(value);
+        }
 
+        if (node.state == null) {
+            node.state = state;
+        }
     }
 
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-
-        BlockStateIdentifier that = (BlockStateIdentifier) o;
+    /**
+     * Find the state with the given properties.
+     * @param properties compound tag of properties, or an error tag if the block has none
+     */
+    public BlockState get(Tag properties) {
+        Node node = root;
+        for (String name : propertyNames) {
+            String value = valueOf(properties.get(name));
+            if (value == null) {
+                return null;
+            }
+            node = node.get(value);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node.state;
+    }
 
-        if (!Objects.equals(name, that.name)) return false;
-        return Objects.equals(properties, that.properties);
+    /**
+     * Property values are strings in saved chunks, but the registry may give booleans and numbers.
+     */
+    private static String valueOf(Tag tag) {
+        if (tag instanceof StringTag) {
+            return tag.stringValue();
+        } else if (tag instanceof ByteTag b) {
+            return b.value != 0 ? "true" : "false";
+        } else if (tag instanceof IntTag) {
+            return Integer.toString(tag.intValue());
+        }
+        return null;
     }
 
-    @Override
-    public int hashCode() {
-        int result = name != null ? name.hashCode() : 0;
-        result = 31 * result + (properties != null ? properties.hashCode() : 0);
-        return result;
+    private static class Node {
+        String[] values = new String[0];
+        Node[] children = new Node[0];
+        BlockState state;
+
+        Node get(String value) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i].equals(value)) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node getOrAdd(String value) {
+            Node child = get(value);
+            if (child != null) {
+                return child;
+            }
+
+            child = new Node();
+            values = Arrays.copyOf(values, values.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            values[values.length - 1] = value;
+            children[children.length - 1] = child;
+            return child;
+        }
     }
 }
 
@@ -1,6 +1,5 @@
 package game.data.chunk.palette;
 
-import game.data.WorldManager;
 import game.data.chunk.palette.blending.DiscreteBlendEquation;
 import game.data.chunk.palette.blending.IBlendEquation;
 import game.data.chunk.palette.blending.SquareRootBlendEquation;
@@ -11,7 +10,8 @@ import java.util.HashMap;
 import java.util.Map;
 
 /**
- * A block state in the block registry (1.13+).
+ * A block state in the block registry (1.13+). The colour and solidity are resolved from the given block colours when
+ * the state is created, so that drawing the map does not need to look up blocks by name.
  */
 public class BlockState implements State {
     private static final Map<String, IBlendEquation> transparency;
@@ -35,13 +35,19 @@ public class BlockState implements State {
     private final boolean isTransparent;
     private final IBlendEquation transparencyEquation;
 
-    public BlockState(String name, int id, CompoundTag properties) {
+    private final int color;
+    private final boolean isSolid;
+
+    public BlockState(String name, int id, CompoundTag properties, BlockColors colors) {
         this.name = name;
         this.id = id;
         this.properties = properties;
 
         this.isTransparent = transparency.containsKey(name);
         this.transparencyEquation = this.isTransparent ? transparency.get(name) : null;
+
+        this.color = colors.getColor(name);
+        this.isSolid = colors.isSolid(name);
     }
 
     public String getProperty(String name) {
@@ -90,11 +96,15 @@ public class BlockState implements State {
     }
 
     /**
-     * Gets the color of this block using the BlockColors object from the world manager.
-     * @return the color of the block in integer format, one byte per color.
+     * Gets the color of this block, as it was found in the block colours when the state was created.
+     * @return the color of the block in ARGB format, or {@link SimpleColor#NONE} if it does not have one.
      */
-    public SimpleColor getColor() {
-        return WorldManager.getInstance().getBlockColors().getColor(name);
+    public int getColor() {
+        return color;
+    }
+
+    public boolean hasColor() {
+        return SimpleColor.isKnown(color);
     }
 
     public boolean isTransparent() {
@@ -106,7 +116,7 @@ public class BlockState implements State {
     }
 
     public boolean isSolid() {
-        return WorldManager.getInstance().getBlockColors().isSolid(name);
+        return isSolid;
     }
 
     public int getNumericId() {
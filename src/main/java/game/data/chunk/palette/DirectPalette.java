@@ -23,6 +23,11 @@ public class DirectPalette extends Palette {
         return index;
     }
 
+    @Override
+    public int[] getStates() {
+        return null;
+    }
+
     @Override
     public int getBitsPerBlock() {
         return bitsPerBlock;
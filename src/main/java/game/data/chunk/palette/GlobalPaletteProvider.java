@@ -1,13 +1,15 @@
 package game.data.chunk.palette;
 
 import config.Config;
+import game.data.WorldManager;
 import game.data.registries.RegistryLoader;
 import game.protocol.Protocol;
 import game.protocol.ProtocolVersionHandler;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import se.llbit.nbt.CompoundTag;
 
 /**
@@ -17,20 +19,28 @@ import se.llbit.nbt.CompoundTag;
 public final class GlobalPaletteProvider {
     private GlobalPaletteProvider() { }
 
-    private static HashMap<Integer, BlockRegistry> palettes = new HashMap<>();
-    private static Queue<BlockState> uninitialised;
+    private static final Map<Integer, BlockRegistry> palettes = new ConcurrentHashMap<>();
+    private static final Queue<UnregisteredBlock> uninitialised = new ConcurrentLinkedQueue<>();
+
+    /**
+     * A block registered before the palette it belongs to was created.
+     */
+    private record UnregisteredBlock(String name, int id) { }
 
     /**
      * Retrieves a block registry based on the data version number. If the palette is not already known, it will be
-     * created through requestPalette.
+     * created through requestPalette. Parser threads may ask for the same palette at once, only one of them creates it
+     * while the others wait for it.
      */
     public static BlockRegistry getGlobalPalette(int dataVersion) {
-        BlockRegistry palette = palettes.get(dataVersion);
+        return palettes.computeIfAbsent(dataVersion, GlobalPaletteProvider::requestPalette);
+    }
 
-        if (palette == null) {
-            return requestPalette(dataVersion);
-        }
-        return palette;
+    /**
+     * Use the given block registry for a data version instead of generating it, used by tests.
+     */
+    public static void setGlobalPalette(int dataVersion, BlockRegistry registry) {
+        palettes.put(dataVersion, registry);
     }
 
     /**
@@ -43,18 +53,21 @@ public final class GlobalPaletteProvider {
     /**
      * To request a palette we make use of the registry loader, which needs a textual game version. The protocol
      * version handler has this value for us. The registry loader will load it either from a previously generated
-     * report, or it will download the relevant Minecraft version and generate it.
+     * report, or it will download the relevant Minecraft version and generate it. The colours of the states are
+     * taken from the block colours of the world manager.
+     *
+     * This is called while the palette map holds the entry for this version, so blocks registered in the meantime are
+     * either queued before the palette is added, or added to the palette directly.
      */
     private static BlockRegistry requestPalette(int dataVersion) {
         Protocol version = ProtocolVersionHandler.getInstance().getProtocolByDataVersion(dataVersion);
         try {
-            BlockRegistry p = RegistryLoader.forVersion(version.getVersion()).generateGlobalPalette();
-            palettes.put(dataVersion, p);
+            BlockRegistry p = RegistryLoader.forVersion(version.getVersion())
+                .generateGlobalPalette(WorldManager.getInstance().getBlockColors());
 
-            if (uninitialised != null) {
-                while (!uninitialised.isEmpty()) {
-                    p.addBlockState(uninitialised.remove());
-                }
+            UnregisteredBlock block;
+            while ((block = uninitialised.poll()) != null) {
+                p.addBlock(block.name(), block.id(), new CompoundTag());
             }
             return p;
         } catch (IOException e) {
@@ -64,22 +77,14 @@ public final class GlobalPaletteProvider {
     }
 
     public static void registerBlock(String name, int id) {
-        BlockRegistry palette = palettes.get(Config.getDataVersion());
-
-        BlockState state = new BlockState(name, id, new CompoundTag());
-
-        if (palette == null) {
-            enqueueBlock(state);
-            return;
-        }
-
-        palette.addBlockState(state);
-    }
-
-    private static void enqueueBlock(BlockState state) {
-        if (uninitialised == null) {
-            uninitialised = new ConcurrentLinkedDeque<>();
-        }
-        uninitialised.add(state);
+        // done while holding the entry, so that the block cannot be queued after the queue was drained
+        palettes.compute(Config.getDataVersion(), (dataVersion, palette) -> {
+            if (palette == null) {
+                uninitialised.add(new UnregisteredBlock(name, id));
+            } else {
+                palette.addBlock(name, id, new CompoundTag());
+            }
+            return palette;
+        });
     }
 }
@@ -248,6 +248,20 @@ public class Palette {
         return palette;
     }
 
+    /**
+     * Get the global state IDs that blocks using this palette can have.
+     * @return the state IDs, or null if any state can be used
+     */
+    public int[] getStates() {
+        if (bitsPerBlock > 8) {
+            return null;
+        }
+        if (palette.length == 0) {
+            return new int[] { 0 };
+        }
+        return palette;
+    }
+
     private void resize(ChunkSection section, int oldBpp) {
         int newBitsPerBlock = computeBitsPerBlock(palette.length - 1);
         if (oldBpp != newBitsPerBlock) {
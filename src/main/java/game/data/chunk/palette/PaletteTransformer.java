@@ -8,6 +8,8 @@ import java.util.Arrays;
  * Transforms a direct palette to a real palette.
  */
 public class PaletteTransformer {
+    private static final int BLOCKS = 16 * 16 * 16;
+
     BlockLocationEncoder locationEncoder;
     Palette oldPalette;
     Palette newPalette;
@@ -27,30 +29,21 @@ public class PaletteTransformer {
             return data;
         }
 
+        int oldBits = oldPalette.getBitsPerBlock();
+
         // first add every block in the chunk to the new palette
-        for (int z = 0; z < 16; z++) {
-            for (int x = 0; x < 16; x++) {
-                for (int y = 0; y < 16; y++) {
-                    locationEncoder.setTo(x, y, z, oldPalette.getBitsPerBlock());
-                    newPalette.getIndexFor(null, locationEncoder.fetch(data));
-                }
-            }
+        for (int i = 0; i < BLOCKS; i++) {
+            newPalette.getIndexFor(null, locationEncoder.get(data, i, oldBits));
         }
 
         newPalette.recomputeBitsPerBlock();
+        int newBits = newPalette.getBitsPerBlock();
 
         // copy all blocks to the new palette
-        long[] newData = new long[ChunkSection_1_16.longsRequired(newPalette.getBitsPerBlock())];
-        for (int z = 0; z < 16; z++) {
-            for (int x = 0; x < 16; x++) {
-                for (int y = 0; y < 16; y++) {
-                    locationEncoder.setTo(x, y, z, oldPalette.getBitsPerBlock());
-                    int index = newPalette.getIndexFor(null, locationEncoder.fetch(data));
-
-                    locationEncoder.setTo(x, y, z, newPalette.getBitsPerBlock());
-                    locationEncoder.write(newData, index);
-                }
-            }
+        long[] newData = new long[ChunkSection_1_16.longsRequired(newBits)];
+        for (int i = 0; i < BLOCKS; i++) {
+            int index = newPalette.getIndexFor(null, locationEncoder.get(data, i, oldBits));
+            locationEncoder.set(newData, i, newBits, index);
         }
         return newData;
     }
@@ -1,106 +1,109 @@
 package game.data.chunk.palette;
 
-import javafx.scene.paint.Color;
-
 /**
- * Class to handle colours of blocks when building the overview image.
+ * Handles colours of blocks when building the overview image. Colours are packed into ARGB integers, so that drawing
+ * a chunk does not create any objects. The alpha channel is only used to mark blocks that do not have a known colour
+ * (NONE); any colour computed from these is opaque.
+ *
+ * Ratios and multipliers are applied as fixed-point numbers with 8 fractional bits.
  */
-public class SimpleColor {
-    public static final SimpleColor BLACK = new SimpleColor(0, 0, 0);
-    
-    private final double r, g, b;
+public final class SimpleColor {
+    public static final int NONE = 0;
+    public static final int BLACK = 0xFF000000;
+
+    private static final int FIXED_ONE = 256;
+
+    private SimpleColor() { }
 
     /**
      * Parse from RGB int, where the rightmost three bytes are R, G and B respectively.
      */
-    public SimpleColor(int full) {
-        this.r = (full >> 16) & 0xFF;
-        this.g = (full >> 8) & 0xFF;
-        this.b = full & 0xFF;
+    public static int fromRGB(int rgb) {
+        return BLACK | (rgb & 0xFFFFFF);
+    }
+
+    /**
+     * Create a colour from its channels, values outside of 0-255 are clamped.
+     */
+    public static int of(int r, int g, int b) {
+        return BLACK | clamp(r) << 16 | clamp(g) << 8 | clamp(b);
     }
 
-    public SimpleColor(double shade) {
-        this(0xFF * shade, 0xFF * shade, 0xFF * shade);
+    public static int of(double r, double g, double b) {
+        return of((int) Math.round(r), (int) Math.round(g), (int) Math.round(b));
     }
 
-    private SimpleColor(int r, int g, int b) {
-        this.r = r;
-        this.g = g;
-        this.b = b;
+    public static int gray(double shade) {
+        return of(0xFF * shade, 0xFF * shade, 0xFF * shade);
     }
-    public SimpleColor(double r, double g, double b) {
-        this.r = r;
-        this.g = g;
-        this.b = b;
+
+    public static boolean isKnown(int color) {
+        return color != NONE;
     }
 
     /**
-     * Blends with another colour using the ratio as a multiplier.
+     * Blends two colours, the ratio is the weight of the first colour.
      */
-    public SimpleColor blendWith(SimpleColor other, double ratio) {
-        double rNew = blendWith(this.r, other.r, ratio);
-        double gNew = blendWith(this.g, other.g, ratio);
-        double bNew = blendWith(this.b, other.b, ratio);
-
-        return new SimpleColor(rNew, gNew, bNew);
+    public static int blend(int color, int other, double ratio) {
+        int weight = toFixed(ratio);
+        int otherWeight = FIXED_ONE - weight;
+
+        return of(
+            blend(red(color), red(other), weight, otherWeight),
+            blend(green(color), green(other), weight, otherWeight),
+            blend(blue(color), blue(other), weight, otherWeight)
+        );
     }
 
-    private double blendWith(double v1, double v2, double ratio) {
-        return v1 * ratio + v2 * (1 - ratio);
+    private static int blend(int v1, int v2, int weight, int otherWeight) {
+        return (v1 * weight + v2 * otherWeight + FIXED_ONE / 2) >> 8;
     }
 
     /**
      * Lighten or darken colour for elevation changes.
      */
-    public SimpleColor shaderMultiply(double colorShader) {
-        return new SimpleColor(
-                this.r * colorShader,
-                this.g * colorShader,
-                this.b * colorShader
+    public static int multiply(int color, double colorShader) {
+        int shader = toFixed(colorShader);
+
+        return of(
+            (red(color) * shader + FIXED_ONE / 2) >> 8,
+            (green(color) * shader + FIXED_ONE / 2) >> 8,
+            (blue(color) * shader + FIXED_ONE / 2) >> 8
         );
     }
 
-    public int toARGB() {
-        int res = 0xFF000000;
-        res |= toInt(r) << 16;
-        res |= toInt(g) << 8;
-        res |= toInt(b);
-
-        return res;
+    /**
+     * Highlight colour by marking it red.
+     */
+    public static int highlight(int color) {
+        return of(red(color) ^ 210, green(color), blue(color));
     }
 
-    public Color toJavaFxColor() {
-        return Color.color(toDouble(r), toDouble(g), toDouble(b));
+    public static int red(int color) {
+        return (color >> 16) & 0xFF;
     }
 
-    /**
-     * Scales RGB values from 0-255 to 0.0-1.0, clamp them to ensure we don't go over.
-     */
-    private double toDouble(double v) {
-        return Math.max(Math.min(1.0f, v / 255.0f), 0.0);
+    public static int green(int color) {
+        return (color >> 8) & 0xFF;
     }
-    private int toInt(double v) {
-        return (int) Math.round(Math.max(Math.min(255, v), 0));
+
+    public static int blue(int color) {
+        return color & 0xFF;
     }
 
-    @Override
-    public String toString() {
-        return "SimpleColor{" +
-                "r=" + r +
-                ", g=" + g +
-                ", b=" + b +
-                '}';
+    private static int toFixed(double v) {
+        return (int) Math.round(v * FIXED_ONE);
     }
 
-    /**
-     * Highlight colour by marking it red.
-     */
-    public SimpleColor highlight() {
-        return new SimpleColor(
-                ((int) this.r) ^ 210,
-                this.g,
-                this.b
-        );
+    private static int clamp(int v) {
+        return Math.max(Math.min(255, v), 0);
+    }
 
+    public static String toString(int color) {
+        return "SimpleColor{" +
+                "r=" + red(color) +
+                ", g=" + green(color) +
+                ", b=" + blue(color) +
+                '}';
     }
 }
@@ -45,6 +45,11 @@ public class SingleValuePalette extends Palette {
         return val;
     }
 
+    @Override
+    public int[] getStates() {
+        return new int[] { val };
+    }
+
     @Override
     public int getIndexFor(ChunkSection section, int blockStateId) {
         return 0;
@@ -34,7 +34,7 @@ public class ChunkSection_1_12 extends ChunkSection {
     public ChunkSection_1_12(int sectionY, Tag nbt, Chunk chunk) {
         super(sectionY, chunk);
         this.blockStates = new int[16][16][16];
-        this.palette = new DirectPalette();
+        this.setPalette(new DirectPalette());
 
         long[] blocks = encodeBlocks(nbt.get("Blocks").byteArray(), nbt.get("Data").byteArray(), this.palette);
 
@@ -57,6 +57,7 @@ public class ChunkSection_1_12 extends ChunkSection {
                 }
             }
         }
+        invalidateDecodedStates();
     }
 
     @Override
@@ -180,6 +181,17 @@ public class ChunkSection_1_12 extends ChunkSection {
         return blockStates[x][y][z];
     }
 
+    @Override
+    protected void decodeStates(char[] out) {
+        for (int y = 0; y < Chunk.SECTION_HEIGHT; y++) {
+            for (int z = 0; z < Chunk.SECTION_WIDTH; z++) {
+                for (int x = 0; x < Chunk.SECTION_WIDTH; x++) {
+                    out[getBlockIndex(x, y, z)] = (char) blockStates[x][y][z];
+                }
+            }
+        }
+    }
+
     @Override
     public int hashCode() {
         int result = super.hashCode();
@@ -188,8 +200,8 @@ public class ChunkSection_1_12 extends ChunkSection {
     }
 
     @Override
-    public void setBlockAt(Coordinate3D coords, int blockStateId) {
-        super.setBlockAt(coords, blockStateId);
+    protected void writeBlockAt(Coordinate3D coords, int blockStateId) {
+        super.writeBlockAt(coords, blockStateId);
         this.blockStates[coords.getX()][coords.getY()][coords.getZ()] = blockStateId;
     }
 
@@ -34,7 +34,7 @@ public class ChunkSection_1_13 extends ChunkSection {
         this.setBlocks(nbt.get("BlockStates").longArray());
         this.setBlockLight(nbt.get("BlockLight").byteArray());
         this.setSkyLight(nbt.get("SkyLight").byteArray());
-        this.palette = new Palette(getDataVersion(), nbt.get("Palette").asList());
+        this.setPalette(new Palette(getDataVersion(), nbt.get("Palette").asList()));
     }
 
     @Override
@@ -27,7 +27,7 @@ public class ChunkSection_1_16 extends ChunkSection_1_15 {
      * When the bits per block increases, we must rewrite the blocks array.
      */
     @Override
-    public synchronized void resizeBlocksIfRequired(int newBitsPerBlock) {
+    protected void resizeBlocks(int newBitsPerBlock) {
         int newSize = longsRequired(newBitsPerBlock);
 
         // if blocks is empty or isn't the correct size, no need to copy
@@ -40,7 +40,7 @@ public class ChunkSection_1_18 extends ChunkSection_1_16 {
 
         CompoundTag blockStates = nbt.get("block_states").asCompound();
         this.setBlocks(blockStates.get("data").longArray());
-        this.palette = new Palette(getDataVersion(), blockStates.get("palette").asList());
+        this.setPalette(new Palette(getDataVersion(), blockStates.get("palette").asList()));
 
         CompoundTag biomes = nbt.get("biomes").asCompound();
         this.biomePalette = Palette.biomes(getDataVersion(), biomes.get("palette").asList());
@@ -77,7 +77,7 @@ public class ChunkSection_1_18 extends ChunkSection_1_16 {
     }
 
     public void setBlockPalette(Palette blockPalette) {
-        this.palette = blockPalette;
+        setPalette(blockPalette);
     }
 
     @Override
@@ -140,12 +140,12 @@ public class ChunkSection_1_18 extends ChunkSection_1_16 {
     }
     
     @Override
-    public synchronized void setBlockAt(Coordinate3D coords, int blockStateId) {
+    protected void writeBlockAt(Coordinate3D coords, int blockStateId) {
         int index = palette.getIndexFor(this, blockStateId);
 
         if (palette instanceof SingleValuePalette svp) {
             if (blocks == null || blocks.length == 0) {
-                resetBlocks();
+                clearBlocks();
             }
 
             this.palette = svp.asNormalPalette();
@@ -155,11 +155,8 @@ public class ChunkSection_1_18 extends ChunkSection_1_16 {
         // when the section is empty. In this case we assume the section was empty before and remake the array.
         resizeBlocksIfRequired(palette.getBitsPerBlock());
 
-        getLocationEncoder().setTo(
-                coords.getX(), coords.getY(), coords.getZ(),
-                palette.getBitsPerBlock()
-        );
-        getLocationEncoder().write(blocks, index);
+        int blockIndex = getBlockIndex(coords.getX(), coords.getY(), coords.getZ());
+        getLocationEncoder().set(blocks, blockIndex, palette.getBitsPerBlock(), index);
     }
 
     @Override
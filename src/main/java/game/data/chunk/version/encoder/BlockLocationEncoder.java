@@ -1,50 +1,123 @@
 package game.data.chunk.version.encoder;
 
 import game.data.chunk.Chunk;
+import java.util.Arrays;
 
+/**
+ * Reads and writes palette indices in the packed long arrays of a chunk section. Sections use the stateless
+ * {@link #get} and {@link #set} methods, so that any number of threads can read from the same section. The stateful
+ * setTo/fetch/write methods are a shorthand for the same methods, for code that moves through a single array.
+ */
 public class BlockLocationEncoder {
-    int individualValueMask;
-    int startLong;
-    int startOffset;
-    int endLong;
+    private int index;
+    private int bitsPerBlock;
 
     public BlockLocationEncoder() {
     }
 
-    public int fetch(long[] blocks) {
-        int data;
-        if (startLong == endLong) {
-            data = (int) (blocks[startLong] >>> startOffset);
-        } else {
-            int endOffset = 64 - startOffset;
-            data = (int) (blocks[startLong] >>> startOffset | blocks[endLong] << endOffset);
+    /**
+     * Read the value at the given index, in the pre-1.16 layout where values may be split over two longs.
+     */
+    public static int fetch(long[] blocks, int index, int bitsPerBlock) {
+        if (bitsPerBlock == 0) {
+            return 0;
         }
-        data &= individualValueMask;
 
-        return data;
+        int bitIndex = index * bitsPerBlock;
+        int startLong = bitIndex >>> 6;
+        int startOffset = bitIndex & 63;
+        int endLong = (bitIndex + bitsPerBlock - 1) >>> 6;
+
+        long data = blocks[startLong] >>> startOffset;
+        if (startLong != endLong) {
+            data |= blocks[endLong] << (64 - startOffset);
+        }
+        return (int) data & ((1 << bitsPerBlock) - 1);
     }
 
-    public void write(long[] blocks, int newIndex) {
-        long data = newIndex & individualValueMask;
+    /**
+     * Write the value at the given index, in the pre-1.16 layout where values may be split over two longs.
+     */
+    public static void write(long[] blocks, int index, int bitsPerBlock, int value) {
+        if (bitsPerBlock == 0) {
+            return;
+        }
+
+        long mask = (1L << bitsPerBlock) - 1;
+        long data = value & mask;
 
-        // first set all relevant bits to 0, then use or to put the new bits in place
-        blocks[startLong] &= ~((long) individualValueMask << startOffset);
-        blocks[startLong] |= (data << startOffset);
+        int bitIndex = index * bitsPerBlock;
+        int startLong = bitIndex >>> 6;
+        int startOffset = bitIndex & 63;
+        int endLong = (bitIndex + bitsPerBlock - 1) >>> 6;
+
+        blocks[startLong] &= ~(mask << startOffset);
+        blocks[startLong] |= data << startOffset;
 
         if (startLong != endLong) {
-            blocks[endLong] &= ~(individualValueMask >> (64 - startOffset));
-            blocks[endLong] |= (data >> (64 - startOffset));
+            blocks[endLong] &= ~(mask >>> (64 - startOffset));
+            blocks[endLong] |= data >>> (64 - startOffset);
         }
     }
 
-    public BlockLocationEncoder setTo(int x, int y, int z, int bitsPerBlock) {
-        this.individualValueMask = (1 << bitsPerBlock) - 1;
+    /**
+     * Read the palette index of the block with the given index (see ChunkSection.getBlockIndex).
+     */
+    public int get(long[] blocks, int index, int bitsPerBlock) {
+        return fetch(blocks, index, bitsPerBlock);
+    }
+
+    /**
+     * Write the palette index of the block with the given index (see ChunkSection.getBlockIndex).
+     */
+    public void set(long[] blocks, int index, int bitsPerBlock, int value) {
+        write(blocks, index, bitsPerBlock, value);
+    }
+
+    /**
+     * Whether the array is long enough to hold the value at the given index.
+     */
+    public boolean fits(long[] blocks, int index, int bitsPerBlock) {
+        return bitsPerBlock == 0 || (index * bitsPerBlock + bitsPerBlock - 1) >>> 6 < blocks.length;
+    }
+
+    /**
+     * Read the palette indices of all blocks in order. If the array holds fewer values than the output, the remaining
+     * output is left as it is.
+     */
+    public void getAll(long[] blocks, int bitsPerBlock, char[] out) {
+        if (bitsPerBlock == 0) {
+            Arrays.fill(out, (char) 0);
+            return;
+        }
 
-        int blockNumber = (((y * Chunk.SECTION_HEIGHT) + z) * Chunk.SECTION_WIDTH) + x;
-        this.startLong = (blockNumber * bitsPerBlock) / 64;
-        this.startOffset = (blockNumber * bitsPerBlock) % 64;
-        this.endLong = ((blockNumber + 1) * bitsPerBlock - 1) / 64;
+        int count = (int) Math.min(out.length, (long) blocks.length * 64 / bitsPerBlock);
+        for (int i = 0; i < count; i++) {
+            out[i] = (char) fetch(blocks, i, bitsPerBlock);
+        }
+    }
+
+    /**
+     * Move to the block at the given position, for use with {@link #fetch(long[])} and {@link #write(long[], int)}.
+     */
+    public BlockLocationEncoder setTo(int x, int y, int z, int bitsPerBlock) {
+        this.index = (((y * Chunk.SECTION_HEIGHT) + z) * Chunk.SECTION_WIDTH) + x;
+        this.bitsPerBlock = bitsPerBlock;
 
         return this;
     }
+
+    /**
+     * Read the palette index of the block last given to {@link #setTo}.
+     */
+    public int fetch(long[] blocks) {
+        return get(blocks, index, bitsPerBlock);
+    }
+
+    /**
+     * Write the palette index of the block last given to {@link #setTo}.
+     */
+    public void write(long[] blocks, int newIndex) {
+        set(blocks, index, bitsPerBlock, newIndex);
+    }
 }
@@ -1,6 +1,6 @@
 package game.data.chunk.version.encoder;
 
-import game.data.chunk.Chunk;
+import java.util.Arrays;
 
 /**
  * 1.16 needs a a slightly different getPaletteIndex method. Instead of a blockstate now overlapping multiple longs,
@@ -8,50 +8,75 @@ import game.data.chunk.Chunk;
  * actually makes the method a little bit simpler.
  */
 public class BlockLocationEncoder_1_16 extends BlockLocationEncoder {
-    int longIndex;
 
-    public BlockLocationEncoder_1_16() {
-        this.startLong = -1;
-        this.endLong = -1;
-    }
+    /**
+     * Read the value at the given index, in the 1.16+ layout where values never cross into the next long.
+     */
+    public static int fetch(long[] blocks, int index, int bitsPerBlock) {
+        if (bitsPerBlock == 0) {
+            return 0;
+        }
 
-    public int fetch(long[] blocks) {
-        int data = (int) (blocks[longIndex] >>> startOffset);
-        data &= individualValueMask;
+        int blocksPerLong = 64 / bitsPerBlock;
+        int longIndex = index / blocksPerLong;
+        int startOffset = (index - longIndex * blocksPerLong) * bitsPerBlock;
 
-        return data;
+        return (int) (blocks[longIndex] >>> startOffset) & ((1 << bitsPerBlock) - 1);
     }
 
-    public void write(long[] blocks, int newIndex) {
-        long data = newIndex & individualValueMask;
+    /**
+     * Write the value at the given index, in the 1.16+ layout where values never cross into the next long.
+     */
+    public static void write(long[] blocks, int index, int bitsPerBlock, int value) {
+        if (bitsPerBlock == 0) {
+            return;
+        }
+
+        long mask = (1L << bitsPerBlock) - 1;
+        int blocksPerLong = 64 / bitsPerBlock;
+        int longIndex = index / blocksPerLong;
+        int startOffset = (index - longIndex * blocksPerLong) * bitsPerBlock;
 
-        // first set all relevant bits to 0, then use or to put the new bits in place
-        blocks[longIndex] &= ~((long) individualValueMask << startOffset);
-        blocks[longIndex] |= (data << startOffset);
+        blocks[longIndex] &= ~(mask << startOffset);
+        blocks[longIndex] |= (value & mask) << startOffset;
     }
 
-    public BlockLocationEncoder setTo(int x, int y, int z, int bitsPerBlock) {
-        this.individualValueMask = (1 << bitsPerBlock) - 1;
+    @Override
+    public int get(long[] blocks, int index, int bitsPerBlock) {
+        return fetch(blocks, index, bitsPerBlock);
+    }
+
+    @Override
+    public void set(long[] blocks, int index, int bitsPerBlock, int value) {
+        write(blocks, index, bitsPerBlock, value);
+    }
 
-        int blockNumber = (((y * Chunk.SECTION_HEIGHT) + z) * Chunk.SECTION_WIDTH) + x;
+    @Override
+    public boolean fits(long[] blocks, int index, int bitsPerBlock) {
+        return bitsPerBlock == 0 || index / (64 / bitsPerBlock) < blocks.length;
+    }
 
-        // bitsPerBlock can be 0 if we're trying to call the BlockLocationEncoder
-        // on a SingleValuePalette. Doing so would cause division by 0 errors!
+    /**
+     * Read the palette indices of all blocks in order, one long at a time.
+     */
+    @Override
+    public void getAll(long[] blocks, int bitsPerBlock, char[] out) {
         if (bitsPerBlock == 0) {
-            longIndex = 0;
-            startOffset = 0;
-        } else {
-            int blocksPerLong = 64 / bitsPerBlock;
-            this.longIndex = blockNumber / blocksPerLong;
-            int indexInLong = blockNumber % blocksPerLong;
-            this.startOffset = indexInLong * bitsPerBlock;
+            Arrays.fill(out, (char) 0);
+            return;
         }
 
-        if (longIndex < 0) {
-            System.out.println("INVALID LONG INDEX: ");
-            System.out.println("\t" + x +", " + y + ", " + z + " :: " + bitsPerBlock);
-        }
+        int blocksPerLong = 64 / bitsPerBlock;
+        int mask = (1 << bitsPerBlock) - 1;
 
-        return this;
+        int i = 0;
+        for (int longIndex = 0; longIndex < blocks.length && i < out.length; longIndex++) {
+            long data = blocks[longIndex];
+            int end = Math.min(out.length, i + blocksPerLong);
+            for (; i < end; i++) {
+                out[i] = (char) (data & mask);
+                data >>>= bitsPerBlock;
+            }
+        }
     }
 }
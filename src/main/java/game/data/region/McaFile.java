@@ -8,23 +8,65 @@ import game.data.coordinates.CoordinateDouble3D;
 import game.data.dimension.Dimension;
 import game.data.chunk.Chunk;
 import game.data.chunk.ChunkBinary;
-import org.apache.commons.io.IOUtils;
 import util.PathUtils;
 
+import static util.ExceptionHandling.attempt;
+
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+/**
+ * Region (MCA) file. Only the header of the file is read up front, chunks are read from disk when they are requested.
+ * Chunks that were added are kept in memory until they are written. Since we know which sectors of the file are in use,
+ * writes only need to put the chunks that changed into free sectors and update their header entries. Sectors that are
+ * no longer used are reclaimed by rewriting the file in the background once enough of them build up.
+ */
 public class McaFile {
     public final static int SECTOR_SIZE = 4096;
-    private HashMap<Integer, ChunkBinary> chunkMap;
+    private final static int HEADER_SECTORS = 2;
+    private final static int MIN_WASTED_SECTORS = 64;
+
+    private static final ExecutorService compactionService = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Region Compaction Service");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // McaFile objects for the same file share a lock, so that there is never more than one writer per file. Locks are
+    // removed again once no object is writing to the file.
+    private static final Map<Path, FileLock> fileLocks = new ConcurrentHashMap<>();
+
+    // chunks that have not been written to disk yet
+    private final Map<Integer, ChunkBinary> chunkMap = new ConcurrentHashMap<>();
+    private final Set<Integer> changedChunks = new HashSet<>();
+
+    // header of the file on disk, only safe to write into when matchesDisk is true
+    private final int[] sectorTable = new int[SECTOR_SIZE / 4];
+    private final int[] timestamps = new int[SECTOR_SIZE / 4];
+    private final BitSet usedSectors = new BitSet();
+    private int fileSectors;
+    private long lastModified;
+    private boolean matchesDisk;
+    private boolean compactionQueued;
+
+    // channel that chunks are read through, kept open between reads until the file is written or closeReader is called
+    private FileChannel reader;
+
     private final Path filePath;
     private final Coordinate2D regionLocation;
     private final boolean isEntityFile;
@@ -40,7 +82,7 @@ public class McaFile {
     public McaFile(File file, boolean isEntityFile) throws IOException {
         this.isEntityFile = isEntityFile;
 
-        chunkMap = readFile(file);
+        readHeader(file);
         filePath = PathUtils.toPath(file.getAbsolutePath());
         String[] bits = file.getName().split("\\.");
         regionLocation = new Coordinate2D(Integer.parseInt(bits[1]), Integer.parseInt(bits[2]));
@@ -62,12 +104,12 @@ public class McaFile {
         String directory = this.isEntityFile ? "entities" : "region";
         Path filePath = PathUtils.toPath(Config.getWorldOutputDir(), pos.getDimension().getPath(), directory, filename);
 
-        this.chunkMap = new HashMap<>();
         if (filePath.toFile().exists()) {
             try {
-                this.chunkMap = readFile(filePath.toFile());
+                readHeader(filePath.toFile());
             } catch (IOException e) {
                 // fail silently, we will just overwrite the file instead
+                resetSectors();
             }
         }
 
@@ -182,94 +224,370 @@ public class McaFile {
     }
 
     /**
-     * Convert the MCA file into individual chunk data.
+     * Read the location and timestamp tables of the MCA file. The chunks themselves are only read when needed.
      * For details on the MCA file format: https://minecraft.gamepedia.com/Region_file_format
      */
-    private HashMap<Integer, ChunkBinary> readFile(File mca) throws IOException {
-        FileInputStream inputStream = new FileInputStream(mca);
-        byte[] bytes = IOUtils.toByteArray(inputStream);
-        inputStream.close();
-
-        // ensure that the data is not empty
-        if (bytes.length == 0) {
-            return new HashMap<>();
-        }
+    private void readHeader(File mca) throws IOException {
+        closeReader();
+        resetSectors();
+        this.lastModified = mca.lastModified();
+
+        try (FileChannel channel = FileChannel.open(mca.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+
+            // ensure that the data is not empty
+            if (fileSize < HEADER_SECTORS * SECTOR_SIZE) {
+                return;
+            }
 
-        byte[] locations = Arrays.copyOfRange(bytes, 0, SECTOR_SIZE);
-        byte[] timestamps = Arrays.copyOfRange(bytes, SECTOR_SIZE, SECTOR_SIZE * 2);
-        byte[] chunkDataArray = Arrays.copyOfRange(bytes, SECTOR_SIZE * 2, bytes.length);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SECTORS * SECTOR_SIZE);
+            readFully(channel, header, 0);
 
-        HashMap<Integer, ChunkBinary> chunkMap = new HashMap<>();
+            boolean consistent = true;
+            int count = 0;
+            int lastSize = 0;
+            for (int i = 0; i < SECTOR_SIZE; i += 4) {
+                int entry = header.getInt(i);
+                int location = entry >>> 8;
+                int size = entry & 0xFF;
 
-        for (int i = 0; i < locations.length; i += 4) {
-            int timestamp = bytesToInt(timestamps, i, i + 3);
-            int location = bytesToInt(locations, i, i + 2);
-            int size = locations[i + 3] & 0xFF;
+                if (size == 0) { continue; }
 
-            if (size == 0) { continue; }
+                // make sure the chunk is actually in the file
+                if (location < HEADER_SECTORS || (long) (location + size) * SECTOR_SIZE > fileSize) {
+                    consistent = false;
+                    continue;
+                }
 
-            // chunk location includes first location/timestamp sections so we need to lower the addresses by 2 sectors
-            int chunkDataStart = (location - 2) * SECTOR_SIZE;
-            int chunkDataEnd = (location + size - 2) * SECTOR_SIZE;
+                // overlapping chunks mean the file is damaged, we shouldn't write into it without rewriting it entirely
+                if (!usedSectors.get(location, location + size).isEmpty()) {
+                    consistent = false;
+                }
 
-            // make sure the indices are valid
-            if (chunkDataStart < 0 || chunkDataStart >= chunkDataArray.length) {
-                continue;
+                // i is the unique identifier of this chunk within the file, based on coordinates thus consistent
+                useSectors(i, location, size);
+                timestamps[i / 4] = header.getInt(SECTOR_SIZE + i);
+
+                count++;
+                lastSize = size;
             }
-            if (chunkDataEnd < 0 || chunkDataEnd > chunkDataArray.length || chunkDataEnd < chunkDataStart) {
-                continue;
+
+            // if a region only has a single small chunk, we ignore it since it's probably not actually generated.
+            if (count == 1 && lastSize == 1) {
+                resetSectors();
+                return;
             }
 
-            byte[] chunkData = Arrays.copyOfRange(chunkDataArray, chunkDataStart, chunkDataEnd);
+            this.fileSectors = (int) ((fileSize + SECTOR_SIZE - 1) / SECTOR_SIZE);
+            this.matchesDisk = consistent;
+        }
+    }
 
-            // i is the unique identifier of this chunk within the file, based on coordinates thus consistent
-            chunkMap.put(i, new ChunkBinary(timestamp, location, size, chunkData));
+    /**
+     * Read a single chunk from the file. Only the bytes actually used by the chunk are read, not the padding at the
+     * end of its last sector.
+     * @return the chunk, or null if there is no (valid) chunk at this position
+     */
+    private ChunkBinary readChunk(FileChannel channel, int pos) throws IOException {
+        int entry = sectorTable[pos / 4];
+        if (entry == 0) {
+            return null;
         }
 
-        // if a region only has a single small chunk, we ignore it since it's probably not actually generated.
-        if (chunkMap.size() == 1) {
-            ChunkBinary first = chunkMap.values().iterator().next();
-            if (first.getChunkData().length == SECTOR_SIZE) {
-                return new HashMap<>();
+        int location = entry >>> 8;
+        int size = entry & 0xFF;
+        long start = (long) location * SECTOR_SIZE;
+
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        readFully(channel, lengthBuffer, start);
+        int length = lengthBuffer.getInt(0);
+
+        if (length <= 0 || length + 4 > size * SECTOR_SIZE) {
+            return null;
+        }
+
+        byte[] chunkData = new byte[length + 4];
+        readFully(channel, ByteBuffer.wrap(chunkData), start);
+
+        return new ChunkBinary(timestamps[pos / 4], location, size, chunkData);
+    }
+
+    /**
+     * Read a single chunk through the shared reader, so that reading many chunks from this file does not open it for
+     * each of them.
+     */
+    private synchronized ChunkBinary readChunk(int pos) {
+        if (sectorTable[pos / 4] == 0) {
+            return null;
+        }
+
+        try {
+            if (reader == null) {
+                reader = FileChannel.open(filePath, StandardOpenOption.READ);
             }
+            return readChunk(reader, pos);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            closeReader();
+            return null;
         }
+    }
 
-        return chunkMap;
+    /**
+     * Close the channel that chunks are read through. It is opened again if more chunks are read later. Owners of
+     * McaFile objects call this once they are done reading a batch of chunks, writes close it by themselves since the
+     * file may be replaced.
+     */
+    public synchronized void closeReader() {
+        if (reader == null) {
+            return;
+        }
+
+        attempt(reader::close);
+        reader = null;
     }
 
     /**
-     * Converts a number of bytes to a big-endian int.
-     * @param arr   the total array of bytes
-     * @param start the first byte to use (inclusive)
-     * @param end   the last byte to use (INCLUSIVE)
-     * @return the integer created from the bytes
+     * Get all chunks in this file, both the ones on disk and the ones that have not been written yet.
      */
-    private static int bytesToInt(byte[] arr, int start, int end) {
-        int res = 0;
-        do {
-            res |= (arr[start] & 0xFF) << (end - start) * 8;
-        } while (start++ < end);
+    private synchronized Map<Integer, ChunkBinary> getChunkBinaries() throws IOException {
+        Map<Integer, ChunkBinary> chunks = new LinkedHashMap<>();
+        for (int pos = 0; pos < SECTOR_SIZE; pos += 4) {
+            ChunkBinary chunk = chunkMap.get(pos);
+            if (chunk == null) {
+                chunk = readChunk(pos);
+            }
+            if (chunk != null) {
+                chunks.put(pos, chunk);
+            }
+        }
+        return chunks;
+    }
 
-        return res;
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of region file");
+            }
+            position += read;
+        }
     }
 
-    public void addChunks(Map<Integer, ChunkBinary> chunkMap) {
+    public synchronized void addChunks(Map<Integer, ChunkBinary> chunkMap) {
         // merge new chunks into existing ones
         this.chunkMap.putAll(chunkMap);
+        this.changedChunks.addAll(chunkMap.keySet());
     }
 
     /**
-     * Write the MCA file to the given path. Should be called after merge.
+     * Write the MCA file to the given path. Should be called after merge. If we know which sectors of the file are in
+     * use, only the chunks that were added since the last write are written, otherwise the whole file is written.
      */
     public void write() throws IOException {
+        FileLock lock = acquireFileLock();
+        try {
+            synchronized (lock) {
+                synchronized (this) {
+                    writeLocked();
+                }
+            }
+        } finally {
+            releaseFileLock(lock);
+        }
+    }
+
+    private void writeLocked() throws IOException {
+        // if another McaFile object wrote to this file since we last looked at it, our header is outdated
+        File file = filePath.toFile();
+        if (matchesDisk && file.lastModified() != lastModified) {
+            readHeader(file);
+        }
+
+        if (matchesDisk && file.exists()) {
+            writeChanged();
+        } else {
+            writeFull();
+        }
+
+        scheduleCompaction();
+    }
+
+    /**
+     * Lock shared by the McaFile objects that are writing to the same file at the same time.
+     */
+    private static final class FileLock {
+        int users;
+    }
+
+    private FileLock acquireFileLock() {
+        return fileLocks.compute(filePath, (path, lock) -> {
+            lock = lock == null ? new FileLock() : lock;
+            lock.users++;
+            return lock;
+        });
+    }
+
+    private void releaseFileLock(FileLock lock) {
+        fileLocks.computeIfPresent(filePath, (path, existing) -> existing == lock && --lock.users == 0 ? null : existing);
+    }
+
+    /**
+     * Write the chunks that changed since the last write into free sectors, then point their header entries to the
+     * new sectors. The old sectors are only released after the headers are written so that they are never overwritten
+     * while the header still refers to them.
+     */
+    private void writeChanged() throws IOException {
+        if (changedChunks.isEmpty()) {
+            return;
+        }
+
+        // if anything goes wrong halfway, we no longer know what is on disk so the next write has to be a full one
+        matchesDisk = false;
+
+        List<Integer> written = new ArrayList<>();
+        List<Integer> released = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.WRITE)) {
+            for (int pos : changedChunks) {
+                ChunkBinary chunk = chunkMap.get(pos);
+                if (chunk == null) {
+                    continue;
+                }
+
+                released.add(sectorTable[pos / 4]);
+
+                int location = allocateSectors(chunk.getSize());
+                writeFully(channel, paddedChunkData(chunk), (long) location * SECTOR_SIZE);
+
+                chunk.setLocation(location);
+                sectorTable[pos / 4] = location << 8 | chunk.getSize();
+                timestamps[pos / 4] = chunk.getTimestamp();
+                written.add(pos);
+            }
+
+            ByteBuffer entry = ByteBuffer.allocate(4);
+            for (int pos : written) {
+                ChunkBinary chunk = chunkMap.get(pos);
+
+                entry.clear();
+                writeFully(channel, entry.putInt(sectorTable[pos / 4]).flip(), pos);
+
+                entry.clear();
+                writeFully(channel, entry.putInt(chunk.getTimestamp()).flip(), SECTOR_SIZE + pos);
+            }
+        }
+
+        for (int sectors : released) {
+            int location = sectors >>> 8;
+            if (location >= HEADER_SECTORS) {
+                usedSectors.clear(location, location + (sectors & 0xFF));
+            }
+        }
+
+        // the chunks are on disk now, so they no longer need to be kept in memory
+        written.forEach(chunkMap::remove);
+        changedChunks.clear();
+        lastModified = filePath.toFile().lastModified();
+        matchesDisk = true;
+    }
+
+    /**
+     * Find the first range of free sectors large enough for the given number of sectors, or the end of the file if
+     * there is no such range, and mark it as used.
+     * @return the sector at which the range starts
+     */
+    private int allocateSectors(int size) {
+        int start = usedSectors.nextClearBit(HEADER_SECTORS);
+        while (true) {
+            int next = usedSectors.nextSetBit(start);
+            if (next < 0 || next - start >= size) {
+                break;
+            }
+            start = usedSectors.nextClearBit(next);
+        }
+
+        usedSectors.set(start, start + size);
+        fileSectors = Math.max(fileSectors, start + size);
+        return start;
+    }
+
+    /**
+     * Get the chunk data padded to a whole number of sectors.
+     */
+    private ByteBuffer paddedChunkData(ChunkBinary chunk) {
+        byte[] data = chunk.getChunkData();
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(chunk.getSize() * SECTOR_SIZE, data.length));
+        buffer.put(data);
+        return buffer.clear();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void resetSectors() {
+        Arrays.fill(sectorTable, 0);
+        Arrays.fill(timestamps, 0);
+        usedSectors.clear();
+        usedSectors.set(0, HEADER_SECTORS);
+        fileSectors = HEADER_SECTORS;
+        matchesDisk = false;
+    }
+
+    private void useSectors(int pos, int location, int size) {
+        sectorTable[pos / 4] = location << 8 | size;
+        usedSectors.set(location, location + size);
+    }
+
+    /**
+     * Since chunks are never overwritten in place, files get fragmented over time. Once a significant part of the file
+     * is unused, the file is rewritten in the background.
+     */
+    private boolean isFragmented() {
+        int used = usedSectors.cardinality();
+        int wasted = fileSectors - used;
+        return matchesDisk && wasted >= MIN_WASTED_SECTORS && wasted > used / 4;
+    }
+
+    private void scheduleCompaction() {
+        if (compactionQueued || !isFragmented()) {
+            return;
+        }
+
+        compactionQueued = true;
+        compactionService.execute(() -> {
+            FileLock lock = acquireFileLock();
+            try {
+                synchronized (lock) {
+                    synchronized (this) {
+                        compactionQueued = false;
+                        if (isFragmented() && filePath.toFile().lastModified() == lastModified) {
+                            attempt(this::writeFull);
+                        }
+                    }
+                }
+            } finally {
+                releaseFileLock(lock);
+            }
+        });
+    }
+
+    /**
+     * Write the entire file, with all chunks placed directly after each other. The file is first written next to the
+     * existing one and then moved over it, so a failed write does not destroy the existing file.
+     */
+    private void writeFull() throws IOException {
         byte[] locations = new byte[SECTOR_SIZE];
         byte[] timestamps = new byte[SECTOR_SIZE];
         Map<Integer, byte[]> chunkDataList = new HashMap<>();
         final int[] maxpos = {0};
 
-        updateChunkLocations(chunkMap);
+        Map<Integer, ChunkBinary> chunks = getChunkBinaries();
+        updateChunkLocations(chunks);
 
-        chunkMap.forEach((pos, chunk) -> {
+        chunks.forEach((pos, chunk) -> {
             setLocation(locations, pos, chunk);
             setTimestamp(timestamps, pos, chunk);
             setChunkData(chunkDataList, chunk);
@@ -284,7 +602,24 @@ public class McaFile {
 
         // create directory if it doesn't already exist
         Files.createDirectories(filePath.getParent());
-        Files.write(filePath, toWrite);
+
+        // the reader would keep reading the file that is replaced
+        closeReader();
+
+        Path temp = filePath.resolveSibling(filePath.getFileName() + ".tmp");
+        Files.write(temp, toWrite);
+        Files.move(temp, filePath, StandardCopyOption.REPLACE_EXISTING);
+
+        resetSectors();
+        chunks.forEach((pos, chunk) -> {
+            useSectors(pos, chunk.getLocation(), chunk.getSize());
+            this.timestamps[pos / 4] = chunk.getTimestamp();
+        });
+        fileSectors = (toWrite.length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+        chunkMap.clear();
+        changedChunks.clear();
+        lastModified = filePath.toFile().lastModified();
+        matchesDisk = true;
     }
 
     /**
@@ -345,11 +680,24 @@ public class McaFile {
      * @return the list of positions.
      */
     public List<CoordinateDim2D> getChunkPositions(Dimension dimension) {
-        return chunkMap.keySet().stream()
+        return chunkIndices().stream()
             .map(num -> intToCoordinate(num).addDimension(dimension))
             .collect(Collectors.toList());
     }
 
+    /**
+     * Get the integer positions of all chunks, both on disk and not yet written.
+     */
+    private List<Integer> chunkIndices() {
+        List<Integer> res = new ArrayList<>();
+        for (int pos = 0; pos < SECTOR_SIZE; pos += 4) {
+            if (sectorTable[pos / 4] != 0 || chunkMap.containsKey(pos)) {
+                res.add(pos);
+            }
+        }
+        return res;
+    }
+
     /**
      * Convert integer position of chunk to global coordinates.
      */
@@ -373,7 +721,17 @@ public class McaFile {
 
     public Map<CoordinateDim2D, Chunk> getParsedChunks(Dimension dimension) {
         Map<CoordinateDim2D, Chunk> res = new HashMap<>();
-        chunkMap.forEach((key, value) -> res.put(
+        Map<Integer, ChunkBinary> chunks;
+        try {
+            chunks = getChunkBinaries();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return res;
+        } finally {
+            closeReader();
+        }
+
+        chunks.forEach((key, value) -> res.put(
             new CoordinateDim2D(intToCoordinate(key), dimension),
             value.toChunk(intToCoordinate(key).addDimension(dimension))
         ));
@@ -381,15 +739,40 @@ public class McaFile {
     }
 
     public ChunkBinary getChunkBinary(Coordinate2D coord) {
-        return chunkMap.get(coordinateToInt(coord));
+        int pos = coordinateToInt(coord);
+
+        ChunkBinary unwritten = chunkMap.get(pos);
+        if (unwritten != null) {
+            return unwritten;
+        }
+        return readChunk(pos);
+    }
+
+    /**
+     * Returns true if the file has been changed on disk since this object last read or wrote it. Chunks read through
+     * an outdated object may no longer be where the header says they are.
+     */
+    public boolean isOutdated() {
+        return filePath.toFile().lastModified() != lastModified;
+    }
+
+    /**
+     * Approximate number of bytes retained by chunks that have not been written yet.
+     */
+    public long estimateMemory() {
+        long size = 0;
+        for (ChunkBinary chunk : chunkMap.values()) {
+            size += chunk.getChunkData().length;
+        }
+        return size;
     }
 
     public int countChunks() {
-        return chunkMap.size();
+        return chunkIndices().size();
     }
 
     public boolean isEmpty() {
-        return chunkMap.isEmpty();
+        return chunkIndices().isEmpty();
     }
 
     @Override
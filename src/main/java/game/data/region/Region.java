@@ -7,10 +7,13 @@ import game.data.chunk.Chunk;
 import game.data.chunk.ChunkBinary;
 import game.data.dimension.Dimension;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 
 /**
@@ -27,6 +30,9 @@ public class Region {
     private boolean updatedSinceLastWrite;
     private final Set<Coordinate2D> toDelete;
 
+    // chunks that were unloaded to save memory, they are read from the file again when needed
+    private final Set<Coordinate2D> evicted;
+
     private final McaFile file;
     private final McaFile fileEntities;
 
@@ -39,6 +45,7 @@ public class Region {
         this.chunks = new ConcurrentHashMap<>();
         this.updatedSinceLastWrite = false;
         this.toDelete = ConcurrentHashMap.newKeySet();
+        this.evicted = ConcurrentHashMap.newKeySet();
 
         this.file = new McaFile(regionCoordinates);
         this.fileEntities = new McaFile(regionCoordinates, true);
@@ -50,6 +57,7 @@ public class Region {
      * @param chunk      the chunk to add
      */
     public void addChunk(Coordinate2D coordinate, Chunk chunk, boolean overrideExisting) {
+        evicted.remove(coordinate);
 
         if (overrideExisting) {
             toDelete.remove(coordinate);
@@ -76,6 +84,7 @@ public class Region {
      * @param coordinate chunk coordinate to unload
      */
     public void removeChunk(Coordinate2D coordinate) {
+        evicted.remove(coordinate);
         Chunk chunk = chunks.get(coordinate);
 
         if (chunk == null) {
@@ -95,66 +104,166 @@ public class Region {
      * Returns true if the region has no chunks in it (e.g. they have all been deleted)
      */
     public boolean isEmpty() {
-        return chunks.isEmpty();
+        return chunks.isEmpty() && evicted.isEmpty();
     }
 
+    /**
+     * Get a chunk, reading it from the region file again if it was evicted. This can be called from any thread, while
+     * chunks are only added and evicted on their parser thread. A chunk that the server sends while it is being
+     * reloaded replaces the reloaded version, as the evicted chunk was already saved.
+     */
     public Chunk getChunk(Coordinate2D coordinate) {
         // if the chunk is already marked for deletion, don't return it
         if (toDelete.contains(coordinate)) { return null; }
+
+        Chunk chunk = chunks.get(coordinate);
+        if (chunk == null && evicted.contains(coordinate)) {
+            return reload(coordinate);
+        }
+        return chunk;
+    }
+
+    /**
+     * Get a chunk only if it is currently loaded.
+     */
+    public Chunk getLoadedChunk(Coordinate2D coordinate) {
         return chunks.get(coordinate);
     }
 
+    /**
+     * Unload a chunk that has been saved to free up memory. Unlike removing a chunk, it will be read from the file
+     * again if it is needed later.
+     * @return the approximate number of bytes freed
+     */
+    public long evict(Coordinate2D coordinate) {
+        Chunk chunk = chunks.get(coordinate);
+        if (chunk == null || !chunk.isSaved() || toDelete.contains(coordinate)) {
+            return 0;
+        }
+
+        evicted.add(coordinate);
+        if (!chunks.remove(coordinate, chunk)) {
+            evicted.remove(coordinate);
+            return 0;
+        }
+
+        chunk.unload();
+        return chunk.estimateMemory();
+    }
+
+    /**
+     * Read an evicted chunk from the file. Reloads are done one at a time, so that a thread asking for a chunk that is
+     * being reloaded by another thread waits for it instead of finding neither the chunk nor the evicted marker. They
+     * read from the same file, so holding the lock while reading does not slow them down further.
+     */
+    private synchronized Chunk reload(Coordinate2D coordinate) {
+        Chunk existing = chunks.get(coordinate);
+        if (existing != null || !evicted.contains(coordinate)) {
+            return existing;
+        }
+
+        Chunk chunk;
+        try {
+            ChunkBinary binary = file.getChunkBinary(coordinate);
+            chunk = binary == null ? null : binary.toChunk(coordinate.addDimension(regionCoordinates.getDimension()));
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            chunk = null;
+        }
+
+        // the chunk is only marked as loaded once it is in the map, unless the server sent it in the meantime
+        if (chunk != null) {
+            existing = chunks.putIfAbsent(coordinate, chunk);
+        }
+        evicted.remove(coordinate);
+        return existing == null ? chunk : existing;
+    }
+
+    /**
+     * Get the chunks that can currently be evicted, which are the ones that have been saved.
+     */
+    public List<Coordinate2D> getEvictable() {
+        List<Coordinate2D> res = new ArrayList<>();
+        chunks.forEach((coordinate, chunk) -> {
+            if (chunk.isSaved() && !toDelete.contains(coordinate)) {
+                res.add(coordinate);
+            }
+        });
+        return res;
+    }
+
+    /**
+     * Approximate number of bytes retained by this region's chunks and by chunks waiting to be written to its files.
+     */
+    public long estimateMemory() {
+        long size = file.estimateMemory() + fileEntities.estimateMemory();
+        for (Chunk chunk : chunks.values()) {
+            size += chunk.estimateMemory();
+        }
+        return size;
+    }
+
     /**
      * Convert this region to an McaFile object. Will delete any chunks out of the render distance if they have already
-     * been saved. Will update the Gui with the chunk that's about to be saved.
-     * @return the McaFile corresponding to this region
+     * been saved. Will update the Gui with the chunk that's about to be saved. The unsaved chunks are converted to
+     * their binary form on the given executor, so that chunks can be compressed in parallel.
+     * @return a future with the McaFile corresponding to this region, or with null if nothing needs to be written
      */
-    public McaFilePair toFile(Coordinate2D playerPos) {
+    public CompletableFuture<McaFilePair> toFile(Coordinate2D playerPos, Executor executor) {
+        // chunks reloaded since the last write were read through the same channel, which can be closed now
+        closeFiles();
+
         if (!updatedSinceLastWrite) {
-            return null;
+            return CompletableFuture.completedFuture(null);
         }
 
         updatedSinceLastWrite = false;
 
-        Map<Integer, ChunkBinary> chunkBinaryMap = new HashMap<>();
-        Map<Integer, ChunkBinary> chunkEntityBinaryMap = new HashMap<>();
+        List<CompletableFuture<Void>> conversions = new ArrayList<>();
+        Map<Integer, ChunkBinary> chunkBinaryMap = new ConcurrentHashMap<>();
+        Map<Integer, ChunkBinary> chunkEntityBinaryMap = new ConcurrentHashMap<>();
         chunks.keySet().forEach(coordinate -> {
-            try {
-                Chunk chunk = chunks.get(coordinate);
+            Chunk chunk = chunks.get(coordinate);
 
-                // mark the chunk for deletion -- this is really only a back-up, the unload-chunk packet sent by the
-                // server is what should be used to unload chunks correctly.
-                if (!playerPos.isInRangeManhattan(coordinate, UNLOAD_RANGE)) {
-                    toDelete.add(coordinate);
-                }
-
-                if (chunk.isSaved()) {
-                    return;
-                }
-
-                chunk.setSaved(true);
+            // mark the chunk for deletion -- this is really only a back-up, the unload-chunk packet sent by the
+            // server is what should be used to unload chunks correctly.
+            if (!playerPos.isInRangeManhattan(coordinate, UNLOAD_RANGE)) {
+                toDelete.add(coordinate);
+            }
 
-                // get the chunk in binary format and get its coordinates as an Mca compatible integer. Then add
-                // these to the map of chunk binaries.
-                ChunkBinary binary = ChunkBinary.fromChunk(chunk);
-                ChunkBinary entityBinary = null;
-                if (chunk.hasSeparateEntities()) {
-                    entityBinary = ChunkBinary.entitiesFromChunk(chunk);
-                }
+            if (chunk == null || chunk.isSaved()) {
+                return;
+            }
 
-                Coordinate2D localCoordinate = coordinate.toRegionLocal();
-                int pos = 4 * ((localCoordinate.getX() & 31) + (localCoordinate.getZ() & 31) * 32);
-                if (binary != null) {
-                    chunkBinaryMap.put(pos, binary);
+            chunk.setSaved(true);
+
+            conversions.add(CompletableFuture.runAsync(() -> {
+                try {
+                    // get the chunk in binary format and get its coordinates as an Mca compatible integer. Then add
+                    // these to the map of chunk binaries.
+                    ChunkBinary binary = ChunkBinary.fromChunk(chunk);
+                    ChunkBinary entityBinary = null;
+                    if (chunk.hasSeparateEntities()) {
+                        entityBinary = ChunkBinary.entitiesFromChunk(chunk);
+                    }
+
+                    Coordinate2D localCoordinate = coordinate.toRegionLocal();
+                    int pos = 4 * ((localCoordinate.getX() & 31) + (localCoordinate.getZ() & 31) * 32);
+                    if (binary != null) {
+                        chunkBinaryMap.put(pos, binary);
+                    }
+                    if (entityBinary != null) {
+                        chunkEntityBinaryMap.put(pos, entityBinary);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
                 }
-                if (entityBinary != null) {
-                    chunkEntityBinaryMap.put(pos, entityBinary);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+            }, executor));
         });
 
+        // chunks that were evicted are forgotten entirely once they are out of range
+        evicted.removeIf(coordinate -> !playerPos.isInRangeManhattan(coordinate, UNLOAD_RANGE));
+
         // delete chunks and their sent-later tile entities
         for (Coordinate2D c : toDelete) {
             WorldManager.getInstance().unloadEntities(c.addDimension(regionCoordinates.getDimension()));
@@ -162,13 +271,15 @@ public class Region {
         }
         toDelete.clear();
 
-        if (chunkBinaryMap.isEmpty() && chunkEntityBinaryMap.isEmpty()) {
-            return null;
-        }
+        return CompletableFuture.allOf(conversions.toArray(new CompletableFuture[0])).thenApply(done -> {
+            if (chunkBinaryMap.isEmpty() && chunkEntityBinaryMap.isEmpty()) {
+                return null;
+            }
 
-        file.addChunks(chunkBinaryMap);
-        fileEntities.addChunks(chunkEntityBinaryMap);
-        return new McaFilePair(file, fileEntities);
+            file.addChunks(chunkBinaryMap);
+            fileEntities.addChunks(chunkEntityBinaryMap);
+            return new McaFilePair(file, fileEntities);
+        });
     }
 
     public McaFile getFile() {
@@ -190,13 +301,23 @@ public class Region {
      * Unload all chunks in this region. Used when player disconnects or changes dimension.
      */
     public void unloadAll() {
+        evicted.clear();
         for (Coordinate2D co : this.chunks.keySet()) {
             removeChunk(co);
         }
+        closeFiles();
+    }
+
+    /**
+     * Close the channels that evicted chunks are reloaded through. They are opened again if needed.
+     */
+    public void closeFiles() {
+        file.closeReader();
+        fileEntities.closeReader();
     }
 
     public boolean canRemove() {
-        return chunks.isEmpty();
+        return chunks.isEmpty() && evicted.isEmpty();
     }
 
     public void forEach(Consumer<Chunk> f) {
@@ -20,6 +20,7 @@ import org.apache.commons.io.FileUtils;
 import config.Config;
 import game.UnsupportedMinecraftVersionException;
 import game.data.chunk.BlockEntityRegistry;
+import game.data.chunk.palette.BlockColors;
 import game.data.chunk.palette.BlockRegistry;
 import game.data.container.ItemRegistry;
 import game.data.container.MenuRegistry;
@@ -202,11 +203,11 @@ public class RegistryLoader {
         }
     }
 
-    public BlockRegistry generateGlobalPalette() throws IOException {
+    public BlockRegistry generateGlobalPalette(BlockColors colors) throws IOException {
         if (versionSupportsBlockGenerator()) {
-            return new BlockRegistry(new FileInputStream(blocksPath.toFile()));
+            return new BlockRegistry(new FileInputStream(blocksPath.toFile()), colors);
         } else {
-            return new BlockRegistry("1.12.2");
+            return new BlockRegistry("1.12.2", colors);
         }
     }
 
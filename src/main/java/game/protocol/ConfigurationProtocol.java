@@ -1,7 +1,7 @@
 package game.protocol;
 
-import config.Config;
 import config.Version;
+import config.VersionReporter;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -10,14 +10,14 @@ public class ConfigurationProtocol extends Protocol {
     private final Map<Integer, String> clientBound;
     private final Map<Integer, String> serverBound;
 
-    public ConfigurationProtocol() {
+    public ConfigurationProtocol(VersionReporter versionReporter) {
         clientBound = new HashMap<>();
         serverBound = new HashMap<>();
 
-        if (Config.versionReporter().isAtLeast(Version.V1_20_6)) {
+        if (versionReporter.isAtLeast(Version.V1_20_6)) {
             serverBound.put(0x03, "FinishConfiguration");
             clientBound.put(0x07, "RegistryData");
-        } else if (Config.versionReporter().isAtLeast(Version.V1_20_2)) {
+        } else if (versionReporter.isAtLeast(Version.V1_20_2)) {
             serverBound.put(0x02, "FinishConfiguration");
             clientBound.put(0x05, "RegistryData");
         } else {
@@ -2,6 +2,7 @@ package gui;
 
 import game.data.coordinates.Coordinate2D;
 import game.data.coordinates.CoordinateDouble2D;
+import java.util.Objects;
 
 public class Bounds {
     private double minX, maxX, minZ, maxZ;
@@ -49,6 +50,27 @@ public class Bounds {
         return maxX > x1 && minX < x2 && minZ < z2 && maxZ > z1;
     }
 
+    public void set(Bounds other) {
+        this.minX = other.minX;
+        this.maxX = other.maxX;
+        this.minZ = other.minZ;
+        this.maxZ = other.maxZ;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        Bounds that = (Bounds) o;
+        return minX == that.minX && maxX == that.maxX && minZ == that.minZ && maxZ == that.maxZ;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(minX, maxX, minZ, maxZ);
+    }
+
     public void set(CoordinateDouble2D center, double renderDistanceX, double renderDistanceZ) {
         double radiusX = (renderDistanceX / 2);
         double radiusZ = (renderDistanceZ / 2);
@@ -7,6 +7,7 @@ import game.data.chunk.Chunk;
 import game.data.coordinates.Coordinate2D;
 import game.data.coordinates.CoordinateDim2D;
 import game.data.dimension.Dimension;
+import gui.images.HeadlessMapRenderer;
 import java.net.URISyntaxException;
 import javafx.application.Application;
 import javafx.application.Platform;
@@ -37,6 +38,7 @@ public class GuiManager extends Application {
     private static ObservableList<String> messages;
 
     private static GuiMap chunkGraphicsHandler;
+    private static HeadlessMapRenderer headlessMap;
     private static Config config;
     private static GuiManager instance;
 
@@ -60,6 +62,13 @@ public class GuiManager extends Application {
         loadSceneOrLaunch();
     }
 
+    /**
+     * Draw the map into the image cache without showing the GUI.
+     */
+    public static void startHeadlessMap() {
+        headlessMap = new HeadlessMapRenderer();
+    }
+
     public static void loadSceneSettings() {
         activeScene = "Settings";
         loadSceneOrLaunch();
@@ -345,12 +354,16 @@ public class GuiManager extends Application {
     public static void setChunkLoaded(CoordinateDim2D coord, Chunk chunk) {
         if (chunkGraphicsHandler != null) {
             chunkGraphicsHandler.setChunkLoaded(coord, chunk);
+        } else if (headlessMap != null) {
+            headlessMap.setChunkLoaded(coord, chunk);
         }
     }
 
     public static void clearChunks() {
         if (chunkGraphicsHandler != null) {
             chunkGraphicsHandler.clearChunks();
+        } else if (headlessMap != null) {
+            headlessMap.clear();
         }
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -33,11 +33,13 @@ import javafx.scene.text.FontWeight;
 import javafx.scene.text.TextAlignment;
 
 import java.util.Collection;
+import java.util.Objects;
 import util.PrintUtils;
 
 /**
  * Controller for the map scene. Contains a canvas for chunks which is redrawn only when required, and one for entities
- * which can be redrawn any moment.
+ * which can be redrawn any moment. The chunk canvas is only redrawn when the visible area, the zoom level or any of
+ * the region images changed.
  */
 public class GuiMap {
     private static final Color BACKGROUND_COLOR = new Color(.16, .16, .16, 1);
@@ -79,6 +81,11 @@ public class GuiMap {
     private CoordinateDouble2D center = new CoordinateDouble2D(0, 0);
     private Bounds bounds;
 
+    // what the chunk canvas was last drawn with, used to skip redrawing it if nothing changed
+    private final Bounds drawnBounds = new Bounds();
+    private double drawnBlocksPerPixel, drawnTargetBlocksPerPixel;
+    private Coordinate2D drawnCursorPos;
+
     private ZoomBehaviour zoomBehaviour;
 
     private final PlayerMarker playerMarker = new PlayerMarker();
@@ -302,13 +309,38 @@ public class GuiMap {
         bounds.set(center, blockWidth, blockHeight);
     }
 
+    /**
+     * Check if the chunk canvas has to be redrawn. The region handler is always checked so that its changes are
+     * cleared, otherwise they would cause another redraw later.
+     */
+    private boolean shouldDrawWorld() {
+        regionHandler.updateRenderMode();
+        boolean shouldDraw = regionHandler.takeChanges();
+
+        shouldDraw |= !bounds.equals(drawnBounds);
+        shouldDraw |= blocksPerPixel != drawnBlocksPerPixel || targetBlocksPerPixel != drawnTargetBlocksPerPixel;
+
+        // the debug highlight follows the cursor
+        shouldDraw |= Config.isInDevMode() && !Objects.equals(cursorPos, drawnCursorPos);
+
+        return shouldDraw;
+    }
+
     private void drawWorld() {
+        if (!shouldDrawWorld()) {
+            return;
+        }
+        drawnBounds.set(bounds);
+        drawnBlocksPerPixel = blocksPerPixel;
+        drawnTargetBlocksPerPixel = targetBlocksPerPixel;
+        drawnCursorPos = cursorPos;
+
         GraphicsContext graphics = this.chunkCanvas.getGraphicsContext2D();
 
         graphics.setFill(BACKGROUND_COLOR);
         graphics.fillRect(0, 0, width.get(), height.get());
 
-        regionHandler.drawAll(bounds, targetBlocksPerPixel, this::drawRegion);
+        regionHandler.drawAll(bounds, blocksPerPixel, targetBlocksPerPixel, this::drawRegion);
 
         drawDebugHighlight(graphics);
     }
@@ -405,7 +437,7 @@ public class GuiMap {
         graphics.strokeOval((int) playerX - 16, (int) playerZ - 16, 32, 32);
     }
 
-    private void drawRegion(Coordinate2D pos, Image image) {
+    private void drawRegion(Coordinate2D pos, int regions, Image image) {
         if (image == null) {
             return;
         }
@@ -415,7 +447,17 @@ public class GuiMap {
         int drawX = (int) Math.round((globalPos.getX() - bounds.getMinX()) / blocksPerPixel);
         int drawY = (int) Math.round((globalPos.getZ() - bounds.getMinZ()) / blocksPerPixel);
 
-        graphics.drawImage(image, drawX, drawY, gridSize, gridSize);
+        if (regions == 1) {
+            graphics.drawImage(image, drawX, drawY, gridSize, gridSize);
+            return;
+        }
+
+        // tiles are drawn up to where the next tile starts, so that rounding does not leave gaps between them
+        Coordinate2D globalEnd = pos.add(regions, regions).regionToGlobal();
+        int endX = (int) Math.round((globalEnd.getX() - bounds.getMinX()) / blocksPerPixel);
+        int endY = (int) Math.round((globalEnd.getZ() - bounds.getMinZ()) / blocksPerPixel);
+
+        graphics.drawImage(image, drawX, drawY, endX - drawX, endY - drawY);
     }
 
     public void setDimension(Dimension dimension) {
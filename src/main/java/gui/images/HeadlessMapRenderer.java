@@ -0,0 +1,97 @@
+package gui.images;
+
+import static util.ExceptionHandling.attempt;
+import static util.ExceptionHandling.attemptQuiet;
+
+import game.data.WorldManager;
+import game.data.chunk.Chunk;
+import game.data.chunk.ChunkImageFactory;
+import game.data.chunk.ChunkImageScheduler;
+import game.data.coordinates.Coordinate2D;
+import game.data.coordinates.CoordinateDim2D;
+import game.data.dimension.Dimension;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Draws the overview map into the image cache when running without a GUI, so that it can be viewed when the world is
+ * opened with the GUI later. Chunk images are copied into the region pixels right away on the scheduler's workers,
+ * there is no JavaFX involved at all.
+ *
+ * Regions are written periodically, and dropped from memory once they have not been drawn to for a while.
+ */
+public class HeadlessMapRenderer {
+    private static final long SAVE_INTERVAL = 20;
+    private static final long IDLE_TIME = 60 * 1000;
+
+    private final Map<RegionKey, RegionPixels> regions;
+    private final ScheduledExecutorService saveService;
+
+    public HeadlessMapRenderer() {
+        this.regions = new ConcurrentHashMap<>();
+
+        this.saveService = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Headless Map Writer");
+            t.setDaemon(true);
+            return t;
+        });
+        saveService.scheduleWithFixedDelay(this::save, SAVE_INTERVAL, SAVE_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    public void setChunkLoaded(CoordinateDim2D coord, Chunk chunk) {
+        ChunkImageFactory imageFactory = chunk.getChunkImageFactory();
+        imageFactory.onComplete((imageMap, isSaved) -> drawChunk(coord, imageMap));
+        imageFactory.requestImage();
+    }
+
+    private void drawChunk(CoordinateDim2D coordinate, Map<ImageMode, int[]> imageMap) {
+        ChunkImageScheduler scheduler = WorldManager.getInstance().getChunkImageScheduler();
+        Coordinate2D region = coordinate.chunkToRegion();
+        Coordinate2D local = coordinate.toRegionLocal();
+
+        imageMap.forEach((mode, image) -> {
+            RegionKey key = new RegionKey(coordinate.getDimension(), mode, region);
+
+            // drawn while computing so that the region cannot be dropped in between. Regions are loaded outside of
+            // it, as reading the image would block other chunks that are drawn at the same time.
+            while (regions.computeIfPresent(key, (k, pixels) -> {
+                pixels.drawChunk(local, image);
+                return pixels;
+            }) == null) {
+                regions.putIfAbsent(key, RegionPixels.load(key.directory(), key.region()));
+            }
+            scheduler.releaseBuffer(image);
+        });
+    }
+
+    /**
+     * Write all changed regions, and drop the regions that have not changed for a while.
+     */
+    public void save() {
+        regions.forEach((key, pixels) -> {
+            attempt(() -> {
+                Files.createDirectories(key.directory());
+                pixels.save(key.directory(), key.region());
+            });
+
+            regions.computeIfPresent(key, (k, v) -> v.isIdle(IDLE_TIME) ? null : v);
+        });
+    }
+
+    public void clear() {
+        regions.clear();
+        attemptQuiet(() -> FileUtils.deleteDirectory(RegionPixels.cachePath().toFile()));
+    }
+
+    private record RegionKey(Dimension dimension, ImageMode mode, Coordinate2D region) {
+        Path directory() {
+            return RegionPixels.dimensionPath(dimension, mode);
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package gui.images;
 
+import static gui.images.RegionPixels.NORMAL_PREFIX;
+import static gui.images.RegionPixels.SMALL_PREFIX;
+
 import config.Config;
 import game.data.chunk.Chunk;
 import game.data.coordinates.Coordinate2D;
@@ -10,7 +13,7 @@ import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.nio.file.Path;
 import java.util.Map;
 import javafx.embed.swing.SwingFXUtils;
@@ -21,9 +24,6 @@ import javafx.scene.paint.Color;
 import javax.imageio.ImageIO;
 
 public class RegionImage {
-    public static final String NORMAL_PREFIX = "";
-    public static final String SMALL_PREFIX = "small_";
-
     private static final int MIN_SIZE = 16;
     private static final long MIN_WAIT_TIME = 30 * 1000;
     private static final int SIZE = Chunk.SECTION_WIDTH * Region.REGION_SIZE;;
@@ -48,9 +48,9 @@ public class RegionImage {
 
     WritableImage image;
     WritableImage chunkOverlay;
-    byte[] buffer;
 
     boolean saved;
+    boolean visible;
 
     public RegionImage(Path path, Coordinate2D coords) {
         this(new WritableImage(MIN_SIZE, MIN_SIZE), path, coords);
@@ -65,7 +65,6 @@ public class RegionImage {
         this.path = path;
 
         this.image = image;
-        this.buffer = new byte[16 * 16 * 4];
         this.saved = true;
 
         chunkOverlay = new WritableImage(Region.REGION_SIZE, Region.REGION_SIZE);
@@ -100,6 +99,8 @@ public class RegionImage {
     }
 
     public boolean setTargetSize(boolean isVisible, double blocksPerPixel) {
+        this.visible = isVisible;
+
         // don't resize if we recently wrote chunks since it is likely to be written to again
         if (!saved || System.currentTimeMillis() - lastUpdated < MIN_WAIT_TIME) {
             return false;
@@ -128,11 +129,11 @@ public class RegionImage {
     }
 
     private static WritableImage loadFromFile(Path path, Coordinate2D coordinate, int targetSize) throws IOException {
-        File smallFile = getFile(path, SMALL_PREFIX, coordinate);
+        File smallFile = RegionPixels.getFile(path, SMALL_PREFIX, coordinate);
         if (targetSize == MIN_SIZE && smallFile.exists()) {
             return loadSmall(smallFile);
         } else {
-            return loadFromFile(getFile(path, NORMAL_PREFIX, coordinate), targetSize);
+            return loadFromFile(RegionPixels.getFile(path, NORMAL_PREFIX, coordinate), targetSize);
         }
     }
 
@@ -170,7 +171,7 @@ public class RegionImage {
 
     private void upSample() {
         try {
-            image = loadFromFile(getFile(path, NORMAL_PREFIX, coordinates), targetSize);
+            image = loadFromFile(RegionPixels.getFile(path, NORMAL_PREFIX, coordinates), targetSize);
             currentSize = targetSize;
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -187,6 +188,10 @@ public class RegionImage {
             return;
         }
 
+        resizeToTarget();
+    }
+
+    private void resizeToTarget() {
         BufferedImage bufferedImage = TEMP_IMAGES.get(currentSize);
         SwingFXUtils.fromFXImage(image, bufferedImage);
 
@@ -196,11 +201,45 @@ public class RegionImage {
         currentSize = targetSize;
     }
 
+    /**
+     * Approximate number of bytes retained by this image.
+     */
+    long estimateMemory() {
+        return currentSize * currentSize * 4L + Region.REGION_SIZE * Region.REGION_SIZE * 4L;
+    }
+
+    /**
+     * Number of bytes that would be freed by shrinking this image, or 0 if it cannot be shrunk right now.
+     */
+    long estimateShrinkableMemory() {
+        if (visible || currentSize <= MIN_SIZE) {
+            return 0;
+        }
+        return (currentSize * currentSize - MIN_SIZE * MIN_SIZE) * 4L;
+    }
+
+    /**
+     * Reduce the image to its smallest size to free up memory, even if it was updated recently. The image is saved
+     * first so that it can be loaded at full size again later.
+     */
+    void shrink() throws IOException {
+        if (visible || currentSize <= MIN_SIZE) {
+            return;
+        }
+
+        save();
+        targetSize = MIN_SIZE;
+        resizeToTarget();
+    }
+
     public Image getImage() {
         return image;
     }
 
-    public void drawChunk(Coordinate2D local, Image chunkImage) {
+    /**
+     * Draw a chunk from its ARGB pixels.
+     */
+    public void drawChunk(Coordinate2D local, int[] chunkImage) {
         this.lastUpdated = System.currentTimeMillis();
         this.saved = false;
 
@@ -213,12 +252,11 @@ public class RegionImage {
         drawChunkToImage(local, chunkImage);
     }
 
-    private void drawChunkToImage(Coordinate2D local, Image chunkImage) {
+    private void drawChunkToImage(Coordinate2D local, int[] chunkImage) {
         int size = Chunk.SECTION_WIDTH;
 
-        WritablePixelFormat<ByteBuffer> format = WritablePixelFormat.getByteBgraInstance();
-        chunkImage.getPixelReader().getPixels(0, 0, size, size, format, buffer, 0, size * 4);
-        image.getPixelWriter().setPixels(local.getX() * size, local.getZ() * size, size, size, format, buffer, 0, size * 4);
+        WritablePixelFormat<IntBuffer> format = WritablePixelFormat.getIntArgbInstance();
+        image.getPixelWriter().setPixels(local.getX() * size, local.getZ() * size, size, size, format, chunkImage, 0, size);
 
         saved = false;
     }
@@ -229,30 +267,23 @@ public class RegionImage {
         }
     }
 
+    /**
+     * Write the image to the image cache. The pixels are read from the image once and encoded without JavaFX, in the
+     * same way as when drawing without a GUI.
+     */
     public void save() throws IOException {
         if (saved) {
             return;
         }
 
-        File f = getFile(path, NORMAL_PREFIX, coordinates);
-        BufferedImage img = SwingFXUtils.fromFXImage(image, null);
-        ImageIO.write(img, "png", f);
-
-        img = resize(img, MIN_SIZE);
-        f = getFile(path, SMALL_PREFIX, coordinates);
-        ImageIO.write(img, "png", f);
+        int size = (int) image.getWidth();
+        int[] pixels = new int[size * size];
+        image.getPixelReader().getPixels(0, 0, size, size, WritablePixelFormat.getIntArgbInstance(), pixels, 0, size);
+        RegionPixels.write(path, coordinates, pixels, size);
 
         saved = true;
     }
 
-    public static File getFile(Path p, String prefix, Coordinate2D coords) {
-        return Path.of(p.toString(), prefix + filename(coords)).toFile();
-    }
-
-    private static String filename(Coordinate2D coords) {
-        return "r." + coords.getX() + "." + coords.getZ() + ".png";
-    }
-
     public Image getChunkOverlay() {
         return chunkOverlay;
     }
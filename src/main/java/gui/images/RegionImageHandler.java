@@ -1,12 +1,14 @@
 package gui.images;
 
-import static gui.images.RegionImage.NORMAL_PREFIX;
-import static gui.images.RegionImage.SMALL_PREFIX;
+import static gui.images.RegionPixels.NORMAL_PREFIX;
+import static gui.images.RegionPixels.SMALL_PREFIX;
 import static util.ExceptionHandling.attempt;
 import static util.ExceptionHandling.attemptQuiet;
 
 import config.Config;
+import game.data.MemoryHolder;
 import game.data.WorldManager;
+import game.data.chunk.ChunkImageScheduler;
 import game.data.coordinates.Coordinate2D;
 import game.data.coordinates.CoordinateDim2D;
 import game.data.dimension.Dimension;
@@ -15,26 +17,35 @@ import gui.ChunkImageState;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.function.BiConsumer;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import javafx.scene.image.Image;
 import javafx.scene.paint.Color;
 import org.apache.commons.io.FileUtils;
 
 /**
  * Class to manage overlay images.
+ *
+ * Drawing only visits the regions within the bounds, which are looked up by their coordinates. Regions that are not
+ * visible are checked for resizing periodically instead. Any change to the images marks the handler as changed, so
+ * that the map only has to be redrawn when something is different. When zoomed out, tiles from the tile pyramid are
+ * drawn instead of the region images.
  */
-public class RegionImageHandler {
-    private static final String CACHE_PATH = "image-cache";
+public class RegionImageHandler implements MemoryHolder {
     private Map<Coordinate2D, RegionImages> regions;
     private Dimension activeDimension;
     private boolean isSaving = false;
@@ -44,7 +55,19 @@ public class RegionImageHandler {
     private ImageMode imageMode = ImageMode.NORMAL;
 
     ConcurrentLinkedQueue<RegionImages> resizeLater;
+    private TilePyramid pyramid;
 
+    // regions found in the bounds the last time everything was drawn
+    private volatile Set<Coordinate2D> visibleRegions = Set.of();
+    private volatile double lastBlocksPerPixel = 1;
+    private final AtomicBoolean hasChanged = new AtomicBoolean(true);
+
+    /**
+     * Draws an image covering the given number of regions in each direction, starting at the given region.
+     */
+    public interface TileDrawer {
+        void draw(Coordinate2D region, int regions, Image image);
+    }
 
     public RegionImageHandler() {
         this.regions = new ConcurrentHashMap<>();
@@ -55,14 +78,44 @@ public class RegionImageHandler {
         );
         imageHandlerExecutor.scheduleWithFixedDelay(this::save, 20, 20, TimeUnit.SECONDS);
         imageHandlerExecutor.scheduleWithFixedDelay(this::resizeLater, 15, 5, TimeUnit.SECONDS);
+
+        WorldManager.getInstance().getMemoryBudget().register(this);
     }
 
     private void resizeLater() {
+        // regions are only visited when drawing if they are visible, and not at all if the map is not redrawn, so check
+        // here if any have a different size now that they have not been written to for a while
+        Set<Coordinate2D> visible = visibleRegions;
+        regions.forEach((coordinate, images) -> {
+            boolean isVisible = visible.contains(coordinate);
+            if (!images.updateSize(isVisible, imageMode, lastBlocksPerPixel)) {
+                return;
+            }
+
+            if (isVisible) {
+                images.allowResample();
+                markChanged();
+            } else {
+                resizeLater.add(images);
+            }
+        });
+
         while (!resizeLater.isEmpty()) {
             resizeLater.remove().allowResample();
         }
     }
 
+    private void markChanged() {
+        hasChanged.set(true);
+    }
+
+    /**
+     * Check if any of the images changed since the last time this was called, in which case the map should be redrawn.
+     */
+    public boolean takeChanges() {
+        return hasChanged.getAndSet(false);
+    }
+
     public static ImageMode getOverrideMode() {
         return overrideMode;
     }
@@ -73,11 +126,17 @@ public class RegionImageHandler {
 
     public void clear() {
         unload();
-        attemptQuiet(() -> FileUtils.deleteDirectory(Paths.get(Config.getWorldOutputDir(), CACHE_PATH).toFile()));
+        attemptQuiet(() -> FileUtils.deleteDirectory(RegionPixels.cachePath().toFile()));
     }
 
-    public void drawChunk(CoordinateDim2D coordinate, Map<ImageMode, Image> imageMap, Boolean isSaved) {
+    /**
+     * Draw the images of a chunk. The buffers are given back to the scheduler once they have been copied into the
+     * region images.
+     */
+    public void drawChunk(CoordinateDim2D coordinate, Map<ImageMode, int[]> imageMap, Boolean isSaved) {
+        ChunkImageScheduler scheduler = WorldManager.getInstance().getChunkImageScheduler();
         if (!coordinate.getDimension().equals(activeDimension)) {
+            imageMap.values().forEach(scheduler::releaseBuffer);
             return;
         }
 
@@ -85,13 +144,16 @@ public class RegionImageHandler {
         RegionImages images = regions.computeIfAbsent(region,
             coordinate2D -> RegionImages.loadRegion(activeDimension, region)
         );
+        pyramid.addRegion(region);
 
         Coordinate2D local = coordinate.toRegionLocal();
 
         imageHandlerExecutor.schedule(() -> {
             imageMap.forEach((mode, image) -> {
                 images.getImage(mode).drawChunk(local, image);
+                scheduler.releaseBuffer(image);
             });
+            markChanged();
         }, 0, TimeUnit.MILLISECONDS);
 
 
@@ -111,6 +173,7 @@ public class RegionImageHandler {
 
     private void setChunkState(RegionImages image, Coordinate2D local, ChunkImageState state) {
         image.colourChunk(local, state.getColor());
+        markChanged();
     }
 
 
@@ -118,7 +181,7 @@ public class RegionImageHandler {
         setChunkState(coordinate, ChunkImageState.SAVED);
     }
 
-    private void save(Map<Coordinate2D, RegionImages> regions, Dimension dim) {
+    private void save(Map<Coordinate2D, RegionImages> regions, Dimension dim, TilePyramid pyramid) {
         // if shutdown is called, wait for saving to complete
         if (isSaving) {
             if (imageHandlerExecutor != null) {
@@ -129,37 +192,56 @@ public class RegionImageHandler {
         isSaving = true;
 
         for (ImageMode mode : ImageMode.values()) {
-            attempt(() -> Files.createDirectories(dimensionPath(dim, mode)));
+            attempt(() -> Files.createDirectories(RegionPixels.dimensionPath(dim, mode)));
         }
 
-        regions.forEach((coordinate, image) -> {
-            attempt(image::save);
+        regions.forEach((coordinate, images) -> {
+            for (ImageMode mode : ImageMode.values()) {
+                RegionImage image = images.getImage(mode);
+                if (image.saved) {
+                    continue;
+                }
+
+                attempt(image::save);
+                pyramid.regionChanged(mode, coordinate);
+            }
         });
 
         isSaving = false;
     }
 
     public void save() {
-        save(this.regions, this.activeDimension);
+        if (this.pyramid == null) {
+            return;
+        }
+        save(this.regions, this.activeDimension, this.pyramid);
     }
 
     private void unload() {
         this.regions = new ConcurrentHashMap<>();
+        this.pyramid = new TilePyramid(activeDimension, imageHandlerExecutor, this::markChanged);
+        this.visibleRegions = Set.of();
+        markChanged();
     }
 
     /**
      * Searches for all region files in a directory to load them in.
      */
     private void loadFromFile() {
+        Map<Coordinate2D, RegionImages> regions = this.regions;
+        TilePyramid pyramid = this.pyramid;
         new Thread(() -> attemptQuiet(() -> {
             // walk one of the modes, check for the others if we find one
-            Files.walk(dimensionPath(this.activeDimension, ImageMode.NORMAL), 1)
+            Files.walk(RegionPixels.dimensionPath(this.activeDimension, ImageMode.NORMAL), 1)
                 .limit(32000)
-                .forEach(image -> attempt(() -> loadFromFile(regions, this.activeDimension, image)));
+                .forEach(image -> attempt(() -> {
+                    loadFromFile(regions, pyramid, this.activeDimension, image);
+                    markChanged();
+                }));
         })).start();
     }
 
-    private static void loadFromFile(Map<Coordinate2D, RegionImages> regions, Dimension dim, Path image) {
+    private static void loadFromFile(Map<Coordinate2D, RegionImages> regions, TilePyramid pyramid, Dimension dim, Path image) {
         if (!image.toString().toLowerCase().endsWith("png") || image.getFileName().startsWith(SMALL_PREFIX)) {
             return;
         }
@@ -171,6 +253,7 @@ public class RegionImageHandler {
         Coordinate2D regionCoordinate = new Coordinate2D(x, z);
 
         regions.computeIfAbsent(regionCoordinate, coord -> RegionImages.loadRegion(dim, coord));
+        pyramid.addRegion(regionCoordinate);
     }
 
     public void setDimension(Dimension dimension) {
@@ -180,57 +263,181 @@ public class RegionImageHandler {
 
         if (this.activeDimension != null) {
             save();
-            unload();
         }
 
         this.activeDimension = dimension;
+        unload();
         loadFromFile();
     }
 
-    static Path dimensionPath(Dimension dim) {
-        return Paths.get(Config.getWorldOutputDir(), CACHE_PATH, dim.getPath());
-    }
+    /**
+     * Update the render mode, if it changed the map will have to be redrawn.
+     */
+    public void updateRenderMode() {
+        ImageMode previous = imageMode;
+        imageMode = computeRenderMode();
 
-    static Path dimensionPath(Dimension dim, ImageMode mode) {
-        return Paths.get(Config.getWorldOutputDir(), CACHE_PATH, mode.path(), dim.getPath());
+        if (imageMode != previous) {
+            WorldManager.getInstance().getChunkImageScheduler().setActiveMode(imageMode);
+            markChanged();
+        }
     }
 
-    private void updateRenderMode() {
+    private ImageMode computeRenderMode() {
         boolean isNether = WorldManager.getInstance().getDimension().isNether();
 
         if (overrideMode != null) {
-            imageMode = isNether ? overrideMode.other() : overrideMode;
-            return;
+            return isNether ? overrideMode.other() : overrideMode;
         }
 
         if (Config.enableCaveRenderMode()) {
-            imageMode = WorldManager.getInstance().isBelowGround() ? ImageMode.CAVES : ImageMode.NORMAL;
+            return WorldManager.getInstance().isBelowGround() ? ImageMode.CAVES : ImageMode.NORMAL;
         } else {
-            imageMode = isNether ? ImageMode.CAVES : ImageMode.NORMAL;
+            return isNether ? ImageMode.CAVES : ImageMode.NORMAL;
         }
     }
 
-    public void drawAll(Bounds bounds, double blocksPerPixel, BiConsumer<Coordinate2D, Image> drawRegion) {
+    /**
+     * Draw the map within the bounds.
+     * @param blocksPerPixel       the current zoom level, decides whether region images or tiles are drawn
+     * @param targetBlocksPerPixel the zoom level that is being zoomed to, which region images are resized for
+     */
+    public void drawAll(Bounds bounds, double blocksPerPixel, double targetBlocksPerPixel, TileDrawer drawer) {
         updateRenderMode();
 
-        regions.forEach((coordinate, images) -> {
-            boolean isVisible = bounds.overlaps(coordinate);
+        int level = TilePyramid.levelFor(blocksPerPixel);
+        Set<Coordinate2D> visible;
+        if (level == 0) {
+            visible = drawRegions(bounds, targetBlocksPerPixel, drawer);
+        } else {
+            // region images are not drawn at all, so they can all be shrunk
+            visible = Set.of();
+            if (pyramid != null) {
+                pyramid.drawAll(bounds, level, imageMode, drawer);
+            }
+        }
 
-            boolean shouldResize = images.updateSize(isVisible, imageMode, blocksPerPixel);
-            if (isVisible && shouldResize) {
-                imageHandlerExecutor.schedule(images::allowResample, 0, TimeUnit.MILLISECONDS);
-            } else if (shouldResize) {
+        // regions that are no longer visible can be shrunk
+        for (Coordinate2D coordinate : visibleRegions) {
+            RegionImages images = regions.get(coordinate);
+            if (images != null && !visible.contains(coordinate) && images.updateSize(false, imageMode, targetBlocksPerPixel)) {
                 resizeLater.add(images);
             }
+        }
 
-            if (isVisible) {
-                RegionImage image = images.getImage(imageMode);
-                if (image == null) { return; }
+        this.visibleRegions = visible;
+        this.lastBlocksPerPixel = targetBlocksPerPixel;
+    }
 
-                drawRegion.accept(coordinate, image.getImage());
-                drawRegion.accept(coordinate, image.getChunkOverlay());
+    private Set<Coordinate2D> drawRegions(Bounds bounds, double blocksPerPixel, TileDrawer drawer) {
+        Set<Coordinate2D> visible = new HashSet<>(findVisible(bounds));
+        for (Coordinate2D coordinate : visible) {
+            RegionImages images = regions.get(coordinate);
+            if (images == null) { continue; }
+
+            if (images.updateSize(true, imageMode, blocksPerPixel)) {
+                imageHandlerExecutor.schedule(() -> {
+                    images.allowResample();
+                    markChanged();
+                }, 0, TimeUnit.MILLISECONDS);
             }
-        });
+
+            RegionImage image = images.getImage(imageMode);
+            if (image == null) { continue; }
+
+            drawer.draw(coordinate, 1, image.getImage());
+            drawer.draw(coordinate, 1, image.getChunkOverlay());
+        }
+        return visible;
+    }
+
+    /**
+     * Find the regions with images that overlap with the bounds. If the bounds cover fewer regions than we have images
+     * for, the regions within the bounds are looked up directly, otherwise all images are checked.
+     */
+    private List<Coordinate2D> findVisible(Bounds bounds) {
+        List<Coordinate2D> visible = new ArrayList<>();
+        if (bounds.getMaxX() < bounds.getMinX() || bounds.getMaxZ() < bounds.getMinZ()) {
+            return visible;
+        }
+
+        long minX = Math.floorDiv((long) Math.floor(bounds.getMinX()), 512);
+        long maxX = Math.floorDiv((long) Math.floor(bounds.getMaxX()), 512);
+        long minZ = Math.floorDiv((long) Math.floor(bounds.getMinZ()), 512);
+        long maxZ = Math.floorDiv((long) Math.floor(bounds.getMaxZ()), 512);
+
+        long area = (maxX - minX + 1) * (maxZ - minZ + 1);
+        if (area > regions.size()) {
+            for (Coordinate2D coordinate : regions.keySet()) {
+                if (bounds.overlaps(coordinate)) {
+                    visible.add(coordinate);
+                }
+            }
+            return visible;
+        }
+
+        for (long x = minX; x <= maxX; x++) {
+            for (long z = minZ; z <= maxZ; z++) {
+                Coordinate2D coordinate = new Coordinate2D((int) x, (int) z);
+                if (regions.containsKey(coordinate) && bounds.overlaps(coordinate)) {
+                    visible.add(coordinate);
+                }
+            }
+        }
+        return visible;
+    }
+
+    @Override
+    public long estimateMemory() {
+        long size = pyramid == null ? 0 : pyramid.estimateMemory();
+        for (RegionImages images : regions.values()) {
+            size += images.normal.estimateMemory() + images.caves.estimateMemory();
+        }
+        return size;
+    }
+
+    /**
+     * Drop the cached tiles of the zoomed out map first, as they are cheap to load again. If that is not enough, shrink
+     * the images of regions that are not visible to their smallest size, starting with the ones that were updated least
+     * recently. They are loaded at full size again once they become visible.
+     */
+    @Override
+    public long release(long bytes) {
+        if (imageHandlerExecutor.isShutdown()) {
+            return 0;
+        }
+
+        long released = pyramid == null ? 0 : pyramid.release(bytes);
+        if (released >= bytes) {
+            return released;
+        }
+
+        List<RegionImage> candidates = regions.values().stream()
+            .flatMap(images -> Stream.of(images.normal, images.caves))
+            .filter(image -> image.estimateShrinkableMemory() > 0)
+            .sorted(Comparator.comparingLong(image -> image.lastUpdated))
+            .toList();
+
+        // shrunk on the image handler thread, which must not be the calling thread
+        long requested = released;
+        List<CompletableFuture<Long>> shrinks = new ArrayList<>();
+        for (RegionImage image : candidates) {
+            if (requested >= bytes) {
+                break;
+            }
+
+            requested += image.estimateShrinkableMemory();
+            shrinks.add(CompletableFuture.supplyAsync(() -> {
+                long before = image.estimateMemory();
+                attempt(image::shrink);
+                return before - image.estimateMemory();
+            }, imageHandlerExecutor));
+        }
+
+        for (CompletableFuture<Long> shrink : shrinks) {
+            released += shrink.exceptionally(ex -> 0L).join();
+        }
+        return released;
     }
 
     public String stats() {
@@ -259,12 +466,16 @@ public class RegionImageHandler {
     }
 
     public void resetRegion(Coordinate2D region) {
-        attemptQuiet(() -> FileUtils.delete(RegionImage.getFile(dimensionPath(this.activeDimension, ImageMode.NORMAL), NORMAL_PREFIX, region)));
-        attemptQuiet(() -> FileUtils.delete(RegionImage.getFile(dimensionPath(this.activeDimension, ImageMode.CAVES), NORMAL_PREFIX, region)));
+        attemptQuiet(() -> FileUtils.delete(RegionPixels.getFile(RegionPixels.dimensionPath(this.activeDimension, ImageMode.NORMAL), NORMAL_PREFIX, region)));
+        attemptQuiet(() -> FileUtils.delete(RegionPixels.getFile(RegionPixels.dimensionPath(this.activeDimension, ImageMode.CAVES), NORMAL_PREFIX, region)));
 
-        attemptQuiet(() -> FileUtils.delete(RegionImage.getFile(dimensionPath(this.activeDimension, ImageMode.NORMAL), SMALL_PREFIX, region)));
-        attemptQuiet(() -> FileUtils.delete(RegionImage.getFile(dimensionPath(this.activeDimension, ImageMode.CAVES), SMALL_PREFIX, region)));
+        attemptQuiet(() -> FileUtils.delete(RegionPixels.getFile(RegionPixels.dimensionPath(this.activeDimension, ImageMode.NORMAL), SMALL_PREFIX, region)));
+        attemptQuiet(() -> FileUtils.delete(RegionPixels.getFile(RegionPixels.dimensionPath(this.activeDimension, ImageMode.CAVES), SMALL_PREFIX, region)));
         regions.remove(region);
+        for (ImageMode mode : ImageMode.values()) {
+            pyramid.regionChanged(mode, region);
+        }
+        markChanged();
     }
 }
 
@@ -278,8 +489,8 @@ class RegionImages {
     }
 
     public static RegionImages loadRegion(Dimension dimension, Coordinate2D coordinate) {
-        RegionImage normal = RegionImage.of(RegionImageHandler.dimensionPath(dimension, ImageMode.NORMAL), coordinate);
-        RegionImage caves = RegionImage.of(RegionImageHandler.dimensionPath(dimension, ImageMode.CAVES), coordinate);
+        RegionImage normal = RegionImage.of(RegionPixels.dimensionPath(dimension, ImageMode.NORMAL), coordinate);
+        RegionImage caves = RegionImage.of(RegionPixels.dimensionPath(dimension, ImageMode.CAVES), coordinate);
 
         return new RegionImages(coordinate, normal, caves);
     }
@@ -0,0 +1,171 @@
+package gui.images;
+
+import config.Config;
+import game.data.chunk.Chunk;
+import game.data.coordinates.Coordinate2D;
+import game.data.dimension.Dimension;
+import game.data.region.Region;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import javax.imageio.ImageIO;
+import util.PngEncoder;
+
+/**
+ * The pixels of a region image as ARGB integers. This class and its static helpers do not depend on JavaFX, so that the
+ * map can be drawn into the image cache without a GUI. The GUI uses the same helpers to write its images.
+ */
+public class RegionPixels {
+    public static final String NORMAL_PREFIX = "";
+    public static final String SMALL_PREFIX = "small_";
+
+    static final int SIZE = Chunk.SECTION_WIDTH * Region.REGION_SIZE;
+    static final int SMALL_SIZE = 16;
+    private static final String CACHE_PATH = "image-cache";
+
+    private final int[] pixels;
+    private boolean saved;
+    private long lastUpdated;
+
+    private RegionPixels(int[] pixels) {
+        this.pixels = pixels;
+        this.saved = true;
+    }
+
+    /**
+     * Load the region's pixels from the image cache, so that chunks drawn before are kept.
+     */
+    public static RegionPixels load(Path directory, Coordinate2D coordinates) {
+        try {
+            int[] pixels = read(getFile(directory, NORMAL_PREFIX, coordinates), SIZE);
+            if (pixels != null) {
+                return new RegionPixels(pixels);
+            }
+        } catch (IOException e) {
+            // unreadable images are replaced
+        }
+        return new RegionPixels(new int[SIZE * SIZE]);
+    }
+
+    /**
+     * Copy the ARGB pixels of a chunk into the region.
+     */
+    public synchronized void drawChunk(Coordinate2D local, int[] chunkImage) {
+        int size = Chunk.SECTION_WIDTH;
+        int offset = local.getZ() * size * SIZE + local.getX() * size;
+        for (int z = 0; z < size; z++) {
+            System.arraycopy(chunkImage, z * size, pixels, offset + z * SIZE, size);
+        }
+
+        this.saved = false;
+        this.lastUpdated = System.currentTimeMillis();
+    }
+
+    public synchronized void save(Path directory, Coordinate2D coordinates) throws IOException {
+        if (saved) {
+            return;
+        }
+
+        write(directory, coordinates, pixels, SIZE);
+        saved = true;
+    }
+
+    /**
+     * Whether the region is saved and has not been drawn to for the given time, in which case it can be dropped.
+     */
+    public synchronized boolean isIdle(long millis) {
+        return saved && System.currentTimeMillis() - lastUpdated > millis;
+    }
+
+    static Path dimensionPath(Dimension dim, ImageMode mode) {
+        return Paths.get(Config.getWorldOutputDir(), CACHE_PATH, mode.path(), dim.getPath());
+    }
+
+    static Path cachePath() {
+        return Paths.get(Config.getWorldOutputDir(), CACHE_PATH);
+    }
+
+    public static File getFile(Path p, String prefix, Coordinate2D coords) {
+        return Path.of(p.toString(), prefix + filename(coords)).toFile();
+    }
+
+    private static String filename(Coordinate2D coords) {
+        return "r." + coords.getX() + "." + coords.getZ() + ".png";
+    }
+
+    /**
+     * Write a region image, along with the small version that is shown before the region is loaded at full size.
+     */
+    static void write(Path directory, Coordinate2D coordinates, int[] pixels, int size) throws IOException {
+        PngEncoder.write(getFile(directory, NORMAL_PREFIX, coordinates), pixels, size, size);
+
+        int[] small = new int[SMALL_SIZE * SMALL_SIZE];
+        downsample(pixels, size, small, SMALL_SIZE, 0, 0, SMALL_SIZE);
+        PngEncoder.write(getFile(directory, SMALL_PREFIX, coordinates), small, SMALL_SIZE, SMALL_SIZE);
+    }
+
+    /**
+     * Read an image as ARGB pixels, scaling it to the given size if needed.
+     * @return the pixels, or null if there is no image
+     */
+    static int[] read(File file, int size) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            return null;
+        }
+
+        if (image.getWidth() != size || image.getHeight() != size) {
+            BufferedImage scaled = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D graphics = scaled.createGraphics();
+            graphics.drawImage(image, 0, 0, size, size, null);
+            graphics.dispose();
+            image = scaled;
+        }
+        return image.getRGB(0, 0, size, size, null, 0, size);
+    }
+
+    /**
+     * Scale down a square image by averaging blocks of pixels, and write the result into part of another image. The
+     * colour channels are weighted by alpha so that transparent pixels, which are parts of the map that were not drawn,
+     * do not darken the edges.
+     * @param target      the image to write to, with the given width
+     * @param targetSize  the width and height of the scaled image, should divide the original size
+     */
+    static void downsample(int[] source, int size, int[] target, int targetWidth, int targetX, int targetZ, int targetSize) {
+        int factor = size / targetSize;
+        int count = factor * factor;
+
+        for (int tz = 0; tz < targetSize; tz++) {
+            for (int tx = 0; tx < targetSize; tx++) {
+                long alpha = 0, red = 0, green = 0, blue = 0;
+                for (int z = tz * factor; z < (tz + 1) * factor; z++) {
+                    for (int x = tx * factor; x < (tx + 1) * factor; x++) {
+                        int pixel = source[z * size + x];
+                        int a = pixel >>> 24;
+
+                        alpha += a;
+                        red += a * ((pixel >> 16) & 0xFF);
+                        green += a * ((pixel >> 8) & 0xFF);
+                        blue += a * (pixel & 0xFF);
+                    }
+                }
+
+                int result = 0;
+                if (alpha > 0) {
+                    result = (int) ((alpha + count / 2) / count) << 24
+                        | (int) ((red + alpha / 2) / alpha) << 16
+                        | (int) ((green + alpha / 2) / alpha) << 8
+                        | (int) ((blue + alpha / 2) / alpha);
+                }
+                target[(targetZ + tz) * targetWidth + targetX + tx] = result;
+            }
+        }
+    }
+}
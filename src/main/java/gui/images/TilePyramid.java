@@ -0,0 +1,276 @@
+package gui.images;
+
+import static gui.images.RegionPixels.NORMAL_PREFIX;
+import static util.ExceptionHandling.attempt;
+
+import game.data.coordinates.Coordinate2D;
+import game.data.dimension.Dimension;
+import gui.Bounds;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.Image;
+import javax.imageio.ImageIO;
+import util.PngEncoder;
+
+/**
+ * Tiles for drawing the map when it is zoomed out. Level 0 consists of the region images themselves, each tile on
+ * level n covers 2^n by 2^n regions and is made by scaling down the four tiles of the level below it. As tiles are the
+ * same size as region images, about the same number of tiles is drawn at any zoom level.
+ *
+ * Tiles are stored in the image cache next to the region images, with a directory per level. A tile is made again if
+ * one of the images it is made from was written after it, or if a region in it was saved since it was last checked.
+ * Loading and making tiles is done on the region image handler's thread.
+ */
+public class TilePyramid {
+    static final int MAX_LEVEL = 8;
+    private static final int TILE_SIZE = 512;
+    private static final long TILE_MEMORY = TILE_SIZE * TILE_SIZE * 4L;
+    private static final int CACHE_SIZE = 96;
+    private static final String LEVEL_PREFIX = "level-";
+
+    private final Dimension dimension;
+    private final Executor executor;
+    private final Runnable onTileLoaded;
+
+    // for each level, the tiles that contain at least one region
+    private final List<Set<Coordinate2D>> occupied;
+
+    private final Map<TileKey, Image> cache;
+    private final Set<TileKey> pending;
+
+    // tiles that were checked against the images they are made from, and those that must be made again
+    private final Set<TileKey> verified;
+    private final Set<TileKey> stale;
+
+    public TilePyramid(Dimension dimension, Executor executor, Runnable onTileLoaded) {
+        this.dimension = dimension;
+        this.executor = executor;
+        this.onTileLoaded = onTileLoaded;
+
+        this.occupied = new ArrayList<>(MAX_LEVEL + 1);
+        for (int level = 0; level <= MAX_LEVEL; level++) {
+            occupied.add(ConcurrentHashMap.newKeySet());
+        }
+
+        this.cache = new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<TileKey, Image> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+        this.pending = ConcurrentHashMap.newKeySet();
+        this.verified = ConcurrentHashMap.newKeySet();
+        this.stale = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * The level to draw at for the given zoom. Tiles are only used once region images would be drawn at half their
+     * size or less, up to the maximum zoom level of 256 blocks per pixel.
+     * @return the level, or 0 if the region images should be drawn
+     */
+    public static int levelFor(double blocksPerPixel) {
+        if (blocksPerPixel < 2) {
+            return 0;
+        }
+        int level = 31 - Integer.numberOfLeadingZeros((int) blocksPerPixel);
+        return Math.min(level, MAX_LEVEL);
+    }
+
+    /**
+     * Called when a region image exists, so that the tiles it is in are drawn.
+     */
+    public void addRegion(Coordinate2D region) {
+        for (int level = 0; level <= MAX_LEVEL; level++) {
+            occupied.get(level).add(new Coordinate2D(region.getX() >> level, region.getZ() >> level));
+        }
+    }
+
+    /**
+     * Called when a region image was written or removed, so that the tiles containing it are made again. Tiles that
+     * are currently loaded are made again right away.
+     */
+    public void regionChanged(ImageMode mode, Coordinate2D region) {
+        for (int level = 1; level <= MAX_LEVEL; level++) {
+            TileKey key = new TileKey(mode, level, region.getX() >> level, region.getZ() >> level);
+            stale.add(key);
+            verified.remove(key);
+
+            boolean isLoaded;
+            synchronized (cache) {
+                isLoaded = cache.containsKey(key);
+            }
+            if (isLoaded) {
+                load(key);
+            }
+        }
+    }
+
+    /**
+     * Draw the tiles within the bounds. Tiles that are not loaded yet are skipped, they are loaded in the background
+     * and the map is redrawn once they are available.
+     */
+    public void drawAll(Bounds bounds, int level, ImageMode mode, RegionImageHandler.TileDrawer drawer) {
+        if (bounds.getMaxX() < bounds.getMinX() || bounds.getMaxZ() < bounds.getMinZ()) {
+            return;
+        }
+
+        long blocksPerTile = 512L << level;
+        long minX = Math.floorDiv((long) Math.floor(bounds.getMinX()), blocksPerTile);
+        long maxX = Math.floorDiv((long) Math.floor(bounds.getMaxX()), blocksPerTile);
+        long minZ = Math.floorDiv((long) Math.floor(bounds.getMinZ()), blocksPerTile);
+        long maxZ = Math.floorDiv((long) Math.floor(bounds.getMaxZ()), blocksPerTile);
+
+        Set<Coordinate2D> tiles = occupied.get(level);
+        for (long x = minX; x <= maxX; x++) {
+            for (long z = minZ; z <= maxZ; z++) {
+                if (!tiles.contains(new Coordinate2D((int) x, (int) z))) {
+                    continue;
+                }
+
+                Image image = getTile(new TileKey(mode, level, (int) x, (int) z));
+                if (image != null) {
+                    drawer.draw(new Coordinate2D((int) x << level, (int) z << level), 1 << level, image);
+                }
+            }
+        }
+    }
+
+    private Image getTile(TileKey key) {
+        synchronized (cache) {
+            Image image = cache.get(key);
+            if (image != null) {
+                return image;
+            }
+        }
+        load(key);
+        return null;
+    }
+
+    private void load(TileKey key) {
+        if (!pending.add(key)) {
+            return;
+        }
+
+        executor.execute(() -> attempt(() -> {
+            // removed before loading, so that changes made while loading cause it to be loaded again
+            pending.remove(key);
+
+            File file = ensure(key);
+            BufferedImage tile = file == null ? null : ImageIO.read(file);
+            if (tile == null) {
+                return;
+            }
+
+            Image image = SwingFXUtils.toFXImage(tile, null);
+            synchronized (cache) {
+                cache.put(key, image);
+            }
+            onTileLoaded.run();
+        }));
+    }
+
+    /**
+     * Make sure the tile is up-to-date, first making the tiles below it up-to-date.
+     * @return the tile's file, or null if there are no images in it.
+     */
+    private File ensure(TileKey key) throws IOException {
+        File file = getFile(key);
+        if (verified.contains(key)) {
+            return file.exists() ? file : null;
+        }
+
+        boolean shouldMake = stale.remove(key) || !file.exists();
+        boolean hasContents = false;
+
+        File[] children = new File[4];
+        for (int i = 0; i < children.length; i++) {
+            Coordinate2D child = new Coordinate2D(key.x() * 2 + (i & 1), key.z() * 2 + (i >> 1));
+            children[i] = getChildFile(key, child);
+
+            if (children[i] != null) {
+                hasContents = true;
+                shouldMake |= children[i].lastModified() > file.lastModified();
+            }
+        }
+
+        if (!hasContents) {
+            Files.deleteIfExists(file.toPath());
+        } else if (shouldMake) {
+            make(file, children);
+        }
+
+        verified.add(key);
+        return hasContents ? file : null;
+    }
+
+    private File getChildFile(TileKey key, Coordinate2D child) throws IOException {
+        if (!occupied.get(key.level() - 1).contains(child)) {
+            return null;
+        }
+
+        if (key.level() == 1) {
+            File file = RegionPixels.getFile(RegionPixels.dimensionPath(dimension, key.mode()), NORMAL_PREFIX, child);
+            return file.exists() ? file : null;
+        }
+        return ensure(new TileKey(key.mode(), key.level() - 1, child.getX(), child.getZ()));
+    }
+
+    /**
+     * Make a tile by drawing the four tiles below it at half size.
+     */
+    private static void make(File file, File[] children) throws IOException {
+        int[] tile = new int[TILE_SIZE * TILE_SIZE];
+
+        int half = TILE_SIZE / 2;
+        for (int i = 0; i < children.length; i++) {
+            int[] child = children[i] == null ? null : RegionPixels.read(children[i], TILE_SIZE);
+            if (child != null) {
+                RegionPixels.downsample(child, TILE_SIZE, tile, TILE_SIZE, (i & 1) * half, (i >> 1) * half, half);
+            }
+        }
+
+        Files.createDirectories(file.toPath().getParent());
+        PngEncoder.write(file, tile, TILE_SIZE, TILE_SIZE);
+    }
+
+    private File getFile(TileKey key) {
+        Path levelPath = RegionPixels.dimensionPath(dimension, key.mode()).resolve(LEVEL_PREFIX + key.level());
+        return RegionPixels.getFile(levelPath, NORMAL_PREFIX, new Coordinate2D(key.x(), key.z()));
+    }
+
+    long estimateMemory() {
+        synchronized (cache) {
+            return cache.size() * TILE_MEMORY;
+        }
+    }
+
+    /**
+     * Drop loaded tiles, starting with the ones that were drawn least recently.
+     * @return the number of bytes released
+     */
+    long release(long bytes) {
+        long released = 0;
+        synchronized (cache) {
+            var iterator = cache.entrySet().iterator();
+            while (released < bytes && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+                released += TILE_MEMORY;
+            }
+        }
+        return released;
+    }
+
+    private record TileKey(ImageMode mode, int level, int x, int z) { }
+}
@@ -3,46 +3,79 @@ package packets;
 import proxy.CompressionManager;
 
 import javax.naming.SizeLimitExceededException;
+import java.nio.ByteBuffer;
 
 public class DataProvider {
     private static final int MAX_SIZE = 2097152;
-    private DataReader reader;
-    private CompressionManager compressionManager;
+    private static final int MAX_VARINT_SIZE = 5;
 
-    public DataProvider(DataReader reader) {
-        this.reader = reader;
-    }
+    private CompressionManager compressionManager;
+    private final byte[] peekBuffer = new byte[MAX_VARINT_SIZE];
 
     public void setCompressionManager(CompressionManager compressionManager) {
         this.compressionManager = compressionManager;
     }
 
+    /**
+     * Read the packet ID without copying the packet. If the packet is compressed, only the first few bytes are
+     * inflated, which is enough to read the ID. The frame's position is left unchanged.
+     * @param frame view of the packet, not including the packet size
+     * @return the packet ID, or -1 if it could not be read
+     */
+    public int peekPacketId(ByteBuffer frame) {
+        int start = frame.position();
+        try {
+            if (!compressionManager.isCompressionEnabled()) {
+                return DataReader.readVarInt(frame);
+            }
+
+            int uncompressedSize = DataReader.readVarInt(frame);
+            if (uncompressedSize == 0) {
+                return DataReader.readVarInt(frame);
+            }
+
+            // leave oversized packets to the full read, which rejects them
+            if (uncompressedSize > MAX_SIZE) {
+                return -1;
+            }
+
+            int inflated = CompressionManager.zlibPeek(
+                frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), peekBuffer
+            );
+            VarIntResult id = new VarIntResult(false, 0, 0);
+            int[] index = { 0 };
+            DataReader.readVarInt(() -> index[0] < inflated, () -> peekBuffer[index[0]++], id);
+
+            return id.isComplete() ? id.getResult() : -1;
+        } finally {
+            frame.position(start);
+        }
+    }
+
     /**
      * Provides the object with all the bytes from the packet, allowing them to be read into the correct data types
      * easily. This method will also decompress the packet, as this is the first time we have the full packet
      * available, which is what we need for valid decompression.
-     * @param size the packet size
+     *
+     * The given frame is a view of the reader's buffer, which will be overwritten once the next packets arrive. The
+     * returned type provider may be kept around for later parsing, so it will always have its own copy of the data.
+     * @param frame view of the packet, not including the packet size
      * @return the data parser for the decompressed packet
      */
-    public DataTypeProvider withSize(int size) throws SizeLimitExceededException {
-        byte[] compressed = reader.readByteArray(size);
-
+    public DataTypeProvider withFrame(ByteBuffer frame) throws SizeLimitExceededException {
         byte[] fullPacket;
         if (compressionManager.isCompressionEnabled()) {
-            final int[] compressionPos = {0};
-            int uncompressedSize = DataReader.readVarInt(
-                () -> compressionPos[0] < compressed.length,
-                () -> compressed[compressionPos[0]++]
-            );
+            int uncompressedSize = DataReader.readVarInt(frame);
 
             // packets over this size will crash the game client, so it may help to reject them here
             if (uncompressedSize > MAX_SIZE) {
                 throw new SizeLimitExceededException("WARNING: discarding packet over maximum size (size: " + uncompressedSize + ")");
             }
 
-            fullPacket = compressionManager.decompressPacket(compressed, compressionPos[0], uncompressedSize);
+            fullPacket = compressionManager.decompressPacket(frame, uncompressedSize);
         } else {
-            fullPacket = compressed;
+            fullPacket = new byte[frame.remaining()];
+            frame.get(fullPacket);
         }
 
         return DataTypeProvider.ofPacket(fullPacket);
@@ -1,39 +1,50 @@
 package packets;
 
 import packets.handler.PacketHandler;
-import packets.lib.ByteQueue;
-import proxy.ByteConsumer;
+import packets.lib.ByteConsumer;
+import proxy.ByteTransformer;
 import proxy.EncryptionManager;
 
+import java.io.Flushable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.function.Supplier;
-import java.util.function.UnaryOperator;
 
 /**
  * This class takes care of reading in bytes from the network steam and turning it into individual packets.
  */
 public class DataReader {
-    private static final int QUEUE_INIT_SIZE = 2 << 15 - 1;
-    private ByteQueue queue;
-    private ByteQueue currentPacket;
+    private static final int BUFFER_INIT_SIZE = 1 << 16;
+
+    /**
+     * Holds the received bytes that have not yet been framed. The buffer is always kept in read mode: the bytes
+     * between position and limit are unread, anything before position belongs to packets that were already handled.
+     */
+    private ByteBuffer buffer;
     private PacketHandler packetHandler;
 
     private final Supplier<Boolean> encryptionStatus;
-    private final UnaryOperator<byte[]> decrypt;
+    private final ByteTransformer decrypt;
     private final ByteConsumer transmit;
+    private final Flushable flush;
 
-    private VarIntResult varIntPacketSize;
+    private final VarIntResult varIntPacketSize;
+    private final ParseStage parseStage;
 
 
     /**
      * Initialise the reader. Gets a decryptor operator and transmitter method.
-     * @param decrypt  the decryptor operator
+     * @param decrypt  the in-place decryptor
      * @param transmit the transmit function
+     * @param flush    called after all received data has been handled, to send out any buffered packets
      */
-    private DataReader(Supplier<Boolean> encryptionStatus, UnaryOperator<byte[]> decrypt, ByteConsumer transmit) {
+    DataReader(String name, Supplier<Boolean> encryptionStatus, ByteTransformer decrypt, ByteConsumer transmit, Flushable flush) {
+        this.parseStage = new ParseStage(name);
         this.encryptionStatus = encryptionStatus;
         this.decrypt = decrypt;
         this.transmit = transmit;
+        this.flush = flush;
+        this.varIntPacketSize = new VarIntResult();
 
         reset();
     }
@@ -42,23 +53,24 @@ public class DataReader {
      * Reset the reader in case the connection was lost.
      */
     public void reset() {
-        queue = new ByteQueue(QUEUE_INIT_SIZE);
-        currentPacket = new ByteQueue(QUEUE_INIT_SIZE);
-        varIntPacketSize = new VarIntResult();
+        buffer = ByteBuffer.allocate(BUFFER_INIT_SIZE);
+        buffer.limit(0);
+        varIntPacketSize.reset();
+        parseStage.shutdown();
     }
 
     /**
      * Initialise a client-bound data reader.
      */
     public static DataReader clientBound(EncryptionManager manager) {
-        return new DataReader(manager::isEncryptionEnabled, manager::clientBoundDecrypt, manager::streamToClient);
+        return new DataReader("Client-bound Packet Parser", manager::isEncryptionEnabled, manager::clientBoundDecrypt, manager::streamToClient, manager::flush);
     }
 
     /**
      * Initialise a server-bound data reader.
      */
     public static DataReader serverBound(EncryptionManager manager) {
-        return new DataReader(manager::isEncryptionEnabled, manager::serverBoundDecrypt, manager::streamToServer);
+        return new DataReader("Server-bound Packet Parser", manager::isEncryptionEnabled, manager::serverBoundDecrypt, manager::streamToServer, manager::flush);
     }
 
     /**
@@ -101,143 +113,124 @@ public class DataReader {
     }
 
     /**
-     * Push data to this reader.
+     * Read a varInt from the given buffer, starting at its current position. The position is moved past the varInt.
+     */
+    public static int readVarInt(ByteBuffer buffer) {
+        return readVarInt(buffer::hasRemaining, buffer::get);
+    }
+
+    /**
+     * Push data to this reader. The bytes are copied into the reader's buffer in bulk and decrypted in place, after
+     * which any complete packets are handled. Packets that are forwarded are sent out together once all of them have
+     * been handled.
      * @param b      the bytes array containing the new data
      * @param amount the number of bytes to read from the array
      */
     public void pushData(byte[] b, int amount) throws IOException {
         if (amount == 0) { return; }
 
+        int start = reserve(amount);
+        System.arraycopy(b, 0, buffer.array(), start, amount);
+
         if (encryptionStatus.get()) {
-            decryptPacket(b, amount);
-        } else {
-            for (int i = 0; i < amount; i++) {
-                queue.insert(b[i]);
-            }
+            decrypt.apply(buffer.array(), start, amount);
         }
         readPackets();
+        flush.flush();
     }
 
     /**
-     * If the packet is encrypted, decrypt it. Adds the decrypted bytes to the regular queue.
-     * @param b      the encrypted bytes
-     * @param amount the number of bytes to read from the given array
+     * Make room for the given number of bytes at the end of the buffer, and extend the limit to include them. If
+     * there is not enough free space after the unread bytes, they are first moved to the start of the buffer. Only if
+     * that is not enough either, a larger buffer is allocated.
+     * @param amount the number of bytes to reserve
+     * @return the index in the backing array where the new bytes should be written
      */
-    private void decryptPacket(byte[] b, int amount) {
-        byte[] encrypted = b;
-
-        if (b.length != amount) {
-            encrypted = new byte[amount];
-            System.arraycopy(b, 0, encrypted, 0, amount);
+    private int reserve(int amount) {
+        if (buffer.capacity() - buffer.limit() < amount) {
+            int unread = buffer.remaining();
+
+            if (buffer.capacity() < unread + amount) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, unread + amount));
+                larger.put(buffer);
+                buffer = larger;
+            } else {
+                buffer.compact();
+            }
+            buffer.flip();
         }
 
-        byte[] decrypted = decrypt.apply(encrypted);
-
-        for (byte aDecrypted : decrypted) {
-            queue.insert(aDecrypted);
-        }
+        int start = buffer.limit();
+        buffer.limit(start + amount);
+        return start;
     }
 
     /**
-     * Read packets from the byte queue. This method will first try to read a varInt indicating the upcoming packet's
+     * Read packets from the buffer. This method will first try to read a varInt indicating the upcoming packet's
      * size. Then, when the varInt is complete (may take several data transmissions), it will check if there is enough
-     * bytes to complete the packet (this too may take several transmissions). After the packet is complete it will
-     * be passed to the packet builder which may decompress and read the data.
+     * bytes to complete the packet (this too may take several transmissions). After the packet is complete a view of
+     * it will be passed to the packet handler which may decompress and read the data. For most packets, the handler
+     * only decides to forward them and leaves the parsing to the parse stage, so that the packet can be forwarded
+     * before it is parsed.
      * <p>
-     * If the packet builder returns true, this means we will forward the packet. If the builder returns false, we will
+     * If the packet handler returns true, this means we will forward the packet. If the handler returns false, we will
      * dump the packet and move on. This will happen for the encryption related packets as sending the real one to the
      * server will prevent us from getting the encryption keys.
      */
     private void readPackets() throws IOException {
-        int nextPacketSize;
-        while (hasNext() && readPacketSize().isComplete()) {
-            nextPacketSize = varIntPacketSize.getResult();
+        while (buffer.hasRemaining() && readPacketSize().isComplete()) {
+            int packetStart = buffer.position();
+            int headerSize = varIntPacketSize.numBytes();
+            int nextPacketSize = varIntPacketSize.getResult();
 
             // if we have enough bytes to parse the packet
-            if (!hasBytes(nextPacketSize)) {
+            if (buffer.remaining() < headerSize + nextPacketSize) {
                 return;
             }
+            ByteBuffer frame = buffer.slice(packetStart + headerSize, nextPacketSize);
+
             // parse the packet (including decompression)
             boolean forwardPacket = true;
             try {
-                forwardPacket = getPacketHandler().handle(nextPacketSize);
+                forwardPacket = getPacketHandler().handle(frame, parseStage);
             } catch (Exception ex) {
                 ex.printStackTrace();
             }
 
-            // check if the the packet length was correct
-            int expectedLength = nextPacketSize + varIntPacketSize.numBytes();
-            if (currentPacket.size() != expectedLength) {
-                String msg = "Packet parsing may have been incorrect! Expected length: " + expectedLength + ". Used bytes: " + currentPacket.size();
-                new IllegalStateException(msg).printStackTrace(System.err);
-            }
-
-            // forward the packet unless the packet builder decided swallowed it
+            // forward the original bytes unless the packet handler decided swallowed it
             if (forwardPacket) {
-                transmit.consume(currentPacket);
+                transmit.consume(buffer.array(), buffer.arrayOffset() + packetStart, headerSize + nextPacketSize);
             }
 
             // clean up to prepare for next packet
-            currentPacket.clear();
+            buffer.position(packetStart + headerSize + nextPacketSize);
             varIntPacketSize.reset();
         }
-    }
 
-    /**
-     * Check if we have more bytes in the queue right now.
-     */
-    private boolean hasNext() {
-        return !queue.isEmpty();
+        // if everything was read, we can start writing at the start of the buffer again without copying anything
+        if (!buffer.hasRemaining()) {
+            buffer.clear();
+            buffer.limit(0);
+        }
     }
 
     /**
-     * Read the packet size. Will continue reading with a previous result if that was not yet complete.
+     * Read the packet size. The size is read without moving the buffer position, so that if the varInt is not yet
+     * complete it can be read again when the next bytes arrive.
      */
     private VarIntResult readPacketSize() {
-        if (!varIntPacketSize.isComplete()) {
-            readVarInt(this::hasNext, this::readNext, varIntPacketSize);
-        }
-        return varIntPacketSize;
-    }
+        varIntPacketSize.reset();
 
-    /**
-     * Check if we have the given number of bytes. Used to check if the next package is complete.
-     * @param amount the number of bytes required
-     * @return true if we have sufficient bytes, otherwise false
-     */
-    private boolean hasBytes(int amount) {
-        return amount <= queue.size();
+        int[] index = { buffer.position() };
+        return readVarInt(() -> index[0] < buffer.limit(), () -> buffer.get(index[0]++), varIntPacketSize);
     }
 
-
     private PacketHandler getPacketHandler() {
         return packetHandler;
     }
 
     public void setPacketHandler(PacketHandler packetHandler) {
         this.packetHandler = packetHandler;
-        packetHandler.setReader(new DataProvider(this));
-    }
-
-    /**
-     * Read a byte, also add it the current packet.
-     */
-    private byte readNext() {
-        currentPacket.insert(queue.peek());
-
-        return queue.remove();
-    }
-
-    /**
-     * Read an array of bytes from the queue. Used to get all the bytes for a packet.
-     * @param arrayLength the number of bytes to get
-     * @return the full array
-     */
-    byte[] readByteArray(int arrayLength) {
-        byte[] bytes = new byte[arrayLength];
-        for (int i = 0; i < arrayLength; i++) {
-            bytes[i] = readNext();
-        }
-        return bytes;
+        packetHandler.setReader(new DataProvider());
     }
 }
@@ -16,10 +16,12 @@ import packets.version.DataTypeProvider_1_20_6;
 import se.llbit.nbt.NamedTag;
 import se.llbit.nbt.SpecificTag;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
-import java.io.InputStream;
-import java.nio.Buffer;
-import java.nio.ByteBuffer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
@@ -29,9 +31,16 @@ import se.llbit.nbt.Tag;
 /**
  * Class to provide an interface between the raw byte data and the various data types. Most methods are
  * self-explanatory.
+ *
+ * Fixed-size values are read straight from the packet array through big-endian views, so reading them does not
+ * allocate anything.
  */
 public class DataTypeProvider {
     private static final int MAX_SHORT_VAL = 1 << 15;
+    private static final VarHandle INT_VIEW = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle FLOAT_VIEW = MethodHandles.byteArrayViewVarHandle(float[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle DOUBLE_VIEW = MethodHandles.byteArrayViewVarHandle(double[].class, ByteOrder.BIG_ENDIAN);
     private byte[] finalFullPacket;
     private int pos;
 
@@ -99,11 +108,9 @@ public class DataTypeProvider {
     }
 
     public int readInt() {
-        byte[] bytes = readByteArray(4);
-        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
-        buffer.put(bytes);
-        ((Buffer) buffer).flip();
-        return buffer.getInt();
+        int val = (int) INT_VIEW.get(finalFullPacket, pos);
+        pos += Integer.BYTES;
+        return val;
     }
 
     public byte[] readByteArray(int size) {
@@ -122,11 +129,10 @@ public class DataTypeProvider {
     public String readString() {
         int stringSize = readVarInt();
 
-        StringBuilder sb = new StringBuilder();
-        while (stringSize-- > 0) {
-            sb.appendCodePoint(readNext() & 0xFF);
-        }
-        return sb.toString();
+        // each byte becomes one character
+        String res = new String(finalFullPacket, pos, stringSize, StandardCharsets.ISO_8859_1);
+        pos += stringSize;
+        return res;
     }
 
     public int readVarInt() {
@@ -134,9 +140,7 @@ public class DataTypeProvider {
     }
 
     public void skip(int amount) {
-        while (amount-- > 0) {
-            readNext();
-        }
+        pos += amount;
     }
 
     public int readShort() {
@@ -174,21 +178,23 @@ public class DataTypeProvider {
     }
 
     public long readLong() {
-        byte[] bytes = readByteArray(8);
-        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
-        buffer.put(bytes);
-        ((Buffer) buffer).flip();
-        return buffer.getLong();
+        long val = (long) LONG_VIEW.get(finalFullPacket, pos);
+        pos += Long.BYTES;
+        return val;
     }
 
+    /**
+     * Read an array of longs, of which only the first few are kept.
+     * @param size     the number of longs in the packet
+     * @param expected the number of longs to return, any others are skipped
+     */
     public long[] readLongArray(int size, int expected) {
         long[] res = new long[expected];
-        for (int i = 0; i < expected; i++) {
-            res[i] = readLong();
-        }
-        for (int i = 0; i < size - expected; i++) {
-            readLong();
+        int offset = pos;
+        for (int i = 0; i < expected; i++, offset += Long.BYTES) {
+            res[i] = (long) LONG_VIEW.get(finalFullPacket, offset);
         }
+        pos += size * Long.BYTES;
         return res;
     }
 
@@ -198,9 +204,11 @@ public class DataTypeProvider {
 
     public int[] readIntArray(int size) {
         int[] res = new int[size];
-        for (int i = 0; i < size; i++) {
-            res[i] = readInt();
+        int offset = pos;
+        for (int i = 0; i < size; i++, offset += Integer.BYTES) {
+            res[i] = (int) INT_VIEW.get(finalFullPacket, offset);
         }
+        pos = offset;
         return res;
     }
 
@@ -213,33 +221,38 @@ public class DataTypeProvider {
     }
 
     public SpecificTag readNbtTag() {
+        return readNbtTag(false);
+    }
+
+    /**
+     * Read an NBT tag from the remaining bytes of the packet. The tag is read from a stream over the packet array,
+     * afterwards the position is moved past however many bytes the tag used.
+     * @param namelessRoot whether the root tag is sent without a name, which is the case since 1.20.2
+     */
+    protected SpecificTag readNbtTag(boolean namelessRoot) {
+        ByteArrayInputStream input = new ByteArrayInputStream(finalFullPacket, pos, remaining());
         try {
-            return (SpecificTag) NamedTag.read(new DataInputStream(new InputStream() {
-                @Override
-                public int read() {
-                    return readNext() & 0xFF;
-                }
-            })).unpack();
+            DataInputStream data = new DataInputStream(input);
+            Tag tag = namelessRoot ? SpecificTag.read(data.readByte(), data) : NamedTag.read(data);
+            return (SpecificTag) tag.unpack();
         } catch (Exception ex) {
             ex.printStackTrace();
             return null;
+        } finally {
+            pos = finalFullPacket.length - input.available();
         }
     }
 
     public float readFloat() {
-        byte[] bytes = readByteArray(4);
-        ByteBuffer buffer = ByteBuffer.allocate(Float.BYTES);
-        buffer.put(bytes);
-        ((Buffer) buffer).flip();
-        return buffer.getFloat();
+        float val = (float) FLOAT_VIEW.get(finalFullPacket, pos);
+        pos += Float.BYTES;
+        return val;
     }
 
     public double readDouble() {
-        byte[] bytes = readByteArray(8);
-        ByteBuffer buffer = ByteBuffer.allocate(Double.BYTES);
-        buffer.put(bytes);
-        ((Buffer) buffer).flip();
-        return buffer.getDouble();
+        double val = (double) DOUBLE_VIEW.get(finalFullPacket, pos);
+        pos += Double.BYTES;
+        return val;
     }
 
     public UUID readUUID() {
@@ -0,0 +1,86 @@
+package packets;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parses packets for one direction of the connection after they have been forwarded. Packets are parsed one at a
+ * time in the order they were received, on a thread separate from the one reading from the network, so that slow
+ * packet handling does not delay the connection.
+ */
+public class ParseStage {
+    // if this many bytes are waiting to be parsed, the reader waits before forwarding more
+    private static final long MAX_QUEUED_BYTES = 64L * 1024 * 1024;
+
+    private final String name;
+    private final AtomicLong queuedBytes;
+    private ExecutorService executor;
+
+    public ParseStage(String name) {
+        this.name = name;
+        this.queuedBytes = new AtomicLong();
+    }
+
+    /**
+     * Parse a packet on the parser thread.
+     * @param size the size of the packet, used to limit how much data can be waiting
+     */
+    public void execute(Runnable parse, int size) {
+        if (queuedBytes.addAndGet(size) > MAX_QUEUED_BYTES) {
+            await();
+        }
+
+        getExecutor().execute(() -> {
+            try {
+                parse.run();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            } finally {
+                queuedBytes.addAndGet(-size);
+            }
+        });
+    }
+
+    /**
+     * Wait until all packets given so far have been parsed. Used before handling packets that cannot be parsed
+     * asynchronously, so that they still see the effects of all earlier packets.
+     */
+    public void await() {
+        Future<?> done;
+        synchronized (this) {
+            if (executor == null) {
+                return;
+            }
+            done = executor.submit(() -> { });
+        }
+
+        try {
+            done.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(Thread.ofVirtual().name(name).factory());
+        }
+        return executor;
+    }
+
+    /**
+     * Drop any packets that have not been parsed yet and stop the parser thread, used when the connection is lost.
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        queuedBytes.set(0);
+    }
+}
@@ -19,16 +19,31 @@ import se.llbit.nbt.SpecificTag;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.BitSet;
-
+import java.util.zip.Deflater;
+
+/**
+ * Builds packets to send to the client or server. The packet is written into a single growing buffer, which has room
+ * reserved at the start for the length prefix. This way the built packet can be handed on as a range of that buffer
+ * without copying it. Writing more data after building never changes the bytes of a built packet, but building again
+ * rewrites the prefix, so later builds first move the packet to a new buffer.
+ */
 public class PacketBuilder {
-    ByteQueue bytes;
+    private static final int MAX_VARINT_SIZE = 5;
+
+    // room for the packet length, and the 0 byte that marks a packet as uncompressed when compression is enabled
+    private static final int HEADER_SPACE = MAX_VARINT_SIZE + 1;
+    private static final int INIT_SIZE = 64;
+
+    private ByteBuffer buffer;
+
+    // whether a built packet is a view of the current buffer
+    private boolean shared;
 
     public PacketBuilder(int packetId) {
-        this.bytes = new ByteQueue();
+        this();
         writeVarInt(packetId);
     }
 
@@ -37,11 +52,47 @@ public class PacketBuilder {
     }
 
     public PacketBuilder() {
-        this.bytes = new ByteQueue();
+        this.buffer = ByteBuffer.allocate(HEADER_SPACE + INIT_SIZE);
+        this.buffer.position(HEADER_SPACE);
     }
 
+    /**
+     * Get the contents of the packet so far, without any length prefix.
+     */
     public byte[] toArray() {
-        return bytes.toArray();
+        return Arrays.copyOfRange(buffer.array(), HEADER_SPACE, buffer.position());
+    }
+
+    private int size() {
+        return buffer.position() - HEADER_SPACE;
+    }
+
+    /**
+     * Get the buffer to write the length prefix into. If an earlier build returned a view of the buffer, the packet is
+     * copied first so that the earlier result is not changed.
+     */
+    private byte[] prefixBuffer() {
+        if (shared) {
+            ByteBuffer copy = ByteBuffer.wrap(Arrays.copyOf(buffer.array(), buffer.capacity()));
+            copy.position(buffer.position());
+            buffer = copy;
+        }
+        shared = true;
+        return buffer.array();
+    }
+
+    /**
+     * Make sure the given number of bytes can be written, doubling the buffer if needed.
+     */
+    private void ensureCapacity(int amount) {
+        if (buffer.remaining() >= amount) {
+            return;
+        }
+
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + amount));
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
     }
 
     public void copy(DataTypeProvider provider, NetworkType... types) {
@@ -91,29 +142,40 @@ public class PacketBuilder {
      * @param value the value to write
      */
     public void writeVarInt(int value) {
-        writeVarInt(this.bytes, value);
+        ensureCapacity(MAX_VARINT_SIZE);
+        do {
+            byte temp = (byte) (value & 0b01111111);
+            // Note: >>> means that the sign bit is shifted with the rest of the number rather than being left alone
+            value >>>= 7;
+            if (value != 0) {
+                temp |= 0b10000000;
+            }
+            buffer.put(temp);
+        } while (value != 0);
     }
 
     /**
-     * Method to write a varInt to the given list. Based on: https://wiki.vg/Protocol
-     * @param value the value to write
+     * Write a varInt at the given index of the array.
+     * @return the index after the varInt
      */
-    private static void writeVarInt(ByteQueue destination, int value) {
+    private static int writeVarInt(byte[] destination, int index, int value) {
         do {
             byte temp = (byte) (value & 0b01111111);
-            // Note: >>> means that the sign bit is shifted with the rest of the number rather than being left alone
             value >>>= 7;
             if (value != 0) {
                 temp |= 0b10000000;
             }
-            destination.insert(temp);
+            destination[index++] = temp;
         } while (value != 0);
+        return index;
     }
 
-    private static ByteQueue createVarInt(int value) {
-        ByteQueue res = new ByteQueue(5);
-        writeVarInt(res, value);
-        return res;
+    private static int varIntSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
     }
 
     /**
@@ -132,26 +194,25 @@ public class PacketBuilder {
      * @param arr the bytes to write
      */
     public void writeByteArray(byte[] arr) {
-        for (byte b : arr) {
-            bytes.insert(b);
-        }
+        put(arr, 0, arr.length);
     }
 
-    /**
-     * Method to write a the packet length to the start of the given list. This is done by writing the varint to a
-     * different ByteQueue first, as we need to know the size before we can prepend it.
-     */
-    private void prependPacketLength() {
-        int len = bytes.size();
-
-        ByteQueue r = new ByteQueue(5);
-        writeVarInt(r, len);
-        this.bytes.prepend(r);
+    private void put(byte[] arr, int offset, int length) {
+        ensureCapacity(length);
+        buffer.put(arr, offset, length);
     }
 
+    /**
+     * Build the packet by writing its length in front of it. The returned queue is a view of the builder's buffer,
+     * which is not changed by writing to or building the packet again later.
+     */
     public ByteQueue build() {
-        prependPacketLength();
-        return bytes;
+        int length = size();
+        int start = HEADER_SPACE - varIntSize(length);
+        byte[] arr = prefixBuffer();
+        writeVarInt(arr, start, length);
+
+        return new ByteQueue(arr, start, buffer.position() - start);
     }
 
     /**
@@ -164,31 +225,30 @@ public class PacketBuilder {
             return build();
         }
 
-        byte[] original = bytes.toArray();
-        byte[] compressed = compressionManager.compressPacket(original);
+        int length = size();
 
-        // no compression happened
-        if (compressed == original) {
-            // without compression the prefix is packet length + 0 byte
-            ByteQueue prefix = createVarInt(original.length + 1);
-            prefix.insert((byte) 0);
+        // no compression needed, the prefix is packet length + 0 byte
+        if (!compressionManager.shouldCompress(length)) {
+            byte[] arr = prefixBuffer();
+            int start = HEADER_SPACE - 1 - varIntSize(length + 1);
+            writeVarInt(arr, start, length + 1);
+            arr[HEADER_SPACE - 1] = 0;
 
-            this.bytes.prepend(prefix);
-        } else {
-            // with compression we need to first prefix a varInt of the uncompressed data length
-            ByteQueue dataLen = createVarInt(original.length);
+            return new ByteQueue(arr, start, buffer.position() - start);
+        }
 
-            // ...and then prefix the length of the entire packet
-            ByteQueue packetLen = createVarInt(dataLen.size() + compressed.length);
+        // with compression we need to first prefix a varInt of the uncompressed data length, and then the length of
+        // the entire packet. Room for both is left in front of the compressed data.
+        int dataLenSize = varIntSize(length);
+        int headroom = MAX_VARINT_SIZE + dataLenSize;
+        byte[] arr = buffer.array();
+        byte[] res = CompressionManager.zlibCompress(arr, HEADER_SPACE, length, Deflater.DEFAULT_COMPRESSION, headroom);
 
-            byte[] res = new byte[compressed.length + dataLen.size() + packetLen.size()];
-            System.arraycopy(packetLen.toArray(), 0, res, 0, packetLen.size());
-            System.arraycopy(dataLen.toArray(), 0, res, packetLen.size(), dataLen.size());
-            System.arraycopy(compressed, 0, res, packetLen.size() + dataLen.size(), compressed.length);
+        int packetLen = dataLenSize + res.length - headroom;
+        int start = MAX_VARINT_SIZE - varIntSize(packetLen);
+        writeVarInt(res, writeVarInt(res, start, packetLen), length);
 
-            return new ByteQueue(res);
-        }
-        return bytes;
+        return new ByteQueue(res, start, res.length - start);
     }
 
     /**
@@ -196,25 +256,20 @@ public class PacketBuilder {
      * @param shortVal the value of the short
      */
     public void writeShort(int shortVal) {
-        bytes.insert((byte) ((shortVal >>> 8) & 0xFF));
-        bytes.insert((byte) ((shortVal) & 0xFF));
+        ensureCapacity(Short.BYTES);
+        buffer.putShort((short) shortVal);
     }
 
     /**
-     * Write an int, needs to split into 4 bytes in the correct order.
+     * Write an int, the buffer is big-endian so the bytes end up in the correct order.
      */
     public void writeInt(int val) {
-        byte[] bytes = new byte[4];
-        bytes[3] = (byte) (val & 0xFF);
-        bytes[2] = (byte) (val >> 8 & 0xFF);
-        bytes[1] = (byte) (val >> 16 & 0xFF);
-        bytes[0] = (byte) (val >> 24 & 0xFF);
-
-        writeByteArray(bytes);
+        ensureCapacity(Integer.BYTES);
+        buffer.putInt(val);
     }
 
     public void writeBoolean(boolean val) {
-        bytes.insert((byte) (val ? 0x1 : 0x0));
+        writeRaw((byte) (val ? 0x1 : 0x0));
     }
 
     /**
@@ -222,12 +277,7 @@ public class PacketBuilder {
      */
     public void writeNbt(SpecificTag nbt) {
         try {
-            new NamedTag("", nbt).write(new DataOutputStream(new OutputStream() {
-                @Override
-                public void write(int b) {
-                    bytes.insert((byte) b);
-                }
-            }));
+            new NamedTag("", nbt).write(new DataOutputStream(new BufferOutputStream()));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -237,12 +287,7 @@ public class PacketBuilder {
     public void writeNbtDirect(SpecificTag nbt) {
         try {
             writeByte((byte) nbt.tagType());
-            nbt.write(new DataOutputStream(new OutputStream() {
-                @Override
-                public void write(int b) {
-                    bytes.insert((byte) b);
-                }
-            }));
+            nbt.write(new DataOutputStream(new BufferOutputStream()));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -250,7 +295,12 @@ public class PacketBuilder {
 
 
     public void writeByte(byte b) {
-        bytes.insert(b);
+        writeRaw(b);
+    }
+
+    private void writeRaw(byte b) {
+        ensureCapacity(1);
+        buffer.put(b);
     }
 
     public void writeUUID(UUID uuid) {
@@ -259,17 +309,8 @@ public class PacketBuilder {
     }
 
     public void writeLong(long val) {
-        byte[] bytes = new byte[8];
-        bytes[7] = (byte) (val & 0xFF);
-        bytes[6] = (byte) (val >> 8 & 0xFF);
-        bytes[5] = (byte) (val >> 16 & 0xFF);
-        bytes[4] = (byte) (val >> 24 & 0xFF);
-        bytes[3] = (byte) (val >> 32 & 0xFF);
-        bytes[2] = (byte) (val >> 40 & 0xFF);
-        bytes[1] = (byte) (val >> 48 & 0xFF);
-        bytes[0] = (byte) (val >> 56 & 0xFF);
-
-        writeByteArray(bytes);
+        ensureCapacity(Long.BYTES);
+        buffer.putLong(val);
     }
 
     public void writeVarIntArray(int[] arr) {
@@ -279,9 +320,9 @@ public class PacketBuilder {
     }
 
     public void writeLongArray(long[] arr) {
-        for (long val : arr) {
-            writeLong(val);
-        }
+        ensureCapacity(arr.length * Long.BYTES);
+        buffer.asLongBuffer().put(arr);
+        buffer.position(buffer.position() + arr.length * Long.BYTES);
     }
 
     public void writeStringArray(String[] arr) {
@@ -291,16 +332,14 @@ public class PacketBuilder {
     }
 
     public void writeIntArray(int[] arr) {
-        for (int i : arr) {
-            writeInt(i);
-        }
+        ensureCapacity(arr.length * Integer.BYTES);
+        buffer.asIntBuffer().put(arr);
+        buffer.position(buffer.position() + arr.length * Integer.BYTES);
     }
 
     public void writeFloat(float val) {
-        ByteBuffer buffer = ByteBuffer.allocate(Float.BYTES);
+        ensureCapacity(Float.BYTES);
         buffer.putFloat(val);
-        ((Buffer) buffer).flip();
-        writeByteArray(buffer.array());
     }
 
     public void writeBitSet(BitSet bits) {
@@ -313,4 +352,19 @@ public class PacketBuilder {
     public void copyRemainder(DataTypeProvider provider) {
         writeByteArray(provider.readByteArray(provider.remaining()));
     }
+
+    /**
+     * Stream that writes straight into the packet buffer, used to write NBT tags.
+     */
+    private class BufferOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+            writeRaw((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            put(b, off, len);
+        }
+    }
 }
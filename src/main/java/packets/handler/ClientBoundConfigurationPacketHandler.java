@@ -1,6 +1,5 @@
 package packets.handler;
 
-import config.Config;
 import config.Option;
 import config.Version;
 import packets.handler.version.ClientBoundConfigurationPacketHandler_1_20_2;
@@ -9,6 +8,7 @@ import proxy.ConnectionManager;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 public class ClientBoundConfigurationPacketHandler extends PacketHandler {
     private final HashMap<String, PacketOperator> operations = new HashMap<>();
@@ -18,7 +18,7 @@ public class ClientBoundConfigurationPacketHandler extends PacketHandler {
     }
 
     public static PacketHandler of(ConnectionManager connectionManager) {
-        return Config.versionReporter().select(PacketHandler.class,
+        return connectionManager.getVersionReporter().select(PacketHandler.class,
                 Option.of(Version.V1_20_6, () -> new ClientBoundConfigurationPacketHandler_1_20_6(connectionManager)),
                 Option.of(Version.V1_20_2, () -> new ClientBoundConfigurationPacketHandler_1_20_2(connectionManager)),
                 Option.of(Version.ANY, () -> new ClientBoundConfigurationPacketHandler(connectionManager))
@@ -30,6 +30,14 @@ public class ClientBoundConfigurationPacketHandler extends PacketHandler {
         return operations;
     }
 
+    /**
+     * The registries only matter for the world, the configuration mode is ended by the server-bound packet.
+     */
+    @Override
+    protected Set<String> getConnectionPackets() {
+        return Set.of();
+    }
+
     @Override
     public boolean isClientBound() {
         return true;
@@ -2,6 +2,7 @@ package packets.handler;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 import config.Config;
 import config.Option;
@@ -178,7 +179,7 @@ public class ClientBoundGamePacketHandler extends PacketHandler {
     }
 
     public static PacketHandler of(ConnectionManager connectionManager) {
-        return Config.versionReporter().select(PacketHandler.class,
+        return connectionManager.getVersionReporter().select(PacketHandler.class,
                 Option.of(Version.V1_20_6, () -> new ClientBoundGamePacketHandler_1_20_6(connectionManager)),
                 Option.of(Version.V1_20_2, () -> new ClientBoundGamePacketHandler_1_20_2(connectionManager)),
                 Option.of(Version.V1_19, () -> new ClientBoundGamePacketHandler_1_19(connectionManager)),
@@ -196,6 +197,21 @@ public class ClientBoundGamePacketHandler extends PacketHandler {
         return operations;
     }
 
+    /**
+     * The login packet is replaced to extend the render distance, and the configuration packet changes the mode of the
+     * connection. Chunk unloads and render distance changes are dropped when the extended render distance is used. All
+     * other packets can be parsed after they have been forwarded.
+     */
+    @Override
+    protected Set<String> getSplicePoints() {
+        return Set.of("Login", "StartConfiguration", "ForgetLevelChunk", "SetChunkCacheRadius");
+    }
+
+    @Override
+    protected Set<String> getConnectionPackets() {
+        return Set.of("StartConfiguration");
+    }
+
     @Override
     public boolean isClientBound() {
         return true;
@@ -1,6 +1,5 @@
 package packets.handler;
 
-import config.Config;
 import config.Option;
 import config.Version;
 import game.NetworkMode;
@@ -25,7 +24,7 @@ public class ClientBoundLoginPacketHandler extends PacketHandler {
             byte[] pubKey = provider.readByteArray(provider.readVarInt());
             byte[] nonce = provider.readByteArray(provider.readVarInt());
 
-            if (Config.versionReporter().isAtLeast(Version.V1_20_6)) {
+            if (getConnectionManager().getVersionReporter().isAtLeast(Version.V1_20_6)) {
                 boolean shouldAuthenticate = provider.readBoolean();
                 getConnectionManager().getEncryptionManager().setServerEncryptionRequest(pubKey, nonce, serverId, shouldAuthenticate);
             } else {
@@ -35,7 +34,7 @@ public class ClientBoundLoginPacketHandler extends PacketHandler {
             return false;
         });
         operations.put("GameProfile", provider -> {
-            String uuid = Config.versionReporter().select(String.class,
+            String uuid = getConnectionManager().getVersionReporter().select(String.class,
                     Option.of(Version.V1_16, () -> provider.readUUID().toString()),
                     Option.of(Version.ANY, provider::readString)
             );
@@ -43,7 +42,7 @@ public class ClientBoundLoginPacketHandler extends PacketHandler {
             String username = provider.readString();
             System.out.println("Login success: " + username + " logged in with uuid " + uuid);
 
-            if (!Config.versionReporter().isAtLeast(Version.V1_20_2)) {
+            if (!getConnectionManager().getVersionReporter().isAtLeast(Version.V1_20_2)) {
                 getConnectionManager().setMode(NetworkMode.GAME);
             }
             return true;
@@ -1,27 +1,30 @@
 package packets.handler;
 
-import game.protocol.HandshakeProtocol;
 import game.protocol.Protocol;
 import packets.DataProvider;
 import packets.DataTypeProvider;
+import packets.ParseStage;
 import proxy.ConnectionManager;
 
 import javax.naming.SizeLimitExceededException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Family of classes to handle incoming packets and perform appropriate actions based on the packet type and contents.
  */
 public abstract class PacketHandler {
-    private final ConnectionManager connectionManager;
-
-    protected static Protocol protocol = new HandshakeProtocol();
+    // packet IDs below this are looked up in the operator table, any others by name
+    private static final int MAX_TABLE_ID = 256;
 
-    public static void setProtocol(Protocol protocol) {
-        PacketHandler.protocol = protocol;
-    }
+    private final ConnectionManager connectionManager;
 
     private DataProvider reader;
+    private Map<String, PacketOperator> activeOperators = Map.of();
+    private PacketOperator[] operatorTable = new PacketOperator[0];
+    private boolean[] spliceTable = new boolean[0];
 
     public PacketHandler(ConnectionManager connectionManager) {
         this.connectionManager = connectionManager;
@@ -31,17 +34,50 @@ public abstract class PacketHandler {
         return connectionManager;
     }
 
+    /**
+     * Handle the given packet. Packets at a splice point are parsed right away, as their operator decides whether they
+     * are forwarded. Any other packets are forwarded straight away, and a copy is parsed by the given parse stage.
+     *
+     * @param frame      view of the packet to build, not including its size
+     * @param parseStage the stage that parses packets after they have been forwarded
+     * @return true if the packet should be forwarded, otherwise false.
+     */
+    public final boolean handle(ByteBuffer frame, ParseStage parseStage) {
+        // most packets are only forwarded, if we can tell from the ID there is no need to copy or decompress them
+        int peekedID = reader.peekPacketId(frame);
+        if (peekedID >= 0 && getOperator(peekedID) == null) {
+            return true;
+        }
+
+        if (peekedID < 0 || isSplicePoint(peekedID)) {
+            // earlier packets may still be being parsed, wait for those so that packets are still handled in order
+            parseStage.await();
+            return handle(frame);
+        }
+
+        ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+        copy.put(frame).flip();
+        parseStage.execute(() -> {
+            // the packet has already been forwarded, so an operator that drops packets has to be a splice point
+            if (!handle(copy)) {
+                String packetType = connectionManager.getProtocol().get(peekedID, isClientBound());
+                throw new IllegalStateException("Packet " + packetType + " was dropped after it was forwarded, it should be a splice point");
+            }
+        }, copy.capacity());
+        return true;
+    }
+
     /**
      * Build the given packet, will generate a type provider to parse the contents of the packages to real values. Will
      * determine if the packet is to be forwarded using its return value.
      *
-     * @param size the size of the packet to build
+     * @param frame view of the packet to build, not including its size
      * @return true if the packet should be forwarded, otherwise false.
      */
-    public final boolean handle(int size) {
+    private boolean handle(ByteBuffer frame) {
         DataTypeProvider typeProvider;
         try {
-            typeProvider = reader.withSize(size);
+            typeProvider = reader.withFrame(frame);
         } catch (SizeLimitExceededException ex) {
             System.out.println(ex.getMessage());
             return false;
@@ -49,8 +85,7 @@ public abstract class PacketHandler {
 
         int packetID = typeProvider.readVarInt();
 
-        String packetType = protocol.get(packetID, isClientBound());
-        PacketOperator operator = getOperators().getOrDefault(packetType, null);
+        PacketOperator operator = getOperator(packetID);
         if (operator == null) {
             return true;
         }
@@ -58,6 +93,58 @@ public abstract class PacketHandler {
         return operator.apply(typeProvider);
     }
 
+    private PacketOperator getOperator(int packetID) {
+        if (packetID >= 0 && packetID < operatorTable.length) {
+            return operatorTable[packetID];
+        }
+
+        String packetType = connectionManager.getProtocol().get(packetID, isClientBound());
+        return activeOperators.get(packetType);
+    }
+
+    private boolean isSplicePoint(int packetID) {
+        if (packetID < spliceTable.length) {
+            return spliceTable[packetID];
+        }
+
+        Set<String> splicePoints = getSplicePoints();
+        return splicePoints == null || splicePoints.contains(connectionManager.getProtocol().get(packetID, isClientBound()));
+    }
+
+    /**
+     * Build the table of operators by packet ID, so that handling a packet does not require looking up its name
+     * first. This is done when the handler is set, at which point the connection's protocol is that of the new mode.
+     * If the session does not own the world, only the operators of connection packets are used.
+     */
+    private void compileOperators() {
+        Protocol protocol = connectionManager.getProtocol();
+        Map<String, PacketOperator> operators = getOperators();
+
+        Set<String> connectionPackets = getConnectionPackets();
+        if (!connectionManager.ownsWorld() && connectionPackets != null) {
+            Map<String, PacketOperator> filtered = new HashMap<>();
+            operators.forEach((packetType, operator) -> {
+                if (connectionPackets.contains(packetType)) {
+                    filtered.put(packetType, operator);
+                }
+            });
+            operators = filtered;
+        }
+        this.activeOperators = operators;
+
+        Set<String> splicePoints = getSplicePoints();
+
+        PacketOperator[] table = new PacketOperator[MAX_TABLE_ID];
+        boolean[] splices = new boolean[MAX_TABLE_ID];
+        for (int id = 0; id < MAX_TABLE_ID; id++) {
+            String packetType = protocol.get(id, isClientBound());
+            table[id] = operators.get(packetType);
+            splices[id] = splicePoints == null || splicePoints.contains(packetType);
+        }
+        this.operatorTable = table;
+        this.spliceTable = splices;
+    }
+
     public int indexOf(byte[] outerArray, byte[] smallerArray) {
         for(int i = 0; i < outerArray.length - smallerArray.length+1; ++i) {
             boolean found = true;
@@ -74,10 +161,31 @@ public abstract class PacketHandler {
 
     public abstract Map<String, PacketOperator> getOperators();
 
+    /**
+     * Names of the packets that have to be handled before they are forwarded, because their operator may drop or
+     * replace them, or changes the state of the connection. Other packets with an operator are forwarded right away
+     * and parsed afterwards, so their operator must always return true. When null, all packets are handled before they
+     * are forwarded.
+     */
+    protected Set<String> getSplicePoints() {
+        return null;
+    }
+
+    /**
+     * Names of the packets that keep the connection itself working, such as those that change its mode. Sessions that
+     * do not own the world only handle these packets and forward all others as they are. When null, all packets are
+     * needed for the connection.
+     */
+    protected Set<String> getConnectionPackets() {
+        return null;
+    }
+
     public abstract boolean isClientBound();
 
     public void setReader(DataProvider reader) {
         this.reader = reader;
         this.reader.setCompressionManager(connectionManager.getCompressionManager());
+
+        compileOperators();
     }
 }
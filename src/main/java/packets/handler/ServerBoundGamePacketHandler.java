@@ -4,8 +4,8 @@ import config.Version;
 import game.NetworkMode;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
-import config.Config;
 import game.data.WorldManager;
 import game.data.coordinates.Coordinate3D;
 import game.data.coordinates.CoordinateDouble3D;
@@ -46,7 +46,7 @@ public class ServerBoundGamePacketHandler extends PacketHandler {
 
         operations.put("UseItem", provider -> {
             // newer versions first include a VarInt with the hand
-            if (Config.versionReporter().isAtLeast(Version.V1_14)) {
+            if (getConnectionManager().getVersionReporter().isAtLeast(Version.V1_14)) {
                 provider.readVarInt();
             }
 
@@ -95,6 +95,20 @@ public class ServerBoundGamePacketHandler extends PacketHandler {
         return operations;
     }
 
+    /**
+     * Only the acknowledgement changes the mode of the connection, all other packets can be parsed after they have been
+     * forwarded.
+     */
+    @Override
+    protected Set<String> getSplicePoints() {
+        return Set.of("ConfigurationAcknowledged");
+    }
+
+    @Override
+    protected Set<String> getConnectionPackets() {
+        return Set.of("ConfigurationAcknowledged");
+    }
+
     @Override
     public boolean isClientBound() {
         return false;
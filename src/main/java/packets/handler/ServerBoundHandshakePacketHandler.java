@@ -1,6 +1,5 @@
 package packets.handler;
 
-import config.Config;
 import game.NetworkMode;
 import proxy.ConnectionManager;
 
@@ -18,6 +17,7 @@ public class ServerBoundHandshakePacketHandler extends PacketHandler {
             int port = provider.readShort();
             int nextMode = provider.readVarInt();
 
+            getConnectionManager().setProtocolVersion(protocolVersion);
             switch (nextMode) {
                 case 1:
                     getConnectionManager().setMode(NetworkMode.STATUS);
@@ -27,7 +27,6 @@ public class ServerBoundHandshakePacketHandler extends PacketHandler {
                     break;
             }
 
-            Config.setProtocolVersion(protocolVersion);
             getConnectionManager().getEncryptionManager().sendMaskedHandshake(protocolVersion, nextMode, getHostExtensions(host));
             return false;
         });
@@ -2,7 +2,6 @@ package packets.handler;
 
 import static util.PrintUtils.devPrint;
 
-import config.Config;
 import config.Version;
 import game.NetworkMode;
 import java.util.HashMap;
@@ -33,7 +32,7 @@ public class ServerBoundLoginPacketHandler extends PacketHandler {
         });
 
         operations.put("LoginAcknowledged", provider -> {
-            if (Config.versionReporter().isAtLeast(Version.V1_20_2)) {
+            if (getConnectionManager().getVersionReporter().isAtLeast(Version.V1_20_2)) {
                 getConnectionManager().setMode(NetworkMode.CONFIGURATION);
             } else {
                 getConnectionManager().setMode(NetworkMode.GAME);
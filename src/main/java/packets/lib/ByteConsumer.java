@@ -0,0 +1,7 @@
+package packets.lib;
+
+import java.io.IOException;
+
+public interface ByteConsumer {
+    void consume(byte[] bytes, int offset, int length) throws IOException;
+}
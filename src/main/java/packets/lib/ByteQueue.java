@@ -4,6 +4,7 @@ package packets.lib;
 // Complete documentation is available from the ByteQueue link in:
 //   http://www.cs.colorado.edu/~main/docs/
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.NoSuchElementException;
@@ -63,6 +64,16 @@ public class ByteQueue {
         rear = arr.length;
     }
 
+    /**
+     * Create a queue holding the given range of the array. The array is used as is, it is not copied.
+     */
+    public ByteQueue(byte[] arr, int offset, int length) {
+        this.data = arr;
+        size = length;
+        front = offset;
+        rear = offset + length - 1;
+    }
+
 
     /**
      * Initialize an empty queue with a specified initial capacity. Note that the
@@ -243,8 +254,11 @@ public class ByteQueue {
     }
 
     public void copyTo(byte[] copy) {
+        if (size == 0) {
+            return;
+        }
         if (front <= rear) {
-            System.arraycopy(data, front, copy, front, size);
+            System.arraycopy(data, front, copy, 0, size);
         } else {
             int n1 = data.length - front;
             int n2 = rear + 1;
@@ -253,9 +267,25 @@ public class ByteQueue {
         }
     }
 
+    /**
+     * Pass the contents of the queue to the given consumer in a single call. They are only copied if the queue has
+     * wrapped around the end of its array.
+     */
+    public void writeTo(ByteConsumer consumer) throws IOException {
+        if (size == 0) {
+            return;
+        }
+        if (front <= rear) {
+            consumer.consume(data, front, size);
+        } else {
+            byte[] b = toArray();
+            consumer.consume(b, 0, b.length);
+        }
+    }
+
     public byte[] toArray() {
         byte[] b = new byte[this.size()];
         copyTo(b);
         return b;
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
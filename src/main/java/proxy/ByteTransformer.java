@@ -0,0 +1,8 @@
+package proxy;
+
+/**
+ * Transforms a range of bytes in place, used for decrypting received data without copying it.
+ */
+public interface ByteTransformer {
+    void apply(byte[] bytes, int offset, int length);
+}
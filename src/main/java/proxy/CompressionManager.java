@@ -1,16 +1,25 @@
 package proxy;
 
-import org.apache.commons.io.IOUtils;
-
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
-import java.util.zip.InflaterInputStream;
+import java.util.zip.Inflater;
 
 public class CompressionManager {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_BUFFER_SIZE = 1 << 21;
+
+    // deflaters and inflaters hold native memory, so each thread keeps one around instead of creating one per call
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
     private int compressionLimit = 0;
     private boolean compressionEnabled = false;
 
@@ -20,35 +29,149 @@ public class CompressionManager {
     }
 
     /**
-     * Compresses the stream if the size is greater than the compression limit.
-     * Source: https://dzone.com/articles/how-compress-and-uncompress
+     * Compress the given data using zlib with the default compression level.
+     */
+    public static byte[] zlibCompress(byte[] input) {
+        return zlibCompress(input, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Compress the given data using zlib. The deflater and output buffer are re-used for every call on the same thread,
+     * so only the resulting array is allocated.
+     * @param level the compression level, 0-9 or -1 for the default
      */
-    public static byte[] zlibCompress(byte[] input) throws IOException {
-        Deflater deflater = new Deflater();
-        deflater.setInput(input);
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(input.length);
+    public static byte[] zlibCompress(byte[] input, int level) {
+        return zlibCompress(input, 0, input.length, level, 0);
+    }
+
+    /**
+     * Compress the given range using zlib. The given number of bytes at the start of the result are left empty, so
+     * that a header can be written in front of the compressed data without copying it again.
+     * @param level    the compression level, 0-9 or -1 for the default
+     * @param headroom the number of bytes to leave empty at the start of the result
+     */
+    public static byte[] zlibCompress(byte[] input, int offset, int length, int level, int headroom) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(input, offset, length);
         deflater.finish();
-        byte[] buffer = new byte[1024];
+
+        byte[] buffer = BUFFER.get();
+        int size = 0;
         while (!deflater.finished()) {
-            int count = deflater.deflate(buffer); // returns the generated code... index
-            outputStream.write(buffer, 0, count);
+            if (size == buffer.length) {
+                buffer = growBuffer(buffer);
+            }
+            size += deflater.deflate(buffer, size, buffer.length - size);
         }
-        outputStream.close();
-        return outputStream.toByteArray();
+        byte[] res = new byte[headroom + size];
+        System.arraycopy(buffer, 0, res, headroom, size);
+        return res;
     }
 
+    /**
+     * Decompress zlib data of which the decompressed size is not known.
+     */
     public static byte[] zlibDecompress(byte[] input) {
-        InflaterInputStream inflater = new InflaterInputStream(new ByteArrayInputStream(input));
+        return zlibDecompress(input, 0, input.length);
+    }
+
+    public static byte[] zlibDecompress(byte[] input, int offset, int length) {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(input, offset, length);
 
         try {
-            return IOUtils.toByteArray(inflater);
-        } catch (IOException e) {
+            byte[] buffer = BUFFER.get();
+            int size = 0;
+            while (!inflater.finished()) {
+                if (size == buffer.length) {
+                    buffer = growBuffer(buffer);
+                }
+                int inflated = inflater.inflate(buffer, size, buffer.length - size);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Unexpected end of compressed data");
+                }
+                size += inflated;
+            }
+            return Arrays.copyOf(buffer, size);
+        } catch (DataFormatException e) {
             e.printStackTrace();
             System.out.println("Could not decompress");
         }
         return new byte[0];
     }
 
+    /**
+     * Decompress only the start of the given zlib data, as much as fits in the output array. Used to read the first
+     * bytes of a packet without inflating all of it.
+     * @return the number of bytes written to the output
+     */
+    public static int zlibPeek(byte[] input, int offset, int length, byte[] output) {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(input, offset, length);
+
+        int size = 0;
+        try {
+            while (size < output.length && !inflater.finished()) {
+                int inflated = inflater.inflate(output, size, output.length - size);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += inflated;
+            }
+        } catch (DataFormatException e) {
+            // the full decompression will report the error
+            return 0;
+        }
+        return size;
+    }
+
+    /**
+     * Decompress zlib data of which the decompressed size is known, which lets us inflate directly into an array of
+     * the right size.
+     */
+    public static byte[] zlibDecompress(byte[] input, int offset, int length, int uncompressedSize) {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(input, offset, length);
+
+        byte[] output = new byte[uncompressedSize];
+        try {
+            int size = 0;
+            while (size < uncompressedSize && !inflater.finished()) {
+                int inflated = inflater.inflate(output, size, uncompressedSize - size);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += inflated;
+            }
+
+            if (size != uncompressedSize) {
+                throw new DataFormatException("Expected " + uncompressedSize + " bytes after decompression, got " + size);
+            }
+            return output;
+        } catch (DataFormatException e) {
+            e.printStackTrace();
+            System.out.println("Could not decompress");
+        }
+        return new byte[0];
+    }
+
+    /**
+     * Double the size of the thread's buffer. Very large buffers are not kept around, so that a single huge packet
+     * does not keep holding on to its memory.
+     */
+    private static byte[] growBuffer(byte[] buffer) {
+        byte[] larger = Arrays.copyOf(buffer, buffer.length * 2);
+        if (larger.length <= MAX_BUFFER_SIZE) {
+            BUFFER.set(larger);
+        }
+        return larger;
+    }
+
     // Source: https://stackoverflow.com/a/44922240
     public static byte[] gzipCompress(byte[] uncompressedData) {
         byte[] result = new byte[]{};
@@ -83,43 +206,26 @@ public class CompressionManager {
 
 
     /**
-     * Compressed a packet if it's over the limit. Otherwise, the original is returned. Will also return
-     * the original if something goes wrong during compression, but that will surely never happen.
+     * Whether a packet of the given length needs to be compressed before it is sent.
      */
-    public byte[] compressPacket(byte[] input) {
-        if (!compressionEnabled || input.length <= compressionLimit) {
-            return input;
-        }
-
-        try {
-            return zlibCompress(input);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return input;
-        }
+    public boolean shouldCompress(int length) {
+        return compressionEnabled && length > compressionLimit;
     }
 
     /**
-     * Decompress the given input.
-     * @param input  the input data
-     * @param offset the offset to start decompression from
-     * @param len    the length of the compressed data. When 0, no decompression will be done.
+     * Decompress the given packet frame, starting at its current position.
+     * @param frame            the received packet data, positioned after the uncompressed size
+     * @param uncompressedSize the length of the uncompressed data. When 0, no decompression will be done.
      * @return the decompressed data
      */
-    public byte[] decompressPacket(byte[] input, int offset, int len) {
-        if (!compressionEnabled) {
-            return input;
-        }
-
-        if (len == 0) {
-            byte[] res = new byte[input.length - offset];
-            System.arraycopy(input, offset, res, 0, res.length);
+    public byte[] decompressPacket(ByteBuffer frame, int uncompressedSize) {
+        if (uncompressedSize == 0) {
+            byte[] res = new byte[frame.remaining()];
+            frame.get(res);
             return res;
         }
 
-        byte[] toDecompress = new byte[input.length - offset];
-        System.arraycopy(input, offset, toDecompress, 0, toDecompress.length);
-        return zlibDecompress(toDecompress);
+        return zlibDecompress(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), uncompressedSize);
     }
 
 
@@ -1,25 +1,53 @@
 package proxy;
 
 import config.Config;
+import config.VersionReporter;
 import game.NetworkMode;
 import game.data.WorldManager;
 import game.protocol.ConfigurationProtocol;
 import game.protocol.HandshakeProtocol;
 import game.protocol.LoginProtocol;
+import game.protocol.Protocol;
 import game.protocol.StatusProtocol;
 import packets.DataReader;
 import packets.handler.*;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
- * Class to manage the connection status.
+ * Class to manage the connection status. Each client connected through the proxy has its own connection manager.
+ *
+ * There is only one world, so only one of the sessions owns it at a time. The world is claimed by the first session
+ * that logs in, so that status requests from the server list never own it. The other sessions are still proxied, but
+ * only handle the packets needed to keep their own connection working. Each session keeps its own protocol version,
+ * only the owner's version is used for the world.
  */
 public class ConnectionManager {
-    private DataReader serverBoundDataReader;
-    private DataReader clientBoundDataReader;
-    private EncryptionManager encryptionManager;
-    private CompressionManager compressionManager;
+    private final AtomicBoolean worldClaimed;
+    private volatile boolean ownsWorld;
+    private volatile VersionReporter versionReporter;
+    private int protocolVersion;
+    private final DataReader serverBoundDataReader;
+    private final DataReader clientBoundDataReader;
+    private final EncryptionManager encryptionManager;
+    private final CompressionManager compressionManager;
 
     private NetworkMode mode = NetworkMode.STATUS;
+    private Protocol protocol;
+
+    /**
+     * @param worldClaimed shared between sessions, set while one of them owns the world
+     */
+    public ConnectionManager(AtomicBoolean worldClaimed) {
+        this.worldClaimed = worldClaimed;
+        this.versionReporter = new VersionReporter(0);
+        compressionManager = new CompressionManager();
+        encryptionManager = new EncryptionManager(compressionManager, this::getVersionReporter);
+        serverBoundDataReader = DataReader.serverBound(encryptionManager);
+        clientBoundDataReader = DataReader.clientBound(encryptionManager);
+
+        setMode(NetworkMode.HANDSHAKE);
+    }
 
     public NetworkMode getMode() {
         return mode;
@@ -30,27 +58,28 @@ public class ConnectionManager {
 
         switch (mode) {
             case STATUS:
-                PacketHandler.setProtocol(new StatusProtocol());
+                setProtocol(new StatusProtocol());
                 serverBoundDataReader.setPacketHandler(new ServerBoundStatusPacketHandler(this));
                 clientBoundDataReader.setPacketHandler(new ClientBoundStatusPacketHandler(this));
                 break;
             case LOGIN:
-                PacketHandler.setProtocol(new LoginProtocol());
+                claimWorld();
+                setProtocol(new LoginProtocol());
                 serverBoundDataReader.setPacketHandler(new ServerBoundLoginPacketHandler(this));
                 clientBoundDataReader.setPacketHandler(new ClientBoundLoginPacketHandler(this));
                 break;
             case GAME:
-                PacketHandler.setProtocol(Config.getGameProtocol());
+                setProtocol(ownsWorld ? Config.getGameProtocol() : versionReporter.getProtocol());
                 serverBoundDataReader.setPacketHandler(new ServerBoundGamePacketHandler(this));
                 clientBoundDataReader.setPacketHandler(ClientBoundGamePacketHandler.of(this));
                 break;
             case HANDSHAKE:
-                PacketHandler.setProtocol(new HandshakeProtocol());
+                setProtocol(new HandshakeProtocol());
                 serverBoundDataReader.setPacketHandler(new ServerBoundHandshakePacketHandler(this));
                 clientBoundDataReader.setPacketHandler(new ClientBoundHandshakePacketHandler(this));
                 break;
             case CONFIGURATION:
-                PacketHandler.setProtocol(new ConfigurationProtocol());
+                setProtocol(new ConfigurationProtocol(versionReporter));
                 serverBoundDataReader.setPacketHandler(new ServerBoundConfigurationPacketHandler(this));
                 clientBoundDataReader.setPacketHandler(ClientBoundConfigurationPacketHandler.of(this));
                 break;
@@ -58,20 +87,56 @@ public class ConnectionManager {
     }
 
     /**
-     * Starts the proxy.
+     * Set the protocol version sent by the client in its handshake. It only becomes the version of the world if this
+     * session owns it.
      */
-    public void startProxy() {
-        compressionManager = new CompressionManager();
-        encryptionManager = new EncryptionManager(compressionManager);
-        serverBoundDataReader = DataReader.serverBound(encryptionManager);
-        clientBoundDataReader = DataReader.clientBound(encryptionManager);
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+        this.versionReporter = new VersionReporter(protocolVersion);
 
-        setMode(NetworkMode.HANDSHAKE);
+        if (ownsWorld) {
+            Config.setProtocolVersion(protocolVersion);
+        }
+    }
+
+    public VersionReporter getVersionReporter() {
+        return versionReporter;
+    }
+
+    /**
+     * Claim the world for this session if no other session owns it, once the client starts logging in.
+     */
+    private void claimWorld() {
+        if (ownsWorld) {
+            return;
+        }
+
+        if (!worldClaimed.compareAndSet(false, true)) {
+            System.out.println("Another client is already being used to download the world, this client is only proxied.");
+            return;
+        }
+
+        ownsWorld = true;
+        Config.setProtocolVersion(protocolVersion);
+        Config.registerPacketInjector(encryptionManager.getPacketInjector());
+    }
+
+    /**
+     * Give up the world when the session ends, so that the next client to log in can claim it.
+     */
+    public void releaseWorld() {
+        if (ownsWorld) {
+            ownsWorld = false;
+            worldClaimed.set(false);
+        }
+    }
 
-        ProxyServer proxy = new ProxyServer(this, Config.getConnectionDetails());
-        proxy.runServer(serverBoundDataReader, clientBoundDataReader);
+    private void setProtocol(Protocol protocol) {
+        this.protocol = protocol;
+    }
 
-        Config.registerPacketInjector(this.getEncryptionManager().getPacketInjector());
+    public Protocol getProtocol() {
+        return protocol;
     }
 
     /**
@@ -83,7 +148,14 @@ public class ConnectionManager {
         serverBoundDataReader.reset();
         clientBoundDataReader.reset();
         setMode(NetworkMode.HANDSHAKE);
-        WorldManager.getInstance().resetConnection();
+
+        if (ownsWorld) {
+            WorldManager.getInstance().resetConnection();
+        }
+    }
+
+    public boolean ownsWorld() {
+        return ownsWorld;
     }
 
     public EncryptionManager getEncryptionManager() {
@@ -93,4 +165,12 @@ public class ConnectionManager {
     public CompressionManager getCompressionManager() {
         return compressionManager;
     }
+
+    public DataReader getServerBoundDataReader() {
+        return serverBoundDataReader;
+    }
+
+    public DataReader getClientBoundDataReader() {
+        return clientBoundDataReader;
+    }
 }
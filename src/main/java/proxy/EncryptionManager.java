@@ -1,9 +1,11 @@
 package proxy;
 
+import static util.PrintUtils.devPrint;
 import static util.PrintUtils.devPrintFormat;
 
 import config.Config;
 import config.Version;
+import config.VersionReporter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigInteger;
@@ -24,7 +26,7 @@ import java.util.Base64;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
-import java.util.function.UnaryOperator;
+import java.util.function.Supplier;
 import javax.crypto.Cipher;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -45,14 +47,15 @@ public class EncryptionManager {
     private byte[] nonce;
     private byte[] clientSharedSecret;
     private Cipher clientBoundDecryptor, clientBoundEncryptor, serverBoundEncryptor, serverBoundDecryptor;
-    private OutputStream streamToClient;
-    private OutputStream streamToServer;
+    private final OutputBuffer clientOutput;
+    private final OutputBuffer serverOutput;
     private KeyPair serverKeyPair;
     private KeyPair clientProfileKeyPair;
     private String username;
 
     private final CompressionManager compressionManager;
     private final ClientAuthenticator clientAuthenticator;
+    private final Supplier<VersionReporter> versionReporter;
 
     private RSAPublicKey clientProfilePublicKey;
     private boolean shouldAuthenticate = true; /* >= 1.20.6 */
@@ -66,10 +69,14 @@ public class EncryptionManager {
         });
     }
 
-    public EncryptionManager(CompressionManager compressionManager) {
+    public EncryptionManager(CompressionManager compressionManager, Supplier<VersionReporter> versionReporter) {
         this.compressionManager = compressionManager;
+        this.versionReporter = versionReporter;
         this.packetInjector = new PacketInjector(compressionManager);
+        this.packetInjector.setFlushTrigger(this::flushInjected);
         this.clientAuthenticator = new ClientAuthenticator();
+        this.clientOutput = new OutputBuffer();
+        this.serverOutput = new OutputBuffer();
     }
 
     public boolean isEncryptionEnabled() {
@@ -121,8 +128,8 @@ public class EncryptionManager {
         } catch (Exception ex) {
             ex.printStackTrace();
 
-            attempt(() -> streamToServer.close());
-            attempt(() -> streamToClient.close());
+            attempt(serverOutput::close);
+            attempt(clientOutput::close);
             return false;
         }
         return true;
@@ -142,7 +149,7 @@ public class EncryptionManager {
         builder.writeVarInt(nonce.length); // verify token len
         builder.writeByteArray(nonce);  // verify token
 
-        if (Config.versionReporter().isAtLeast(Version.V1_20_6)) {
+        if (versionReporter.get().isAtLeast(Version.V1_20_6)) {
             builder.writeBoolean(shouldAuthenticate);
         }
 
@@ -155,53 +162,56 @@ public class EncryptionManager {
      * @param bytes the bytes to stream
      */
     public void streamToClient(ByteQueue bytes) throws IOException {
-        streamTo(streamToClient, bytes, this::clientBoundEncrypt);
-
-        // if we need to insert packets, send at most 100 at a time
-        int limit = 100;
-        while (packetInjector.hasNext() && limit > 0) {
-            limit--;
-            streamTo(streamToClient, packetInjector.getNext(), this::clientBoundEncrypt);
-        }
-
+        bytes.writeTo(this::streamToClient);
     }
 
     /**
-     * Method to stream a queue of bytes to a given output stream. The stream will be encrypted if encryption has been
-     * enabled.
-     * @param stream  the stream to write to
-     * @param bytes   the bytes to write
-     * @param encrypt the encryption operator
+     * Method to stream a range of bytes to the client. Whenever this is called it also checks whether we have any
+     * injected packets queued to be sent to the client.
      */
-    private void streamTo(OutputStream stream, ByteQueue bytes, UnaryOperator<byte[]> encrypt) throws IOException {
-        byte[] b = bytes.toArray();
-
-        byte[] encrypted = encrypt.apply(b);
-
-        stream.write(encrypted, 0, encrypted.length);
-        stream.flush();
+    public void streamToClient(byte[] bytes, int offset, int length) throws IOException {
+        clientOutput.write(bytes, offset, length);
+        writeInjected();
     }
 
     /**
-     * Encrypts a given byte array using the encryption stream for the client-side.
+     * Write injected packets to the client, at most 100 at a time.
      */
-    private byte[] clientBoundEncrypt(byte[] bytes) {
-        return encrypt(bytes, clientBoundEncryptor);
+    private void writeInjected() throws IOException {
+        ByteQueue next;
+        int limit = 100;
+        while (limit-- > 0 && (next = packetInjector.getNext()) != null) {
+            next.writeTo(clientOutput::write);
+        }
     }
 
     /**
-     * Encrypts a given byte array using the the given encryptor, if encryption has been enabled.
+     * Send injected packets to the client without waiting for the server to send something. Runs again if there are
+     * more packets left after this.
      */
-    private byte[] encrypt(byte[] bytes, Cipher encryptor) {
-        if (!encryptionEnabled) { return bytes; }
-
+    private void flushInjected() {
         try {
-            return encryptor.update(bytes);
-        } catch (Exception ex) {
-            throw new RuntimeException("Could not encrypt stream!", ex);
+            writeInjected();
+            clientOutput.flush();
+        } catch (IOException ex) {
+            // the connection was closed, the reader will notice this too
+            return;
+        }
+
+        if (packetInjector.hasNext()) {
+            packetInjector.scheduleFlush();
         }
     }
 
+    /**
+     * Write any buffered bytes to the client and server. Called once all currently received data has been handled, so
+     * that packets that arrived together are also forwarded together.
+     */
+    public void flush() throws IOException {
+        clientOutput.flush();
+        serverOutput.flush();
+    }
+
     /**
      * Called to intercept the client's encryption confirmation. Because we intercepted the server's real public key,
      * we need to now decrypt the given shared secret key (and token) and re-encrypt it using the real public key.
@@ -351,8 +361,11 @@ public class EncryptionManager {
     }
 
     public void streamToServer(ByteQueue bytes) throws IOException {
-        // System.out.println("Writing bytes to server: " + bytes.size() + " :: " + bytes);
-        streamTo(streamToServer, bytes, this::serverBoundEncrypt);
+        bytes.writeTo(this::streamToServer);
+    }
+
+    public void streamToServer(byte[] bytes, int offset, int length) throws IOException {
+        serverOutput.write(bytes, offset, length);
     }
 
     /**
@@ -376,44 +389,49 @@ public class EncryptionManager {
             serverBoundDecryptor = Cipher.getInstance(ENCRYPTION_TYPE);
             serverBoundDecryptor.init(Cipher.DECRYPT_MODE, k, ivspec);
 
+            clientOutput.setEncryptor(clientBoundEncryptor);
+            serverOutput.setEncryptor(serverBoundEncryptor);
             encryptionEnabled = true;
         });
     }
 
-    private byte[] serverBoundEncrypt(byte[] bytes) {
-        return encrypt(bytes, serverBoundEncryptor);
-    }
-
     public void setStreamToClient(OutputStream streamToClient) {
-        this.streamToClient = streamToClient;
+        this.clientOutput.setStream(streamToClient);
     }
 
     public void setStreamToServer(OutputStream streamToServer) {
-        this.streamToServer = streamToServer;
+        this.serverOutput.setStream(streamToServer);
     }
 
-    public byte[] serverBoundDecrypt(byte[] bytes) {
-        return decrypt(bytes, serverBoundDecryptor);
+    public void serverBoundDecrypt(byte[] bytes, int offset, int length) {
+        decrypt(bytes, offset, length, serverBoundDecryptor);
     }
 
-    private byte[] decrypt(byte[] bytes, Cipher decryptor) {
-        if (!encryptionEnabled) { return bytes; }
+    /**
+     * Decrypts a range of the given byte array in place. CFB8 does not change the length of the data, so the
+     * decrypted bytes can be written over the encrypted ones.
+     */
+    private void decrypt(byte[] bytes, int offset, int length, Cipher decryptor) {
+        if (!encryptionEnabled) { return; }
 
         try {
-            return decryptor.update(bytes);
+            decryptor.update(bytes, offset, length, bytes, offset);
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(1);
         }
-        return null;
     }
 
-    public byte[] clientBoundDecrypt(byte[] bytes) {
-        return decrypt(bytes, clientBoundDecryptor);
+    public void clientBoundDecrypt(byte[] bytes, int offset, int length) {
+        decrypt(bytes, offset, length, clientBoundDecryptor);
     }
 
     public void reset() {
+        devPrint("Sent to client: " + clientOutput + ". Sent to server: " + serverOutput);
+
         encryptionEnabled = false;
+        clientOutput.reset();
+        serverOutput.reset();
         this.packetInjector.clear();
         clientAuthenticator.reset();
     }
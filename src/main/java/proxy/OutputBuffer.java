@@ -0,0 +1,168 @@
+package proxy;
+
+import static util.PrintUtils.humanReadable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+
+/**
+ * Buffers the outgoing bytes for one direction of the connection. Packets are encrypted straight into a reusable
+ * buffer and then written to the socket together, instead of doing a separate write and flush for every packet. The
+ * buffer is flushed when the reader has handled all the data it received, when it grows too large, or when bytes
+ * have been waiting for longer than the latency budget.
+ */
+public class OutputBuffer {
+    private static final int INIT_SIZE = 1 << 16;
+    private static final int FLUSH_THRESHOLD = 1 << 17;
+    private static final long MAX_DELAY = TimeUnit.MILLISECONDS.toNanos(5);
+
+    // a lock instead of synchronized, so that virtual threads are not pinned while writing to the socket
+    private final ReentrantLock lock;
+    private OutputStream stream;
+    private Cipher encryptor;
+
+    private byte[] buffer;
+    private int size;
+    private long firstWriteTime;
+
+    private long bytesFlushed;
+    private long flushCount;
+
+    public OutputBuffer() {
+        this.lock = new ReentrantLock();
+        this.buffer = new byte[INIT_SIZE];
+    }
+
+    public void setStream(OutputStream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Set the cipher used to encrypt all bytes written after this call. Bytes that are already in the buffer are not
+     * affected. When null, bytes are written without encryption.
+     */
+    public void setEncryptor(Cipher encryptor) {
+        lock.lock();
+        try {
+            this.encryptor = encryptor;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Add the given range of bytes to the buffer, encrypting them if needed. May flush the buffer if it is large or
+     * the oldest bytes in it have been waiting too long.
+     */
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        lock.lock();
+        try {
+            ensureCapacity(size + length);
+
+            if (encryptor == null) {
+                System.arraycopy(bytes, offset, buffer, size, length);
+            } else {
+                encrypt(bytes, offset, length);
+            }
+
+            if (size == 0) {
+                firstWriteTime = System.nanoTime();
+            }
+            size += length;
+
+            if (size >= FLUSH_THRESHOLD || System.nanoTime() - firstWriteTime > MAX_DELAY) {
+                flush();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void encrypt(byte[] bytes, int offset, int length) {
+        try {
+            encryptor.update(bytes, offset, length, buffer, size);
+        } catch (ShortBufferException ex) {
+            throw new RuntimeException("Could not encrypt stream!", ex);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (buffer.length >= capacity) {
+            return;
+        }
+
+        byte[] larger = new byte[Math.max(buffer.length * 2, capacity)];
+        System.arraycopy(buffer, 0, larger, 0, size);
+        buffer = larger;
+    }
+
+    /**
+     * Write all buffered bytes to the stream.
+     */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            if (size == 0) {
+                return;
+            }
+
+            stream.write(buffer, 0, size);
+            stream.flush();
+
+            bytesFlushed += size;
+            flushCount++;
+            size = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discard any buffered bytes and close the stream.
+     */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            size = 0;
+            if (stream != null) {
+                stream.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discard any buffered bytes and stop encrypting, used when the connection is reset.
+     */
+    public void reset() {
+        lock.lock();
+        try {
+            size = 0;
+            encryptor = null;
+            bytesFlushed = 0;
+            flushCount = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBytesFlushed() {
+        return bytesFlushed;
+    }
+
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    @Override
+    public String toString() {
+        long average = flushCount == 0 ? 0 : bytesFlushed / flushCount;
+        return humanReadable(bytesFlushed) + " bytes in " + humanReadable(flushCount) + " writes ("
+            + humanReadable(average) + " bytes per write)";
+    }
+}
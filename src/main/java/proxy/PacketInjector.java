@@ -1,40 +1,169 @@
 package proxy;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Semaphore;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import packets.builder.PacketBuilder;
 import packets.lib.ByteQueue;
 
+/**
+ * Holds packets to be sent to the client that did not come from the server. There are two lanes: small control
+ * packets such as chat messages, which are always sent first, and bulk packets such as chunks sent by the render
+ * distance extender. The bulk lane has a limited capacity in bytes, producers are blocked while it is full.
+ *
+ * Injected packets are sent along with packets from the server. If the server is quiet, the flush trigger is run
+ * shortly after packets are added, so that they do not wait for the next server packet. Each trigger runs on its own
+ * virtual thread, so that a flush blocked on a slow client does not hold up the flushes of other connections.
+ */
 public class PacketInjector {
-    private final ConcurrentLinkedQueue<ByteQueue> insertedPackets;
+    private static final int BULK_CAPACITY = 8 * 1024 * 1024;
+    private static final long FLUSH_DELAY = 5;
+
+    private static final Executor FLUSH_EXECUTOR = CompletableFuture.delayedExecutor(FLUSH_DELAY, TimeUnit.MILLISECONDS,
+        r -> Thread.ofVirtual().name("Packet Injector Flush").start(r));
+
+    // a lock instead of synchronized, so that virtual threads are not pinned while waiting for capacity
+    private final ReentrantLock lock;
+    private final Condition notFull;
+
+    private final Queue<ByteQueue> controlPackets;
+    private final Queue<ByteQueue> bulkPackets;
+    private int bulkBytes;
+
     private final CompressionManager compressionManager;
 
+    private Runnable flushTrigger;
+    private final AtomicBoolean flushScheduled;
+
     public PacketInjector(CompressionManager compressionManager) {
-        this.insertedPackets = new ConcurrentLinkedQueue<>();
+        this.lock = new ReentrantLock();
+        this.notFull = lock.newCondition();
+        this.controlPackets = new ArrayDeque<>();
+        this.bulkPackets = new ArrayDeque<>();
         this.compressionManager = compressionManager;
+        this.flushScheduled = new AtomicBoolean();
     }
 
     /**
-     * Adds a packet to the queue. This queue is checked whenever a packet is sent, and they will be sent to the
+     * Set the method that sends any injected packets, run when packets are added but the server does not send
+     * anything.
+     */
+    public void setFlushTrigger(Runnable flushTrigger) {
+        this.flushTrigger = flushTrigger;
+    }
+
+    /**
+     * Adds a packet to the control lane. This queue is checked whenever a packet is sent, and they will be sent to the
      * client after.
      */
     public void enqueuePacket(PacketBuilder packet) {
-        insertedPackets.add(packet.build(compressionManager));
+        ByteQueue prepared = prepare(packet);
+
+        lock.lock();
+        try {
+            controlPackets.add(prepared);
+        } finally {
+            lock.unlock();
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Build and compress the given packet, so that it can be enqueued later (possibly more than once) without having
+     * to build it again.
+     */
+    public ByteQueue prepare(PacketBuilder packet) {
+        return packet.build(compressionManager);
+    }
+
+    /**
+     * Adds a packet that was built using {@link #prepare(PacketBuilder)} to the bulk lane. If the lane is full, this
+     * blocks until enough packets have been sent to the client.
+     */
+    public void enqueueBulk(ByteQueue packet) throws InterruptedException {
+        lock.lock();
+        try {
+            // a packet larger than the capacity is still accepted once the lane is empty
+            while (bulkBytes > 0 && bulkBytes + packet.size() > BULK_CAPACITY) {
+                notFull.await();
+            }
+            bulkPackets.add(packet);
+            bulkBytes += packet.size();
+        } finally {
+            lock.unlock();
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Run the flush trigger soon, unless it is already scheduled.
+     */
+    public void scheduleFlush() {
+        if (flushTrigger == null || !flushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        FLUSH_EXECUTOR.execute(() -> {
+            flushScheduled.set(false);
+            flushTrigger.run();
+        });
     }
 
     public void clear() {
-        this.insertedPackets.clear();
+        lock.lock();
+        try {
+            controlPackets.clear();
+            bulkPackets.clear();
+            bulkBytes = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean hasNext() {
-        return !insertedPackets.isEmpty();
+        lock.lock();
+        try {
+            return !controlPackets.isEmpty() || !bulkPackets.isEmpty();
+        } finally {
+            lock.unlock();
+        }
     }
 
+    /**
+     * Get the next packet to send, control packets go first.
+     * @return the packet, or null if there are none
+     */
     public ByteQueue getNext() {
-        return insertedPackets.remove();
+        lock.lock();
+        try {
+            ByteQueue next = controlPackets.poll();
+            if (next != null) {
+                return next;
+            }
+
+            next = bulkPackets.poll();
+            if (next != null) {
+                bulkBytes -= next.size();
+                notFull.signalAll();
+            }
+            return next;
+        } finally {
+            lock.unlock();
+        }
     }
 
     public int size() {
-        return insertedPackets.size();
+        lock.lock();
+        try {
+            return controlPackets.size() + bulkPackets.size();
+        } finally {
+            lock.unlock();
+        }
     }
 }
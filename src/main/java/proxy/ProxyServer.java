@@ -1,39 +1,42 @@
 package proxy;
 
-import game.NetworkMode;
 import packets.DataReader;
 
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static util.ExceptionHandling.attempt;
 
 /**
- * Proxy server class, handles receiving of data and forwarding it to the right places.
+ * Proxy server class, handles receiving of data and forwarding it to the right places. Each accepted client gets its
+ * own session with a separate connection manager, so several clients can be connected through the proxy at once. Every
+ * session uses one virtual thread per direction, which simply block on reads.
+ *
+ * Only the first session to log in owns the world and its packet injector, until it disconnects. Sessions that log in
+ * in the meantime are proxied without affecting the world.
  */
 public class ProxyServer extends Thread {
-    private final ConnectionDetails connectionDetails;
-    private final ConnectionManager connectionManager;
+    private static final int READ_BUFFER_SIZE = 1 << 16;
 
-    private DataReader onServerBoundPacket;
-    private DataReader onClientBoundPacket;
+    private final ConnectionDetails connectionDetails;
+    private final AtomicInteger sessionCount;
+    private final AtomicBoolean worldOwned;
 
-    public ProxyServer(ConnectionManager connectionManager, ConnectionDetails connectionDetails) {
+    public ProxyServer(ConnectionDetails connectionDetails) {
         this.connectionDetails = connectionDetails;
-        this.connectionManager = connectionManager;
+        this.sessionCount = new AtomicInteger();
+        this.worldOwned = new AtomicBoolean();
     }
 
     /**
-     * Run the proxy server. This method does not return.
-     * @param onServerBoundPacket data reader for client -> server traffic
-     * @param onClientBoundPacket data reader for server -> client traffic
+     * Run the proxy server. This method returns immediately, connections are accepted on the proxy thread.
      */
-    public void runServer(DataReader onServerBoundPacket, DataReader onClientBoundPacket) {
-        this.onClientBoundPacket = onClientBoundPacket;
-        this.onServerBoundPacket = onServerBoundPacket;
+    public void runServer() {
         this.start();
         this.setPriority(10);
     }
@@ -41,7 +44,7 @@ public class ProxyServer extends Thread {
     @Override
     public void run() {
         setName("Proxy");
-        
+
         String friendlyHost = connectionDetails.getFriendlyHost();
         System.out.println("Starting proxy for " + friendlyHost + ". Make sure to connect to localhost:" + connectionDetails.getPortLocal() + " instead of the regular server address.");
 
@@ -52,74 +55,102 @@ public class ProxyServer extends Thread {
             System.exit(1);
         });
 
-        final byte[] request = new byte[4096];
-        final byte[] reply = new byte[4096];
-
+        int sessionId = 0;
         while (true) {
             AtomicReference<Socket> client = new AtomicReference<>();
-            AtomicReference<Socket> server = new AtomicReference<>();
 
-            attempt(() -> {
-                // Wait for a connection on the local port
-                client.set(ss.get().accept());
-
-                final InputStream streamFromClient = client.get().getInputStream();
-                final OutputStream streamToClient = client.get().getOutputStream();
-                connectionManager.getEncryptionManager().setStreamToClient(streamToClient);
-
-                // If the server cannot connect, close client connection
-                attempt(() -> server.set(connectionDetails.getClientSocket()), (ex) -> {
-                    System.err.println("Cannot connect to " + friendlyHost + ". The server may be down or on a different address. (" + ex.getClass().getCanonicalName() + ")");
-                    attempt(client.get()::close);
+            // Wait for a connection on the local port
+            attempt(() -> client.set(ss.get().accept()));
+            if (client.get() == null) {
+                continue;
+            }
+
+            sessionId++;
+            ConnectionManager connectionManager = new ConnectionManager(worldOwned);
+            Thread.ofVirtual()
+                .name("Proxy Session " + sessionId)
+                .start(() -> {
+                    try {
+                        runSession(client.get(), connectionManager);
+                    } finally {
+                        connectionManager.releaseWorld();
+                    }
                 });
+        }
+    }
 
-                final InputStream streamFromServer = server.get().getInputStream();
-                final OutputStream streamToServer = server.get().getOutputStream();
-                connectionManager.getEncryptionManager().setStreamToServer(streamToServer);
+    /**
+     * Connect the given client to the server and forward data in both directions until either side disconnects.
+     */
+    private void runSession(Socket client, ConnectionManager connectionManager) {
+        String friendlyHost = connectionDetails.getFriendlyHost();
+        AtomicReference<Socket> server = new AtomicReference<>();
+
+        attempt(() -> {
+            final InputStream streamFromClient = client.getInputStream();
+            final OutputStream streamToClient = client.getOutputStream();
+            connectionManager.getEncryptionManager().setStreamToClient(streamToClient);
 
+            // If the server cannot connect, close client connection
+            attempt(() -> server.set(connectionDetails.getClientSocket()), (ex) -> {
+                System.err.println("Cannot connect to " + friendlyHost + ". The server may be down or on a different address. (" + ex.getClass().getCanonicalName() + ")");
+                attempt(client::close);
+            });
+            if (server.get() == null) {
+                return;
+            }
+
+            final InputStream streamFromServer = server.get().getInputStream();
+            final OutputStream streamToServer = server.get().getOutputStream();
+            connectionManager.getEncryptionManager().setStreamToServer(streamToServer);
+
+            if (sessionCount.incrementAndGet() > 1) {
+                System.out.println("Client connected. There are now " + sessionCount.get() + " clients connected through the proxy.");
+            }
+            try {
                 // start client listener thread
-                Thread clientListener = new Thread(() -> {
-                    connectionManager.setMode(NetworkMode.HANDSHAKE);
-                    attempt(() -> {
-                        int bytesRead;
-                        while ((bytesRead = streamFromClient.read(request)) != -1) {
-                            onServerBoundPacket.pushData(request, bytesRead);
-                        }
-                    }, (ex) -> {
-                        Throwable cause = ex.getCause();
-                        if (cause != null) {
-                            cause.printStackTrace();
-                        }
-                        System.out.println("Server probably disconnected. Waiting for new connection...");
-                        connectionManager.reset();
-                    });
+                Thread clientListener = Thread.ofVirtual().name("Proxy Client Listener").start(() -> {
+                    forward(streamFromClient, connectionManager.getServerBoundDataReader(), connectionManager,
+                        "Server probably disconnected. Waiting for new connection...");
+
                     // the client closed the connection to us, so close our connection to the server.
                     attempt(streamToServer::close);
-                }, "Proxy Client Listener");
-                clientListener.start();
-                clientListener.setPriority(10);
+                });
 
                 // listen to messages from server
-                attempt(() -> {
-                    int bytesRead;
-                    while ((bytesRead = streamFromServer.read(reply)) != -1) {
-                        onClientBoundPacket.pushData(reply, bytesRead);
-                    }
-                }, (ex) -> {
-                    Throwable cause = ex.getCause();
-                    if (cause != null) {
-                        cause.printStackTrace();
-                    }
-                    System.out.println("Client probably disconnected. Waiting for new connection...");
-                    connectionManager.reset();
-                });
+                forward(streamFromServer, connectionManager.getClientBoundDataReader(), connectionManager,
+                    "Client probably disconnected. Waiting for new connection...");
 
                 // The server closed its connection to us, so we close our connection to our client.
                 streamToClient.close();
-            }, (ex) -> {
-                if (server.get() != null) { attempt(server.get()::close); }
-                if (client.get() != null) { attempt(client.get()::close); }
-            });
-        }
+                clientListener.join();
+            } finally {
+                sessionCount.decrementAndGet();
+            }
+        }, (ex) -> {
+            if (server.get() != null) { attempt(server.get()::close); }
+            attempt(client::close);
+        });
+    }
+
+    /**
+     * Read from the given stream and push the data into the reader until the stream is closed.
+     */
+    private static void forward(InputStream stream, DataReader reader, ConnectionManager connectionManager, String disconnectMessage) {
+        final byte[] buffer = new byte[READ_BUFFER_SIZE];
+
+        attempt(() -> {
+            int bytesRead;
+            while ((bytesRead = stream.read(buffer)) != -1) {
+                reader.pushData(buffer, bytesRead);
+            }
+        }, (ex) -> {
+            Throwable cause = ex.getCause();
+            if (cause != null) {
+                cause.printStackTrace();
+            }
+            System.out.println(disconnectMessage);
+            connectionManager.reset();
+        });
     }
 }
@@ -0,0 +1,99 @@
+package util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes ARGB pixels as an 8-bit RGBA PNG image. Unlike ImageIO, this works directly on the pixel array without
+ * creating an intermediate image, and uses the fastest compression level since map images are written often.
+ * Each row uses the "sub" filter, which compresses the large areas of similar colour in map images well.
+ */
+public final class PngEncoder {
+    private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+    private static final byte BIT_DEPTH = 8;
+    private static final byte COLOR_TYPE_RGBA = 6;
+    private static final byte FILTER_SUB = 1;
+
+    private PngEncoder() { }
+
+    public static void write(File file, int[] argb, int width, int height) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            write(out, argb, width, height);
+        }
+    }
+
+    public static void write(OutputStream out, int[] argb, int width, int height) throws IOException {
+        if (argb.length < width * height) {
+            throw new IllegalArgumentException("Expected " + width * height + " pixels, got " + argb.length);
+        }
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(SIGNATURE);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(width);
+        headerData.writeInt(height);
+        headerData.writeByte(BIT_DEPTH);
+        headerData.writeByte(COLOR_TYPE_RGBA);
+        headerData.writeByte(0); // compression: deflate
+        headerData.writeByte(0); // filter method: adaptive
+        headerData.writeByte(0); // no interlacing
+
+        writeChunk(data, "IHDR", header.toByteArray());
+        writeChunk(data, "IDAT", compress(argb, width, height));
+        writeChunk(data, "IEND", new byte[0]);
+        data.flush();
+    }
+
+    private static byte[] compress(int[] argb, int width, int height) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(width * height);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+        try (DeflaterOutputStream stream = new DeflaterOutputStream(compressed, deflater, 1 << 16)) {
+            byte[] row = new byte[1 + width * 4];
+            row[0] = FILTER_SUB;
+
+            for (int y = 0; y < height; y++) {
+                int previous = 0;
+                for (int x = 0, i = 1; x < width; x++, i += 4) {
+                    int pixel = argb[y * width + x];
+
+                    // each byte is stored as the difference with the same byte of the pixel to its left
+                    row[i] = (byte) ((pixel >> 16) - (previous >> 16));
+                    row[i + 1] = (byte) ((pixel >> 8) - (previous >> 8));
+                    row[i + 2] = (byte) (pixel - previous);
+                    row[i + 3] = (byte) ((pixel >>> 24) - (previous >>> 24));
+
+                    previous = pixel;
+                }
+                stream.write(row);
+            }
+        } finally {
+            deflater.end();
+        }
+        return compressed.toByteArray();
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] contents) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(contents);
+
+        out.writeInt(contents.length);
+        out.write(typeBytes);
+        out.write(contents);
+        out.writeInt((int) crc.getValue());
+    }
+}
@@ -60,4 +60,8 @@ public class PrintUtils {
         return formatter.format(number);
     }
 
+    public static String humanReadable(long number) {
+        return formatter.format(number);
+    }
+
 }
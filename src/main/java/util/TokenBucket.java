@@ -0,0 +1,57 @@
+package util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiter. Tokens are added at a fixed rate up to the capacity of the bucket, and taking more tokens
+ * than are available blocks until enough have been added. The rate can be changed at any time.
+ */
+public class TokenBucket {
+    private final double capacity;
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param rate     number of tokens added per second
+     * @param capacity maximum number of tokens that can be saved up
+     */
+    public TokenBucket(double rate, double capacity) {
+        this.rate = rate;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    public synchronized void setRate(double rate) {
+        refill();
+        this.rate = rate;
+    }
+
+    /**
+     * Take the given number of tokens, waiting until they have been added if there are not enough. The amount may be
+     * larger than the capacity, in which case we wait until the deficit has been made up.
+     */
+    public void acquire(double amount) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            tokens -= amount;
+            if (tokens >= 0) {
+                return;
+            }
+            waitNanos = (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+        }
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,283 @@
+package game.data.chunk;
+
+import game.data.chunk.palette.BlockColors;
+import game.data.chunk.palette.BlockRegistry;
+import game.data.chunk.palette.BlockState;
+import game.data.chunk.palette.GlobalPaletteProvider;
+import game.data.chunk.palette.Palette;
+import game.data.chunk.version.ChunkSection_1_16;
+import game.data.chunk.version.Chunk_1_16;
+import game.data.chunk.version.encoder.BlockLocationEncoder;
+import game.data.chunk.version.encoder.BlockLocationEncoder_1_16;
+import game.data.coordinates.CoordinateDim2D;
+import game.data.dimension.Dimension;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import se.llbit.nbt.CompoundTag;
+import se.llbit.nbt.ListTag;
+import se.llbit.nbt.SpecificTag;
+import se.llbit.nbt.StringTag;
+import se.llbit.nbt.Tag;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests reading the blocks of chunk sections one at a time and all at once, and that the heights and caves found
+ * using the solidity of sections are the same as those found by looking at every block.
+ */
+class ChunkSectionTest {
+    // not the data version of any release, so that other tests still get the real block registries
+    private static final int DATA_VERSION = -1;
+
+    // the registry has air, and this many solid and non-solid states
+    private static final int VARIANTS = 200;
+
+    private enum Kind { ABSENT, NONE, ALL, MIXED, DIRECT }
+
+    private static BlockRegistry registry;
+
+    private final Random random = new Random(0);
+
+    @BeforeAll
+    public static void beforeAll() {
+        BlockColors colors = mock(BlockColors.class);
+        when(colors.isSolid("minecraft:stone")).thenReturn(true);
+
+        StringBuilder report = new StringBuilder("{ \"minecraft:air\": { \"states\": [ { \"id\": 0 } ] }");
+        report.append(", \"minecraft:stone\": ").append(variants(solidState(0)));
+        report.append(", \"minecraft:cave_air\": ").append(variants(emptyState(0)));
+        report.append(" }");
+
+        registry = new BlockRegistry(new ByteArrayInputStream(report.toString().getBytes(StandardCharsets.UTF_8)), colors);
+        GlobalPaletteProvider.setGlobalPalette(DATA_VERSION, registry);
+    }
+
+    private static String variants(int firstId) {
+        List<String> states = new ArrayList<>();
+        for (int i = 0; i < VARIANTS; i++) {
+            states.add("{ \"id\": " + (firstId + i) + ", \"properties\": { \"variant\": " + i + " } }");
+        }
+        return "{ \"states\": [ " + String.join(", ", states) + " ] }";
+    }
+
+    private static int solidState(int variant) {
+        return 1 + variant;
+    }
+
+    private static int emptyState(int variant) {
+        return 1 + VARIANTS + variant;
+    }
+
+    private int randomState(boolean solid) {
+        return solid ? solidState(random.nextInt(VARIANTS)) : emptyState(random.nextInt(VARIANTS));
+    }
+
+    /**
+     * Get the palette entry of a state, as it is stored in saved chunks.
+     */
+    private static SpecificTag paletteEntry(int stateId) {
+        CompoundTag tag = new CompoundTag();
+        if (stateId == 0) {
+            tag.add("Name", new StringTag("minecraft:air"));
+            return tag;
+        }
+
+        boolean isSolid = stateId <= VARIANTS;
+        tag.add("Name", new StringTag(isSolid ? "minecraft:stone" : "minecraft:cave_air"));
+
+        CompoundTag properties = new CompoundTag();
+        properties.add("variant", new StringTag(Integer.toString(isSolid ? stateId - 1 : stateId - 1 - VARIANTS)));
+        tag.add("Properties", properties);
+        return tag;
+    }
+
+    @Test
+    public void getAllMatchesGet() {
+        for (BlockLocationEncoder encoder : List.of(new BlockLocationEncoder(), new BlockLocationEncoder_1_16())) {
+            for (int bitsPerBlock = 1; bitsPerBlock <= 15; bitsPerBlock++) {
+                int size = encoder instanceof BlockLocationEncoder_1_16
+                    ? ChunkSection_1_16.longsRequired(bitsPerBlock)
+                    : bitsPerBlock * 64;
+                long[] blocks = new long[size];
+
+                int[] indices = new int[4096];
+                for (int i = 0; i < indices.length; i++) {
+                    indices[i] = random.nextInt(1 << bitsPerBlock);
+                    encoder.set(blocks, i, bitsPerBlock, indices[i]);
+                }
+
+                char[] all = new char[4096];
+                encoder.getAll(blocks, bitsPerBlock, all);
+                for (int i = 0; i < indices.length; i++) {
+                    assertThat(encoder.get(blocks, i, bitsPerBlock)).as(bitsPerBlock + " bits, " + i).isEqualTo(indices[i]);
+                    assertThat((int) all[i]).as(bitsPerBlock + " bits, " + i).isEqualTo(indices[i]);
+                }
+            }
+
+            // single value palettes do not store any blocks
+            char[] all = new char[4096];
+            Arrays.fill(all, (char) 7);
+            encoder.getAll(new long[0], 0, all);
+            for (char c : all) {
+                assertThat((int) c).isZero();
+            }
+        }
+    }
+
+    @Test
+    public void heightsAndCavesMatchScan() {
+        for (int i = 0; i < 30; i++) {
+            Chunk chunk = new Chunk_1_16(new CoordinateDim2D(i, 0, Dimension.OVERWORLD), DATA_VERSION);
+            int[][] states = new int[16][];
+
+            for (int sectionY = 0; sectionY < 16; sectionY++) {
+                Kind kind = Kind.values()[random.nextInt(Kind.values().length)];
+                if (kind == Kind.ABSENT) {
+                    continue;
+                }
+
+                states[sectionY] = new int[4096];
+                ChunkSection section = createSection(chunk, sectionY, kind, states[sectionY]);
+                chunk.setChunkSection(sectionY, section);
+
+                for (int index = 0; index < 4096; index++) {
+                    int x = index & 15, z = (index >> 4) & 15, y = index >> 8;
+                    assertThat(section.getNumericBlockStateAt(x, y, z)).isEqualTo(states[sectionY][index]);
+                }
+
+                char[] decoded = section.getDecodedStates();
+                for (int index = 0; index < 4096; index++) {
+                    assertThat((int) decoded[index]).isEqualTo(states[sectionY][index]);
+                }
+
+                ChunkSection.Solidity expected = switch (kind) {
+                    case NONE -> ChunkSection.Solidity.NONE;
+                    case ALL -> ChunkSection.Solidity.ALL;
+                    default -> ChunkSection.Solidity.MIXED;
+                };
+                assertThat(section.getSolidity()).isEqualTo(expected);
+            }
+
+            ChunkHeightHandler heights = new ChunkHeightHandler(chunk);
+            for (int x = 0; x < 16; x++) {
+                for (int z = 0; z < 16; z++) {
+                    assertThat(heights.heightAt(x, z)).as(x + ", " + z).isEqualTo(scanHeight(states, x, z));
+                    assertThat(heights.getCaves(x, z)).as(x + ", " + z).isEqualTo(scanCaves(states, x, z));
+                }
+            }
+        }
+    }
+
+    /**
+     * Create a section with random blocks, and write the state of each block to the given array. Sections with a
+     * palette of more than 8 bits store states directly.
+     */
+    private ChunkSection createSection(Chunk chunk, int sectionY, Kind kind, int[] states) {
+        int size = switch (kind) {
+            case DIRECT -> 257 + random.nextInt(200);
+            case MIXED -> 2 + random.nextInt(255);
+            default -> 1 + random.nextInt(256);
+        };
+        int[] paletteStates = new int[size];
+        for (int i = 0; i < size; i++) {
+            boolean isSolid = switch (kind) {
+                case ALL -> true;
+                case NONE -> false;
+                default -> i % 2 == 0;
+            };
+            paletteStates[i] = randomState(isSolid);
+        }
+
+        // air is not solid either, it should not make a difference to the height or caves
+        if (kind == Kind.NONE && random.nextBoolean()) {
+            paletteStates[0] = 0;
+        }
+
+        List<SpecificTag> entries = new ArrayList<>();
+        for (int state : paletteStates) {
+            entries.add(paletteEntry(state));
+        }
+        Palette palette = new Palette(DATA_VERSION, new ListTag(Tag.TAG_COMPOUND, entries));
+        int bitsPerBlock = palette.getBitsPerBlock();
+
+        // sections are sparser at the top, so that there are columns of different heights
+        double fill = 1 - sectionY / 16.0;
+
+        long[] blocks = new long[ChunkSection_1_16.longsRequired(bitsPerBlock)];
+        BlockLocationEncoder encoder = new BlockLocationEncoder_1_16();
+        for (int i = 0; i < states.length; i++) {
+            int index;
+            if (kind == Kind.DIRECT) {
+                index = random.nextDouble() < fill ? randomState(true) : randomState(false);
+                states[i] = index;
+            } else {
+                // odd entries of mixed palettes are not solid
+                index = kind == Kind.MIXED && random.nextDouble() >= fill
+                    ? 1 + 2 * random.nextInt(size / 2)
+                    : random.nextInt(size);
+                states[i] = paletteStates[index];
+            }
+            encoder.set(blocks, i, bitsPerBlock, index);
+        }
+
+        ChunkSection section = chunk.createNewChunkSection((byte) sectionY, palette);
+        section.setBlocks(blocks);
+        return section;
+    }
+
+    private static BlockState stateAt(int[][] states, int x, int y, int z) {
+        int[] section = states[y >> 4];
+        int stateId = section == null ? 0 : section[ChunkSection.getBlockIndex(x, y & 15, z)];
+        return stateId == 0 ? null : registry.getState(stateId);
+    }
+
+    private static boolean isSolid(BlockState state) {
+        return state != null && state.isSolid();
+    }
+
+    /**
+     * Find the highest solid block in a column by looking at every block.
+     */
+    private static int scanHeight(int[][] states, int x, int z) {
+        for (int y = 16 * 16 - 1; y >= 0; y--) {
+            if (isSolid(stateAt(states, x, y, z))) {
+                return y;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Find the caves in a column by looking at every block from the bottom of the world up to the surface. A cave
+     * starts at a non-solid block above any known block, and ends at the next solid block.
+     */
+    private static List<Cave> scanCaves(int[][] states, int x, int z) {
+        int surface = Math.min(60, scanHeight(states, x, z));
+
+        List<Cave> caves = new ArrayList<>();
+        Cave cave = null;
+        BlockState below = null;
+        for (int y = 0; y < surface; y++) {
+            BlockState state = stateAt(states, x, y, z);
+
+            if (cave != null && !isSolid(state)) {
+                cave.addDepth();
+            } else if (cave != null) {
+                cave = null;
+            } else if (!isSolid(state) && below != null) {
+                cave = new Cave(y, below);
+                caves.add(cave);
+            }
+            below = state;
+        }
+        return caves;
+    }
+}
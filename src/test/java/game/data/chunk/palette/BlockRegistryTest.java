@@ -0,0 +1,120 @@
+package game.data.chunk.palette;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import se.llbit.nbt.ByteTag;
+import se.llbit.nbt.CompoundTag;
+import se.llbit.nbt.IntTag;
+import se.llbit.nbt.SpecificTag;
+import se.llbit.nbt.StringTag;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests looking up block states from NBT. The registry report gives boolean and numeric property values, while saved
+ * chunks store all values as strings.
+ */
+class BlockRegistryTest {
+    private static final String REPORT = """
+        {
+            "minecraft:air": { "states": [ { "id": 0 } ] },
+            "minecraft:lever": { "states": [
+                { "id": 10, "properties": { "facing": "north", "powered": true } },
+                { "id": 11, "properties": { "facing": "north", "powered": false } },
+                { "id": 12, "properties": { "facing": "south", "powered": true } },
+                { "id": 13, "properties": { "facing": "south", "powered": false } }
+            ] },
+            "minecraft:redstone_wire": { "states": [
+                { "id": 20, "properties": { "power": 0 } },
+                { "id": 21, "properties": { "power": 1 } },
+                { "id": 35, "properties": { "power": 15 } }
+            ] }
+        }
+        """;
+
+    private BlockRegistry registry;
+
+    @BeforeEach
+    public void beforeEach() {
+        registry = new BlockRegistry(new ByteArrayInputStream(REPORT.getBytes(StandardCharsets.UTF_8)),
+            mock(BlockColors.class));
+    }
+
+    private static SpecificTag block(String name, CompoundTag properties) {
+        CompoundTag tag = new CompoundTag();
+        tag.add("Name", new StringTag(name));
+        if (properties != null) {
+            tag.add("Properties", properties);
+        }
+        return tag;
+    }
+
+    private static CompoundTag lever(SpecificTag facing, SpecificTag powered) {
+        CompoundTag properties = new CompoundTag();
+        properties.add("facing", facing);
+        properties.add("powered", powered);
+        return properties;
+    }
+
+    private static CompoundTag wire(SpecificTag power) {
+        CompoundTag properties = new CompoundTag();
+        properties.add("power", power);
+        return properties;
+    }
+
+    @Test
+    public void statesByNumericId() {
+        assertThat(registry.getState(11).getName()).isEqualTo("minecraft:lever");
+        assertThat(registry.getState(35).getName()).isEqualTo("minecraft:redstone_wire");
+        assertThat(registry.getState(14)).isNull();
+        assertThat(registry.getState(-1)).isNull();
+        assertThat(registry.getState(1000)).isNull();
+    }
+
+    @Test
+    public void blockWithoutProperties() {
+        assertThat(registry.getStateId(block("minecraft:air", null))).isEqualTo(0);
+        assertThat(registry.getStateId(block("minecraft:air", new CompoundTag()))).isEqualTo(0);
+    }
+
+    @Test
+    public void booleanValuesAsStrings() {
+        assertThat(registry.getStateId(block("minecraft:lever", lever(new StringTag("north"), new StringTag("true")))))
+            .isEqualTo(10);
+        assertThat(registry.getStateId(block("minecraft:lever", lever(new StringTag("north"), new StringTag("false")))))
+            .isEqualTo(11);
+        assertThat(registry.getStateId(block("minecraft:lever", lever(new StringTag("south"), new StringTag("true")))))
+            .isEqualTo(12);
+        assertThat(registry.getStateId(block("minecraft:lever", lever(new StringTag("south"), new StringTag("false")))))
+            .isEqualTo(13);
+    }
+
+    @Test
+    public void booleanValuesAsBytes() {
+        assertThat(registry.getStateId(block("minecraft:lever", lever(new StringTag("south"), new ByteTag(1)))))
+            .isEqualTo(12);
+        assertThat(registry.getStateId(block("minecraft:lever", lever(new StringTag("south"), new ByteTag(0)))))
+            .isEqualTo(13);
+    }
+
+    @Test
+    public void numericValues() {
+        assertThat(registry.getStateId(block("minecraft:redstone_wire", wire(new StringTag("0"))))).isEqualTo(20);
+        assertThat(registry.getStateId(block("minecraft:redstone_wire", wire(new StringTag("15"))))).isEqualTo(35);
+        assertThat(registry.getStateId(block("minecraft:redstone_wire", wire(new IntTag(1))))).isEqualTo(21);
+        assertThat(registry.getStateId(block("minecraft:redstone_wire", wire(new IntTag(15))))).isEqualTo(35);
+    }
+
+    @Test
+    public void unknownStates() {
+        assertThat(registry.getState(block("minecraft:stone", null))).isNull();
+        assertThat(registry.getState(block("minecraft:redstone_wire", wire(new StringTag("7"))))).isNull();
+        assertThat(registry.getState(block("minecraft:redstone_wire", null))).isNull();
+        assertThat(registry.getState(block("minecraft:lever", wire(new StringTag("1"))))).isNull();
+        assertThat(registry.getStateId(block("minecraft:lever", lever(new StringTag("east"), new StringTag("true")))))
+            .isEqualTo(0);
+    }
+}
@@ -0,0 +1,86 @@
+package game.data.chunk.palette;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests that blending and shading colours with fixed-point numbers stays within 2/255 per channel of doing the same
+ * with doubles, for the ratios and shaders used when drawing the map.
+ */
+class SimpleColorTest {
+    private static final int MAX_ERROR = 2;
+
+    private final Random random = new Random(0);
+
+    private int randomColor() {
+        return SimpleColor.fromRGB(random.nextInt());
+    }
+
+    /**
+     * Compute a channel as a double and round it once at the end, as colours were computed before.
+     */
+    private static int reference(double v) {
+        return (int) Math.round(Math.max(Math.min(255, v), 0));
+    }
+
+    private static void assertClose(int actual, int r, int g, int b) {
+        assertThat(Math.abs(SimpleColor.red(actual) - r)).isLessThanOrEqualTo(MAX_ERROR);
+        assertThat(Math.abs(SimpleColor.green(actual) - g)).isLessThanOrEqualTo(MAX_ERROR);
+        assertThat(Math.abs(SimpleColor.blue(actual) - b)).isLessThanOrEqualTo(MAX_ERROR);
+    }
+
+    @Test
+    public void blendIsCloseToDoubles() {
+        for (int i = 0; i < 100_000; i++) {
+            int color = randomColor();
+            int other = randomColor();
+            double ratio = random.nextDouble();
+
+            int blended = SimpleColor.blend(color, other, ratio);
+            assertClose(blended,
+                reference(SimpleColor.red(color) * ratio + SimpleColor.red(other) * (1 - ratio)),
+                reference(SimpleColor.green(color) * ratio + SimpleColor.green(other) * (1 - ratio)),
+                reference(SimpleColor.blue(color) * ratio + SimpleColor.blue(other) * (1 - ratio))
+            );
+        }
+    }
+
+    /**
+     * Shaders range from 0.6 for slopes facing away from the light, to 1.6 for slopes facing it.
+     */
+    @Test
+    public void multiplyIsCloseToDoubles() {
+        for (int i = 0; i < 100_000; i++) {
+            int color = randomColor();
+            double shader = 0.6 + random.nextDouble();
+
+            int shaded = SimpleColor.multiply(color, shader);
+            assertClose(shaded,
+                reference(SimpleColor.red(color) * shader),
+                reference(SimpleColor.green(color) * shader),
+                reference(SimpleColor.blue(color) * shader)
+            );
+        }
+    }
+
+    @Test
+    public void exactRatiosKeepColours() {
+        for (int i = 0; i < 1000; i++) {
+            int color = randomColor();
+            int other = randomColor();
+
+            assertThat(SimpleColor.blend(color, other, 1)).isEqualTo(color);
+            assertThat(SimpleColor.blend(color, other, 0)).isEqualTo(other);
+            assertThat(SimpleColor.multiply(color, 1)).isEqualTo(color);
+        }
+    }
+
+    @Test
+    public void unknownColoursBecomeOpaque() {
+        assertThat(SimpleColor.blend(SimpleColor.NONE, SimpleColor.NONE, .5)).isEqualTo(SimpleColor.BLACK);
+        assertThat(SimpleColor.multiply(SimpleColor.NONE, 1.2)).isEqualTo(SimpleColor.BLACK);
+        assertThat(SimpleColor.isKnown(SimpleColor.multiply(SimpleColor.NONE, 1.2))).isTrue();
+    }
+}
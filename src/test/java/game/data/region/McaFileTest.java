@@ -0,0 +1,78 @@
+package game.data.region;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import game.data.chunk.ChunkBinary;
+import game.data.coordinates.Coordinate2D;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class McaFileTest {
+    @TempDir
+    Path dir;
+
+    private static int pos(int x, int z) {
+        return 4 * (x + z * 32);
+    }
+
+    private static ChunkBinary binary(int sectors, int value) {
+        byte[] data = new byte[sectors * McaFile.SECTOR_SIZE - 100];
+        Arrays.fill(data, (byte) value);
+        return new ChunkBinary(value, -1, sectors, data);
+    }
+
+    private static void assertChunk(McaFile file, int x, int z, int sectors, int value) {
+        ChunkBinary chunk = file.getChunkBinary(new Coordinate2D(x, z));
+
+        assertThat(chunk).isNotNull();
+        assertThat(chunk.getSize()).isEqualTo(sectors);
+        assertThat(chunk.getTimestamp()).isEqualTo(value);
+        assertThat(Arrays.copyOf(chunk.getChunkData(), sectors * McaFile.SECTOR_SIZE - 100))
+            .isEqualTo(binary(sectors, value).getChunkData());
+    }
+
+    @Test
+    public void incrementalWrite() throws IOException {
+        File file = dir.resolve("r.0.0.mca").toFile();
+        assertThat(file.createNewFile()).isTrue();
+
+        McaFile mca = new McaFile(file);
+        Map<Integer, ChunkBinary> chunks = new HashMap<>();
+        chunks.put(pos(0, 0), binary(1, 1));
+        chunks.put(pos(1, 0), binary(2, 2));
+        chunks.put(pos(2, 0), binary(1, 3));
+        mca.addChunks(chunks);
+        mca.write();
+
+        int unchangedLocation = new McaFile(file).getChunkBinary(new Coordinate2D(1, 0)).getLocation();
+
+        // grow one chunk and replace another, the third chunk should not move
+        Map<Integer, ChunkBinary> changed = new HashMap<>();
+        changed.put(pos(0, 0), binary(3, 4));
+        changed.put(pos(2, 0), binary(1, 5));
+        mca.addChunks(changed);
+        mca.write();
+
+        McaFile reread = new McaFile(file);
+        assertThat(reread.countChunks()).isEqualTo(3);
+        assertChunk(reread, 0, 0, 3, 4);
+        assertChunk(reread, 1, 0, 2, 2);
+        assertChunk(reread, 2, 0, 1, 5);
+        assertThat(reread.getChunkBinary(new Coordinate2D(1, 0)).getLocation()).isEqualTo(unchangedLocation);
+
+        // new chunks can be added to a file that was read from disk
+        reread.addChunks(Map.of(pos(5, 5), binary(1, 6)));
+        reread.write();
+
+        McaFile last = new McaFile(file);
+        assertThat(last.countChunks()).isEqualTo(4);
+        assertChunk(last, 5, 5, 1, 6);
+        assertChunk(last, 0, 0, 3, 4);
+    }
+}
@@ -0,0 +1,124 @@
+package gui.images;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import game.data.chunk.Chunk;
+import game.data.coordinates.Coordinate2D;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RegionPixelsTest {
+    private static final int CHUNK = Chunk.SECTION_WIDTH;
+    private static final Coordinate2D REGION = new Coordinate2D(-2, 3);
+
+    @TempDir
+    Path dir;
+
+    /**
+     * A chunk image where every pixel is different, so that pixels ending up in the wrong place are noticed.
+     */
+    private static int[] chunkImage(int seed) {
+        int[] image = new int[CHUNK * CHUNK];
+        for (int i = 0; i < image.length; i++) {
+            image[i] = 0xFF000000 | seed << 16 | i;
+        }
+        return image;
+    }
+
+    private int[] readSaved() throws IOException {
+        return RegionPixels.read(RegionPixels.getFile(dir, RegionPixels.NORMAL_PREFIX, REGION), RegionPixels.SIZE);
+    }
+
+    private static void assertChunkAt(int[] pixels, int chunkX, int chunkZ, int[] image) {
+        for (int z = 0; z < CHUNK; z++) {
+            for (int x = 0; x < CHUNK; x++) {
+                int pixel = pixels[(chunkZ * CHUNK + z) * RegionPixels.SIZE + chunkX * CHUNK + x];
+                assertThat(pixel).as(x + ", " + z).isEqualTo(image[z * CHUNK + x]);
+            }
+        }
+    }
+
+    private static long countDrawn(int[] pixels) {
+        return Arrays.stream(pixels).filter(pixel -> pixel != 0).count();
+    }
+
+    @Test
+    public void chunksAreDrawnAtTheirOffset() throws IOException {
+        int[] first = chunkImage(1);
+        int[] last = chunkImage(2);
+
+        RegionPixels pixels = RegionPixels.load(dir, REGION);
+        pixels.drawChunk(new Coordinate2D(3, 5), first);
+        pixels.drawChunk(new Coordinate2D(31, 31), last);
+        pixels.save(dir, REGION);
+
+        int[] saved = readSaved();
+        assertChunkAt(saved, 3, 5, first);
+        assertChunkAt(saved, 31, 31, last);
+        assertThat(countDrawn(saved)).isEqualTo(2L * CHUNK * CHUNK);
+    }
+
+    @Test
+    public void loadedRegionKeepsEarlierChunks() throws IOException {
+        int[] first = chunkImage(1);
+        int[] second = chunkImage(2);
+
+        RegionPixels pixels = RegionPixels.load(dir, REGION);
+        pixels.drawChunk(new Coordinate2D(0, 0), first);
+        pixels.save(dir, REGION);
+
+        pixels = RegionPixels.load(dir, REGION);
+        pixels.drawChunk(new Coordinate2D(0, 1), second);
+        pixels.save(dir, REGION);
+
+        int[] saved = readSaved();
+        assertChunkAt(saved, 0, 0, first);
+        assertChunkAt(saved, 0, 1, second);
+        assertThat(countDrawn(saved)).isEqualTo(2L * CHUNK * CHUNK);
+    }
+
+    @Test
+    public void downsampleWritesAtTargetOffset() {
+        int size = 4;
+        int[] source = new int[size * size];
+        for (int z = 0; z < size; z++) {
+            for (int x = 0; x < size; x++) {
+                // each 2x2 block has a single colour
+                source[z * size + x] = 0xFF000000 | (z / 2) << 8 | (x / 2);
+            }
+        }
+
+        int width = 8;
+        int[] target = new int[width * width];
+        Arrays.fill(target, 7);
+        RegionPixels.downsample(source, size, target, width, 5, 3, 2);
+
+        for (int z = 0; z < width; z++) {
+            for (int x = 0; x < width; x++) {
+                boolean inside = x >= 5 && x < 7 && z >= 3 && z < 5;
+                int expected = inside ? 0xFF000000 | (z - 3) << 8 | (x - 5) : 7;
+                assertThat(target[z * width + x]).as(x + ", " + z).isEqualTo(expected);
+            }
+        }
+    }
+
+    @Test
+    public void transparentPixelsDoNotDarkenEdges() {
+        int[] target = new int[1];
+
+        // half of the block was drawn
+        RegionPixels.downsample(new int[] { 0xFFFF8000, 0, 0xFFFF8000, 0 }, 2, target, 1, 0, 0, 1);
+        assertThat(target[0]).isEqualTo(0x80FF8000);
+
+        // colours are weighted by how opaque they are
+        RegionPixels.downsample(new int[] { 0xFFFFFFFF, 0x55000000, 0, 0 }, 2, target, 1, 0, 0, 1);
+        assertThat(target[0] >>> 24).isEqualTo((255 + 85 + 2) / 4);
+        assertThat(target[0] & 0xFF).isEqualTo(191);
+
+        RegionPixels.downsample(new int[4], 2, target, 1, 0, 0, 1);
+        assertThat(target[0]).isZero();
+    }
+}
@@ -0,0 +1,184 @@
+package packets;
+
+import config.Config;
+import config.Version;
+import game.data.WorldManager;
+import game.protocol.Protocol;
+import game.protocol.ProtocolVersionHandler;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import packets.builder.PacketBuilder;
+import packets.handler.PacketHandler;
+import packets.handler.PacketOperator;
+import proxy.CompressionManager;
+import proxy.ConnectionManager;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests reading the ID of compressed packets without inflating them fully, and that compressed packets without an
+ * operator are forwarded as they were received.
+ */
+class CompressedFrameTest {
+    private static final int THRESHOLD = 256;
+
+    private final Random random = new Random(0);
+
+    private CompressionManager compressionManager;
+    private Protocol protocol;
+    private List<byte[]> handled;
+    private ByteArrayOutputStream transmitted;
+    private DataReader reader;
+
+    @BeforeEach
+    public void beforeEach() {
+        WorldManager.setInstance(mock(WorldManager.class));
+        Config.setInstance(new Config());
+        Config.setProtocolVersion(Version.V1_16.protocolVersion);
+
+        compressionManager = new CompressionManager();
+        compressionManager.enableCompression(THRESHOLD);
+
+        protocol = ProtocolVersionHandler.getInstance().getProtocolByProtocolVersion(Version.V1_16.protocolVersion);
+        ConnectionManager connectionManager = mock(ConnectionManager.class);
+        when(connectionManager.getProtocol()).thenReturn(protocol);
+        when(connectionManager.getCompressionManager()).thenReturn(compressionManager);
+
+        handled = new ArrayList<>();
+        Map<String, PacketOperator> operators = Map.of("BlockUpdate", provider -> {
+            handled.add(provider.readByteArray(provider.remaining()));
+            return true;
+        });
+
+        transmitted = new ByteArrayOutputStream();
+        reader = new DataReader("Test Parser", () -> false, (bytes, offset, length) -> { },
+            transmitted::write, () -> { });
+        reader.setPacketHandler(new PacketHandler(connectionManager) {
+            @Override
+            public Map<String, PacketOperator> getOperators() {
+                return operators;
+            }
+
+            @Override
+            public boolean isClientBound() {
+                return true;
+            }
+        });
+    }
+
+    private byte[] payload(int size) {
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i += 2) {
+            payload[i] = (byte) random.nextInt();
+        }
+        return payload;
+    }
+
+    private PacketBuilder packet(int packetId, byte[] payload) {
+        PacketBuilder builder = new PacketBuilder(packetId);
+        builder.writeByteArray(payload);
+        return builder;
+    }
+
+    /**
+     * Get a view of the built packet without its length, as the packet handler gets it.
+     */
+    private ByteBuffer frame(PacketBuilder builder) {
+        ByteBuffer frame = ByteBuffer.wrap(builder.build(compressionManager).toArray());
+        DataReader.readVarInt(frame);
+        return frame;
+    }
+
+    @Test
+    public void peekStartOfCompressedData() {
+        byte[] data = payload(5000);
+        byte[] compressed = CompressionManager.zlibCompress(data);
+
+        byte[] start = new byte[5];
+        assertThat(CompressionManager.zlibPeek(compressed, 0, compressed.length, start)).isEqualTo(5);
+        assertThat(start).isEqualTo(Arrays.copyOf(data, 5));
+
+        // output larger than the data
+        byte[] all = new byte[data.length + 10];
+        assertThat(CompressionManager.zlibPeek(compressed, 0, compressed.length, all)).isEqualTo(data.length);
+        assertThat(Arrays.copyOf(all, data.length)).isEqualTo(data);
+    }
+
+    @Test
+    public void peekTruncatedOrInvalidData() {
+        byte[] data = payload(5000);
+        byte[] compressed = CompressionManager.zlibCompress(data);
+
+        byte[] output = new byte[data.length];
+        int peeked = CompressionManager.zlibPeek(compressed, 0, 20, output);
+        assertThat(peeked).isLessThan(data.length);
+        assertThat(Arrays.copyOf(output, peeked)).isEqualTo(Arrays.copyOf(data, peeked));
+
+        byte[] invalid = new byte[100];
+        Arrays.fill(invalid, (byte) 0xFF);
+        assertThat(CompressionManager.zlibPeek(invalid, 0, invalid.length, output)).isZero();
+    }
+
+    @Test
+    public void peekPacketIdBelowAndAboveThreshold() {
+        DataProvider provider = new DataProvider();
+        provider.setCompressionManager(compressionManager);
+
+        // the largest ID takes two bytes
+        int[] packetIds = { 0, 0x21, 127, 200 };
+        int[] sizes = { 0, 100, THRESHOLD, 5000 };
+        for (int packetId : packetIds) {
+            for (int size : sizes) {
+                ByteBuffer frame = frame(packet(packetId, payload(size)));
+                int position = frame.position();
+
+                assertThat(provider.peekPacketId(frame)).isEqualTo(packetId);
+                assertThat(frame.position()).isEqualTo(position);
+            }
+        }
+    }
+
+    @Test
+    public void compressedPacketsAreForwardedUnchanged() throws IOException {
+        PacketBuilder small = packet(protocol.clientBound("SetEntityData"), payload(100));
+        PacketBuilder large = packet(protocol.clientBound("SetEntityData"), payload(5000));
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.writeBytes(small.build(compressionManager).toArray());
+        stream.writeBytes(large.build(compressionManager).toArray());
+
+        byte[] received = stream.toByteArray();
+        reader.pushData(received, received.length);
+
+        assertThat(handled).isEmpty();
+        assertThat(transmitted.toByteArray()).isEqualTo(received);
+    }
+
+    @Test
+    public void compressedPacketsAreHandled() throws IOException {
+        byte[] smallPayload = payload(100);
+        byte[] largePayload = payload(5000);
+        PacketBuilder small = packet(protocol.clientBound("BlockUpdate"), smallPayload);
+        PacketBuilder large = packet(protocol.clientBound("BlockUpdate"), largePayload);
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.writeBytes(small.build(compressionManager).toArray());
+        stream.writeBytes(large.build(compressionManager).toArray());
+
+        byte[] received = stream.toByteArray();
+        reader.pushData(received, received.length);
+
+        assertThat(handled).containsExactly(smallPayload, largePayload);
+        assertThat(transmitted.toByteArray()).isEqualTo(received);
+    }
+}
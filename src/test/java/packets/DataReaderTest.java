@@ -0,0 +1,196 @@
+package packets;
+
+import config.Version;
+import game.protocol.Protocol;
+import game.protocol.ProtocolVersionHandler;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import packets.builder.PacketBuilder;
+import packets.handler.PacketHandler;
+import packets.handler.PacketOperator;
+import packets.lib.ByteQueue;
+import proxy.ByteTransformer;
+import proxy.CompressionManager;
+import proxy.ConnectionManager;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests that the reader frames packets correctly no matter how the received data is split up, by checking that every
+ * packet is forwarded exactly as it was received.
+ */
+class DataReaderTest {
+    private final Random random = new Random(0);
+
+    private ByteArrayOutputStream transmitted;
+    private int transmitCount;
+
+    @BeforeEach
+    public void beforeEach() {
+        transmitted = new ByteArrayOutputStream();
+        transmitCount = 0;
+    }
+
+    /**
+     * Get a reader that forwards all packets, optionally decrypting the data it receives.
+     */
+    private DataReader reader(ByteTransformer decrypt) {
+        Protocol protocol = ProtocolVersionHandler.getInstance().getProtocolByProtocolVersion(Version.V1_16.protocolVersion);
+        ConnectionManager connectionManager = mock(ConnectionManager.class);
+        when(connectionManager.getProtocol()).thenReturn(protocol);
+        when(connectionManager.getCompressionManager()).thenReturn(new CompressionManager());
+
+        DataReader reader = new DataReader("Test Parser", () -> decrypt != null, decrypt, (bytes, offset, length) -> {
+            transmitted.write(bytes, offset, length);
+            transmitCount++;
+        }, () -> { });
+
+        reader.setPacketHandler(new PacketHandler(connectionManager) {
+            @Override
+            public Map<String, PacketOperator> getOperators() {
+                return Map.of();
+            }
+
+            @Override
+            public boolean isClientBound() {
+                return true;
+            }
+        });
+        return reader;
+    }
+
+    private byte[] packet(int packetId, int payloadSize) {
+        byte[] payload = new byte[payloadSize];
+        random.nextBytes(payload);
+
+        PacketBuilder builder = new PacketBuilder(packetId);
+        builder.writeByteArray(payload);
+
+        ByteQueue built = builder.build();
+        byte[] packet = new byte[built.size()];
+        built.copyTo(packet);
+        return packet;
+    }
+
+    /**
+     * Build a stream of packets. The sizes are chosen so that the packet length takes one, two and three bytes.
+     */
+    private byte[] stream(int... payloadSizes) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < payloadSizes.length; i++) {
+            stream.writeBytes(packet(0x10 + i, payloadSizes[i]));
+        }
+        return stream.toByteArray();
+    }
+
+    private static void push(DataReader reader, byte[] data, int from, int to) throws IOException {
+        byte[] part = Arrays.copyOfRange(data, from, to);
+        reader.pushData(part, part.length);
+    }
+
+    @Test
+    public void packetsSplitAtEveryByte() throws IOException {
+        byte[] stream = stream(0, 126, 127, 300, 5);
+
+        for (int split = 0; split <= stream.length; split++) {
+            beforeEach();
+
+            DataReader reader = reader(null);
+            push(reader, stream, 0, split);
+            push(reader, stream, split, stream.length);
+
+            assertThat(transmitted.toByteArray()).isEqualTo(stream);
+            assertThat(transmitCount).isEqualTo(5);
+        }
+    }
+
+    @Test
+    public void packetsReceivedOneByteAtATime() throws IOException {
+        byte[] stream = stream(0, 200, 20000, 3);
+
+        DataReader reader = reader(null);
+        for (int i = 0; i < stream.length; i++) {
+            push(reader, stream, i, i + 1);
+        }
+
+        assertThat(transmitted.toByteArray()).isEqualTo(stream);
+        assertThat(transmitCount).isEqualTo(4);
+    }
+
+    @Test
+    public void packetLargerThanBuffer() throws IOException {
+        byte[] stream = stream(10, 300_000, 10);
+
+        DataReader reader = reader(null);
+        for (int i = 0; i < stream.length; i += 4096) {
+            push(reader, stream, i, Math.min(stream.length, i + 4096));
+        }
+
+        assertThat(transmitted.toByteArray()).isEqualTo(stream);
+        assertThat(transmitCount).isEqualTo(3);
+    }
+
+    /**
+     * Pushes more data than the initial buffer holds, in pieces that do not line up with the packets, so that the
+     * unread bytes of partial packets are moved to the start of the buffer.
+     */
+    @Test
+    public void bufferIsCompacted() throws IOException {
+        int[] sizes = new int[300];
+        Arrays.fill(sizes, 1000);
+        byte[] stream = stream(sizes);
+
+        DataReader reader = reader(null);
+        for (int i = 0; i < stream.length; i += 3001) {
+            push(reader, stream, i, Math.min(stream.length, i + 3001));
+        }
+
+        assertThat(transmitted.toByteArray()).isEqualTo(stream);
+        assertThat(transmitCount).isEqualTo(sizes.length);
+    }
+
+    @Test
+    public void encryptedPacketsAreDecryptedInPlace() throws Exception {
+        byte[] stream = stream(0, 126, 127, 300, 5);
+
+        for (int split = 0; split <= stream.length; split++) {
+            beforeEach();
+
+            byte[] encrypted = cipher(Cipher.ENCRYPT_MODE).update(stream);
+            Cipher decryptor = cipher(Cipher.DECRYPT_MODE);
+
+            DataReader reader = reader((bytes, offset, length) -> {
+                try {
+                    decryptor.update(bytes, offset, length, bytes, offset);
+                } catch (ShortBufferException ex) {
+                    throw new RuntimeException(ex);
+                }
+            });
+            push(reader, encrypted, 0, split);
+            push(reader, encrypted, split, encrypted.length);
+
+            assertThat(transmitted.toByteArray()).isEqualTo(stream);
+            assertThat(transmitCount).isEqualTo(5);
+        }
+    }
+
+    private static Cipher cipher(int mode) throws Exception {
+        byte[] key = new byte[16];
+        new Random(1).nextBytes(key);
+
+        Cipher cipher = Cipher.getInstance("AES/CFB8/NoPadding");
+        cipher.init(mode, new SecretKeySpec(key, "AES"), new IvParameterSpec(key));
+        return cipher;
+    }
+}
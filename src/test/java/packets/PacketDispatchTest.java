@@ -0,0 +1,118 @@
+package packets;
+
+import config.Config;
+import config.Version;
+import game.data.WorldManager;
+import game.protocol.Protocol;
+import game.protocol.ProtocolVersionHandler;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import packets.builder.PacketBuilder;
+import packets.handler.PacketHandler;
+import packets.handler.PacketOperator;
+import proxy.CompressionManager;
+import proxy.ConnectionManager;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests that packets are handled by the operator registered for their name in the connection's protocol, and that
+ * packets without an operator are forwarded without being handled.
+ */
+class PacketDispatchTest {
+    private Protocol protocol;
+    private DataReader reader;
+    private List<String> handled;
+    private ByteArrayOutputStream transmitted;
+
+    @BeforeEach
+    public void beforeEach() {
+        WorldManager.setInstance(mock(WorldManager.class));
+        Config.setInstance(new Config());
+        Config.setProtocolVersion(Version.V1_16.protocolVersion);
+
+        protocol = ProtocolVersionHandler.getInstance().getProtocolByProtocolVersion(Version.V1_16.protocolVersion);
+        ConnectionManager connectionManager = mock(ConnectionManager.class);
+        when(connectionManager.getProtocol()).thenReturn(protocol);
+        when(connectionManager.getCompressionManager()).thenReturn(new CompressionManager());
+
+        handled = new ArrayList<>();
+        Map<String, PacketOperator> operators = new HashMap<>();
+        operators.put("ForgetLevelChunk", provider -> {
+            handled.add("ForgetLevelChunk " + provider.readInt() + " " + provider.readInt());
+            return true;
+        });
+        operators.put("BlockUpdate", provider -> {
+            handled.add("BlockUpdate");
+            return false;
+        });
+
+        transmitted = new ByteArrayOutputStream();
+        reader = new DataReader("Test Parser", () -> false, (bytes, offset, length) -> { },
+            transmitted::write, () -> { });
+        reader.setPacketHandler(new PacketHandler(connectionManager) {
+            @Override
+            public Map<String, PacketOperator> getOperators() {
+                return operators;
+            }
+
+            @Override
+            public boolean isClientBound() {
+                return true;
+            }
+        });
+    }
+
+    private void push(PacketBuilder builder) throws IOException {
+        byte[] packet = builder.build().toArray();
+        reader.pushData(packet, packet.length);
+    }
+
+    @Test
+    public void operatorHandlesItsPacket() throws IOException {
+        PacketBuilder builder = new PacketBuilder(protocol.clientBound("ForgetLevelChunk"));
+        builder.writeInt(3);
+        builder.writeInt(-4);
+        push(builder);
+
+        assertThat(handled).containsExactly("ForgetLevelChunk 3 -4");
+        assertThat(transmitted.toByteArray()).isEqualTo(builder.build().toArray());
+    }
+
+    @Test
+    public void operatorCanDropPacket() throws IOException {
+        PacketBuilder builder = new PacketBuilder(protocol.clientBound("BlockUpdate"));
+        builder.writeLong(0);
+        push(builder);
+
+        assertThat(handled).containsExactly("BlockUpdate");
+        assertThat(transmitted.toByteArray()).isEmpty();
+    }
+
+    @Test
+    public void packetWithoutOperatorIsForwarded() throws IOException {
+        PacketBuilder known = new PacketBuilder(protocol.clientBound("SetEntityData"));
+        known.writeVarInt(1);
+        push(known);
+
+        // IDs outside of the table are looked up by name
+        PacketBuilder unknown = new PacketBuilder(300);
+        unknown.writeVarInt(1);
+        push(unknown);
+
+        assertThat(handled).isEmpty();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.writeBytes(known.build().toArray());
+        expected.writeBytes(unknown.build().toArray());
+        assertThat(transmitted.toByteArray()).isEqualTo(expected.toByteArray());
+    }
+}
@@ -0,0 +1,103 @@
+package packets;
+
+import config.Config;
+import config.Version;
+import game.data.WorldManager;
+import game.data.coordinates.CoordinateDim2D;
+import game.data.dimension.Dimension;
+import game.protocol.Protocol;
+import game.protocol.ProtocolVersionHandler;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import packets.builder.PacketBuilder;
+import packets.handler.ClientBoundGamePacketHandler;
+import packets.lib.ByteQueue;
+import proxy.CompressionManager;
+import proxy.ConnectionManager;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class SplicePointTest {
+    private WorldManager worldManager;
+    private Protocol protocol;
+    private DataReader reader;
+    private List<byte[]> transmitted;
+
+    @BeforeEach
+    public void beforeEach() {
+        worldManager = mock(WorldManager.class);
+        when(worldManager.getDimension()).thenReturn(Dimension.OVERWORLD);
+        WorldManager.setInstance(worldManager);
+
+        Config.setInstance(new Config());
+        Config.setProtocolVersion(Version.V1_16.protocolVersion);
+
+        protocol = ProtocolVersionHandler.getInstance().getProtocolByProtocolVersion(Version.V1_16.protocolVersion);
+        ConnectionManager connectionManager = mock(ConnectionManager.class);
+        when(connectionManager.getProtocol()).thenReturn(protocol);
+        when(connectionManager.ownsWorld()).thenReturn(true);
+        when(connectionManager.getCompressionManager()).thenReturn(new CompressionManager());
+
+        transmitted = new ArrayList<>();
+        reader = new DataReader("Test Parser", () -> false, (bytes, offset, length) -> { },
+            (bytes, offset, length) -> {
+                byte[] copy = new byte[length];
+                System.arraycopy(bytes, offset, copy, 0, length);
+                transmitted.add(copy);
+            }, () -> { });
+        reader.setPacketHandler(new ClientBoundGamePacketHandler(connectionManager));
+    }
+
+    private byte[] forgetChunk(int x, int z) {
+        PacketBuilder builder = new PacketBuilder(protocol.clientBound("ForgetLevelChunk"));
+        builder.writeInt(x);
+        builder.writeInt(z);
+
+        ByteQueue built = builder.build();
+        byte[] packet = new byte[built.size()];
+        built.copyTo(packet);
+        return packet;
+    }
+
+    @Test
+    public void forgetChunkIsDroppedWhenItCannotBeForgotten() throws IOException {
+        when(worldManager.canForget(any(CoordinateDim2D.class))).thenReturn(false);
+
+        byte[] packet = forgetChunk(3, 4);
+        reader.pushData(packet, packet.length);
+
+        assertThat(transmitted).isEmpty();
+    }
+
+    @Test
+    public void forgetChunkIsForwardedWhenItCanBeForgotten() throws IOException {
+        when(worldManager.canForget(any(CoordinateDim2D.class))).thenReturn(true);
+
+        byte[] packet = forgetChunk(3, 4);
+        reader.pushData(packet, packet.length);
+
+        assertThat(transmitted).containsExactly(packet);
+    }
+
+    @Test
+    public void onlyDroppedPacketIsRemovedFromStream() throws IOException {
+        when(worldManager.canForget(new CoordinateDim2D(1, 1, Dimension.OVERWORLD))).thenReturn(true);
+        when(worldManager.canForget(new CoordinateDim2D(2, 2, Dimension.OVERWORLD))).thenReturn(false);
+
+        byte[] first = forgetChunk(1, 1);
+        byte[] second = forgetChunk(2, 2);
+        byte[] both = new byte[first.length + second.length];
+        System.arraycopy(first, 0, both, 0, first.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+
+        reader.pushData(both, both.length);
+
+        assertThat(transmitted).containsExactly(first);
+    }
+}
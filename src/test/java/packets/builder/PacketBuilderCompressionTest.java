@@ -0,0 +1,148 @@
+package packets.builder;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import packets.DataReader;
+import packets.lib.ByteQueue;
+import proxy.CompressionManager;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests that built packets have the right length prefixes, both without compression and when compression is enabled
+ * for packets above and below the threshold.
+ */
+class PacketBuilderCompressionTest {
+    private static final int THRESHOLD = 256;
+
+    private final Random random = new Random(0);
+    private CompressionManager compressionManager;
+
+    @BeforeEach
+    public void beforeEach() {
+        compressionManager = new CompressionManager();
+        compressionManager.enableCompression(THRESHOLD);
+    }
+
+    private PacketBuilder packet(int payloadSize) {
+        byte[] payload = new byte[payloadSize];
+
+        // half random so that the packet does compress, but not to almost nothing
+        for (int i = 0; i < payloadSize; i += 2) {
+            payload[i] = (byte) random.nextInt();
+        }
+
+        PacketBuilder builder = new PacketBuilder(0x20);
+        builder.writeByteArray(payload);
+        return builder;
+    }
+
+    /**
+     * Read a packet as built with compression enabled, and return its uncompressed contents.
+     */
+    private static byte[] readCompressed(byte[] built) {
+        ByteBuffer frame = ByteBuffer.wrap(built);
+        assertThat(DataReader.readVarInt(frame)).isEqualTo(frame.remaining());
+
+        int uncompressedSize = DataReader.readVarInt(frame);
+        if (uncompressedSize == 0) {
+            return Arrays.copyOfRange(built, frame.position(), built.length);
+        }
+
+        byte[] contents = CompressionManager.zlibDecompress(built, frame.position(), frame.remaining(), uncompressedSize);
+        assertThat(contents).hasSize(uncompressedSize);
+        return contents;
+    }
+
+    @Test
+    public void uncompressedWhenDisabled() {
+        PacketBuilder builder = packet(1000);
+
+        byte[] built = builder.build(new CompressionManager()).toArray();
+        ByteBuffer frame = ByteBuffer.wrap(built);
+
+        assertThat(DataReader.readVarInt(frame)).isEqualTo(frame.remaining());
+        assertThat(Arrays.copyOfRange(built, frame.position(), built.length)).isEqualTo(builder.toArray());
+        assertThat(built).isEqualTo(builder.build().toArray());
+    }
+
+    @Test
+    public void belowThresholdIsNotCompressed() {
+        PacketBuilder builder = packet(100);
+
+        byte[] built = builder.build(compressionManager).toArray();
+        ByteBuffer frame = ByteBuffer.wrap(built);
+
+        assertThat(DataReader.readVarInt(frame)).isEqualTo(frame.remaining());
+        assertThat(DataReader.readVarInt(frame)).isEqualTo(0);
+        assertThat(readCompressed(built)).isEqualTo(builder.toArray());
+    }
+
+    @Test
+    public void aboveThresholdIsCompressed() {
+        PacketBuilder builder = packet(5000);
+
+        byte[] built = builder.build(compressionManager).toArray();
+
+        assertThat(built.length).isLessThan(builder.toArray().length);
+        assertThat(readCompressed(built)).isEqualTo(builder.toArray());
+    }
+
+    /**
+     * Packet sizes around the points where the length prefixes need another byte, as the room left in front of the
+     * packet depends on those sizes.
+     */
+    @Test
+    public void prefixSizes() {
+        int[] sizes = { 0, 125, 126, 127, 254, 255, 256, 16381, 16382, 16383, 16384, 2097150, 2097151 };
+
+        for (int size : sizes) {
+            PacketBuilder builder = packet(size);
+            byte[] expected = builder.toArray();
+
+            assertThat(readCompressed(builder.build(compressionManager).toArray())).isEqualTo(expected);
+
+            ByteBuffer frame = ByteBuffer.wrap(builder.build().toArray());
+            assertThat(DataReader.readVarInt(frame)).isEqualTo(expected.length);
+            assertThat(frame.remaining()).isEqualTo(expected.length);
+        }
+    }
+
+    /**
+     * Building writes the prefixes in front of the packet contents, which should not affect later builds.
+     */
+    @Test
+    public void buildingTwice() {
+        PacketBuilder builder = packet(100);
+
+        byte[] uncompressed = builder.build().toArray();
+        byte[] withPrefix = builder.build(compressionManager).toArray();
+
+        assertThat(builder.build().toArray()).isEqualTo(uncompressed);
+        assertThat(builder.build(compressionManager).toArray()).isEqualTo(withPrefix);
+
+        builder.writeVarInt(5);
+        assertThat(readCompressed(builder.build(compressionManager).toArray())).isEqualTo(builder.toArray());
+    }
+
+    /**
+     * A built packet is a view of the builder's buffer, so it should not change when the builder is built again or
+     * written to before it is sent.
+     */
+    @Test
+    public void builtPacketIsNotChangedLater() {
+        PacketBuilder builder = packet(100);
+
+        ByteQueue first = builder.build();
+        byte[] expected = first.toArray();
+
+        builder.build(compressionManager);
+        builder.writeVarInt(5);
+        builder.build();
+
+        assertThat(first.toArray()).isEqualTo(expected);
+    }
+}
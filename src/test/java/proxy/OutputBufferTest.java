@@ -0,0 +1,134 @@
+package proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class OutputBufferTest {
+    private final Random random = new Random(0);
+
+    private CountingStream stream;
+    private OutputBuffer buffer;
+
+    @BeforeEach
+    public void beforeEach() {
+        stream = new CountingStream();
+        buffer = new OutputBuffer();
+        buffer.setStream(stream);
+    }
+
+    private byte[] bytes(int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void writesAreCoalesced() throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 3; i++) {
+            byte[] packet = bytes(100);
+            buffer.write(packet, 0, packet.length);
+            expected.writeBytes(packet);
+        }
+        assertThat(stream.writes).isZero();
+
+        buffer.flush();
+        assertThat(stream.writes).isEqualTo(1);
+        assertThat(stream.toByteArray()).isEqualTo(expected.toByteArray());
+    }
+
+    @Test
+    public void onlyGivenRangeIsWritten() throws IOException {
+        byte[] packet = bytes(100);
+        buffer.write(packet, 10, 20);
+        buffer.flush();
+
+        byte[] expected = new byte[20];
+        System.arraycopy(packet, 10, expected, 0, 20);
+        assertThat(stream.toByteArray()).isEqualTo(expected);
+    }
+
+    @Test
+    public void largeBufferIsFlushed() throws IOException {
+        byte[] packet = bytes(1 << 16);
+        buffer.write(packet, 0, packet.length);
+        assertThat(stream.writes).isZero();
+
+        buffer.write(packet, 0, packet.length);
+        assertThat(stream.writes).isEqualTo(1);
+        assertThat(stream.size()).isEqualTo(2 * packet.length);
+    }
+
+    /**
+     * Bytes that have been waiting for longer than the latency budget are written along with the next packet, even if
+     * the reader has not finished its batch.
+     */
+    @Test
+    public void waitingBytesAreFlushed() throws IOException, InterruptedException {
+        byte[] first = bytes(10);
+        byte[] second = bytes(10);
+
+        buffer.write(first, 0, first.length);
+        Thread.sleep(20);
+        buffer.write(second, 0, second.length);
+
+        assertThat(stream.writes).isEqualTo(1);
+        assertThat(stream.size()).isEqualTo(first.length + second.length);
+    }
+
+    @Test
+    public void bytesAreEncrypted() throws Exception {
+        byte[] plain = bytes(500);
+        buffer.write(plain, 0, 100);
+        buffer.setEncryptor(cipher(Cipher.ENCRYPT_MODE));
+        buffer.write(plain, 100, 400);
+        buffer.flush();
+
+        byte[] written = stream.toByteArray();
+        assertThat(written).hasSize(plain.length);
+
+        // bytes written before the encryptor was set are not encrypted
+        byte[] decrypted = new byte[plain.length];
+        System.arraycopy(written, 0, decrypted, 0, 100);
+        cipher(Cipher.DECRYPT_MODE).update(written, 100, 400, decrypted, 100);
+        assertThat(decrypted).isEqualTo(plain);
+    }
+
+    @Test
+    public void resetDiscardsBufferedBytes() throws IOException {
+        byte[] packet = bytes(100);
+        buffer.write(packet, 0, packet.length);
+        buffer.reset();
+        buffer.flush();
+
+        assertThat(stream.writes).isZero();
+        assertThat(buffer.getFlushCount()).isZero();
+    }
+
+    private static Cipher cipher(int mode) throws Exception {
+        byte[] key = new byte[16];
+        new Random(1).nextBytes(key);
+
+        Cipher cipher = Cipher.getInstance("AES/CFB8/NoPadding");
+        cipher.init(mode, new SecretKeySpec(key, "AES"), new IvParameterSpec(key));
+        return cipher;
+    }
+
+    private static class CountingStream extends ByteArrayOutputStream {
+        int writes;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            super.write(b, off, len);
+            writes++;
+        }
+    }
+}
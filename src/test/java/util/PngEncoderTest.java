@@ -0,0 +1,35 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PngEncoderTest {
+
+    @Test
+    public void writtenImageIsReadBackUnchanged() throws IOException {
+        int width = 37;
+        int height = 21;
+
+        Random random = new Random(0);
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            // include fully transparent pixels, as parts of the map that were not drawn yet are transparent
+            pixels[i] = random.nextInt(4) == 0 ? 0 : random.nextInt();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PngEncoder.write(out, pixels, width, height);
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertThat(image.getWidth()).isEqualTo(width);
+        assertThat(image.getHeight()).isEqualTo(height);
+        assertThat(image.getRGB(0, 0, width, height, null, 0, width)).isEqualTo(pixels);
+    }
+}